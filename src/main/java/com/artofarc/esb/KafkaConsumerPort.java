@@ -15,17 +15,33 @@
  */
 package com.artofarc.esb;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.header.Header;
 
 import com.artofarc.esb.context.Context;
@@ -33,16 +49,36 @@ import com.artofarc.esb.message.ESBMessage;
 
 public final class KafkaConsumerPort extends PollingConsumerPort {
 
+	public enum Ordering {
+		// all records of a poll in parallel, committed when all are done
+		NONE,
+		// records of a partition in sequence, partitions in parallel
+		PARTITION,
+		// records with the same key in sequence
+		KEY
+	}
+
+	private static final long POLL_INTERVAL_UNCOMMITTED = 100L;
+	private static final long RETRY_BACKOFF = 100L;
+	private static final int MAX_ATTEMPTS = 5;
+
 	private final Properties _config;
 	private final List<String> _topics;
 	private final long _pollInterval, _timeout;
+	private final Ordering _ordering;
+	private final int _maxBuffered;
+	private final AtomicInteger _buffered = new AtomicInteger();
+	// only accessed by the polling thread
+	private boolean _paused;
 
-	public KafkaConsumerPort(String uri, String workerPool, long pollInterval, Properties config, List<String> topics, long timeout) {
+	public KafkaConsumerPort(String uri, String workerPool, long pollInterval, Properties config, List<String> topics, long timeout, Ordering ordering) {
 		super(uri, workerPool);
 		_pollInterval = pollInterval;
 		_config = config;
 		_topics = topics;
 		_timeout = timeout;
+		_ordering = ordering;
+		_maxBuffered = 2 * Integer.parseInt(config.getProperty("max.poll.records", "500"));
 	}
 
 	public Properties getConfig() {
@@ -57,49 +93,355 @@ public final class KafkaConsumerPort extends PollingConsumerPort {
 		return _topics + "@" + _config;
 	}
 
+	private void process(ConsumerRecord<?, ?> record) throws Exception {
+		ESBMessage msg = new ESBMessage(null, record.value());
+		msg.putVariable("record.key", record.key());
+		msg.putVariable("record.timestamp", record.timestamp());
+		msg.putVariable("record.timestampType", record.timestampType());
+		for (Header header : record.headers()) {
+			msg.putHeader(header.key(), new String(header.value(), ESBMessage.CHARSET_DEFAULT));
+		}
+		logger.debug("Kafka Consumer Record(topic=" + record.topic() + ", partition=" + record.partition() + ", offset=" + record.offset() + ")");
+		Context context = _workerPool.getContext();
+		try {
+			process(context, msg);
+		} finally {
+			_workerPool.releaseContext(context);
+		}
+	}
+
 	@Override
 	public void run() {
 		try (KafkaConsumer<?, ?> consumer = new KafkaConsumer<>(_config)) {
-			consumer.subscribe(_topics);
-			for (LinkedHashMap<Future<Void>, ConsumerRecord<?, ?>> futures = new LinkedHashMap<>();; futures.clear()) {
-				for (final ConsumerRecord<?, ?> record : consumer.poll(_pollInterval)) {
-					futures.put(submit(new Callable<Void>() {
-
-						@Override
-						public Void call() throws Exception {
-							ESBMessage msg = new ESBMessage(null, record.value());
-							msg.putVariable("record.key", record.key());
-							msg.putVariable("record.timestamp", record.timestamp());
-							msg.putVariable("record.timestampType", record.timestampType());
-							for (Header header : record.headers()) {
-								msg.putHeader(header.key(), new String(header.value(), ESBMessage.CHARSET_DEFAULT));
-							}
-							logger.debug("Kafka Consumer Record(topic=" + record.topic() + ", partition=" + record.partition() + ", offset=" + record.offset() + ")");
-							Context context = _workerPool.getContext();
-							try {
-								process(context, msg);
-							} finally {
-								_workerPool.releaseContext(context);
-							}
-							return null;
+			if (_ordering == Ordering.NONE) {
+				consumer.subscribe(_topics);
+				runUnordered(consumer);
+			} else {
+				runOrdered(consumer);
+			}
+		} catch (InterruptedException | InterruptException e) {
+			// cancelled
+		}
+	}
+
+	private void runUnordered(KafkaConsumer<?, ?> consumer) throws InterruptedException {
+		for (LinkedHashMap<Future<Void>, ConsumerRecord<?, ?>> futures = new LinkedHashMap<>();; futures.clear()) {
+			for (final ConsumerRecord<?, ?> record : consumer.poll(_pollInterval)) {
+				futures.put(submit(() -> {
+					process(record);
+					return null;
+				}), record);
+			}
+			for (Future<Void> future : futures.keySet()) {
+				try {
+					future.get(_timeout, TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					ConsumerRecord<?, ?> record = futures.get(future);
+					logger.error("Exception processing record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset(), e.getCause());
+				} catch (TimeoutException e) {
+					ConsumerRecord<?, ?> record = futures.get(future);
+					logger.warn("TimeoutException processing record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset());
+				}
+			}
+			consumer.commitSync();
+		}
+	}
+
+	/**
+	 * Only offsets up to the first record not yet processed successfully are committed. A failed record rewinds its partition, so it is retried along with its successors
+	 * after an exponential backoff. After MAX_ATTEMPTS the record is logged and skipped.
+	 */
+	void runOrdered(Consumer<?, ?> consumer) {
+		final Map<TopicPartition, Partition> partitions = new HashMap<>();
+		consumer.subscribe(_topics, new ConsumerRebalanceListener() {
+
+			@Override
+			public void onPartitionsRevoked(Collection<TopicPartition> topicPartitions) {
+				Map<TopicPartition, OffsetAndMetadata> offsets = collectOffsets(partitions);
+				if (offsets.size() > 0) {
+					consumer.commitSync(offsets);
+				}
+				for (TopicPartition topicPartition : topicPartitions) {
+					Partition partition = partitions.remove(topicPartition);
+					if (partition != null) {
+						partition.discard();
+					}
+				}
+			}
+
+			@Override
+			public void onPartitionsAssigned(Collection<TopicPartition> topicPartitions) {
+				if (_paused) {
+					consumer.pause(topicPartitions);
+				}
+			}
+		});
+		_paused = false;
+		for (;;) {
+			boolean uncommitted = _paused;
+			for (Partition partition : partitions.values()) {
+				uncommitted |= partition.isUncommitted() || partition.isBackingOff();
+			}
+			for (ConsumerRecord<?, ?> record : consumer.poll(uncommitted ? POLL_INTERVAL_UNCOMMITTED : _pollInterval)) {
+				TopicPartition topicPartition = new TopicPartition(record.topic(), record.partition());
+				Partition partition = partitions.get(topicPartition);
+				if (partition == null) {
+					partitions.put(topicPartition, partition = new Partition());
+				}
+				partition.add(record);
+			}
+			final long now = System.currentTimeMillis();
+			for (Map.Entry<TopicPartition, Partition> entry : partitions.entrySet()) {
+				Partition partition = entry.getValue();
+				long seekOffset = partition.rewind();
+				if (seekOffset >= 0) {
+					consumer.seek(entry.getKey(), seekOffset);
+					partition.backOff(now);
+					consumer.pause(Collections.singleton(entry.getKey()));
+				} else if (partition.isBackingOff() && partition.endBackOff(now) && !_paused) {
+					consumer.resume(Collections.singleton(entry.getKey()));
+				}
+			}
+			Map<TopicPartition, OffsetAndMetadata> offsets = collectOffsets(partitions);
+			if (offsets.size() > 0) {
+				consumer.commitAsync(offsets, (committed, exception) -> {
+					if (exception != null) {
+						logger.warn("Could not commit offsets " + committed, exception);
+					}
+				});
+			}
+			// back pressure
+			boolean saturated = _buffered.get() > _maxBuffered || _workerPool.getRemainingCapacity() == 0 && _workerPool.getActiveCount() >= _workerPool.getMaximumPoolSize();
+			if (saturated != _paused) {
+				if (saturated) {
+					consumer.pause(consumer.assignment());
+				} else {
+					List<TopicPartition> resumable = new ArrayList<>();
+					for (TopicPartition topicPartition : consumer.paused()) {
+						Partition partition = partitions.get(topicPartition);
+						if (partition == null || !partition.isBackingOff()) {
+							resumable.add(topicPartition);
 						}
-					}), record);
+					}
+					consumer.resume(resumable);
+				}
+				_paused = saturated;
+			}
+		}
+	}
+
+	private static Map<TopicPartition, OffsetAndMetadata> collectOffsets(Map<TopicPartition, Partition> partitions) {
+		Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+		for (Map.Entry<TopicPartition, Partition> entry : partitions.entrySet()) {
+			long offset = entry.getValue().advance();
+			if (offset >= 0) {
+				offsets.put(entry.getKey(), new OffsetAndMetadata(offset));
+			}
+		}
+		return offsets;
+	}
+
+	private final class Partition {
+		// offsets of records not yet committed in the order of polling, only accessed by the polling thread
+		private final ArrayDeque<Long> _offsets = new ArrayDeque<>();
+		private final Set<Long> _completed = ConcurrentHashMap.newKeySet();
+		private final Map<Object, Lane> _lanes = new HashMap<>();
+		// progress made up to a rewind, not yet collected for commit
+		private long _rewoundOffset = -1L;
+		private volatile long _failedOffset = -1L;
+		// incremented by each rewind, results of records from former generations are ignored
+		private volatile int _generation;
+		private long _retryOffset = -1L, _retryAt;
+		private int _attempts;
+
+		boolean isUncommitted() {
+			return _offsets.size() > 0;
+		}
+
+		boolean isBackingOff() {
+			return _retryAt > 0L;
+		}
+
+		void backOff(long now) {
+			_retryAt = now + (RETRY_BACKOFF << Math.min(_attempts - 1, 10));
+		}
+
+		boolean endBackOff(long now) {
+			if (now >= _retryAt) {
+				_retryAt = 0L;
+				return true;
+			}
+			return false;
+		}
+
+		void add(ConsumerRecord<?, ?> record) {
+			Object key = _ordering == Ordering.KEY ? record.key() : null;
+			Lane lane = _lanes.get(key);
+			if (lane == null) {
+				_lanes.put(key, lane = new Lane(this));
+			}
+			_offsets.add(record.offset());
+			lane.add(record);
+		}
+
+		synchronized void fail(long offset) {
+			if (_failedOffset < 0 || offset < _failedOffset) {
+				_failedOffset = offset;
+			}
+		}
+
+		/**
+		 * @return false if the record has exhausted its attempts and is to be skipped
+		 */
+		synchronized boolean retry(long offset, int generation) {
+			if (generation == _generation) {
+				if (offset == _retryOffset && _attempts + 1 >= MAX_ATTEMPTS) {
+					_retryOffset = -1L;
+					_attempts = 0;
+					return false;
 				}
-				for (Future<Void> future : futures.keySet()) {
-					try {
-						future.get(_timeout, TimeUnit.MILLISECONDS);
-					} catch (ExecutionException e) {
-						ConsumerRecord<?, ?> record = futures.get(future);
-						logger.error("Exception processing record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset(), e.getCause());
-					} catch (TimeoutException e) {
-						ConsumerRecord<?, ?> record = futures.get(future);
-						logger.warn("TimeoutException processing record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset());
+				fail(offset);
+			}
+			return true;
+		}
+
+		boolean hasFailed() {
+			return _failedOffset >= 0;
+		}
+
+		synchronized void complete(long offset, int generation) {
+			if (generation == _generation) {
+				_completed.add(offset);
+			}
+		}
+
+		/**
+		 * @return the offset after the highest contiguous completed offset or -1 if there is no progress
+		 */
+		long advance() {
+			long next = _rewoundOffset;
+			_rewoundOffset = -1L;
+			while (_offsets.size() > 0 && _completed.remove(_offsets.peekFirst())) {
+				next = _offsets.pollFirst() + 1;
+			}
+			return next;
+		}
+
+		/**
+		 * With ordering by key, records of other lanes before the failed record may not be completed yet, so the seek goes back to the first record not completed.
+		 *
+		 * @return the offset to seek to or -1 if there was no failure
+		 */
+		long rewind() {
+			long seekOffset = -1L;
+			if (hasFailed()) {
+				_rewoundOffset = advance();
+				// lanes are cleared before the generation changes, so a record taken afterwards belongs to the new generation
+				discard();
+				synchronized (this) {
+					long failedOffset = _failedOffset;
+					seekOffset = _offsets.size() > 0 ? Math.min(_offsets.peekFirst(), failedOffset) : failedOffset;
+					_failedOffset = -1L;
+					++_generation;
+					_completed.clear();
+					if (failedOffset == _retryOffset) {
+						++_attempts;
+					} else {
+						_retryOffset = failedOffset;
+						_attempts = 1;
 					}
 				}
-				consumer.commitSync();
+				_offsets.clear();
+			}
+			// drop idle lanes of keys
+			for (Iterator<Lane> iter = _lanes.values().iterator(); iter.hasNext();) {
+				if (iter.next().isIdle()) {
+					iter.remove();
+				}
+			}
+			return seekOffset;
+		}
+
+		void discard() {
+			for (Lane lane : _lanes.values()) {
+				lane.clear();
+			}
+		}
+	}
+
+	/**
+	 * Records which have to be processed in sequence. A lane is drained by at most one task at a time.
+	 */
+	private final class Lane implements Callable<Void> {
+		private final Partition _partition;
+		private final ArrayDeque<ConsumerRecord<?, ?>> _records = new ArrayDeque<>();
+		private boolean _running;
+
+		Lane(Partition partition) {
+			_partition = partition;
+		}
+
+		void add(ConsumerRecord<?, ?> record) {
+			boolean start;
+			synchronized (this) {
+				_records.add(record);
+				start = !_running;
+				_running = true;
+			}
+			_buffered.incrementAndGet();
+			if (start) {
+				try {
+					submit(this);
+				} catch (RejectedExecutionException e) {
+					logger.warn("Could not submit record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset(), e);
+					synchronized (this) {
+						_running = false;
+					}
+					clear();
+					_partition.fail(record.offset());
+				}
+			}
+		}
+
+		synchronized void clear() {
+			_buffered.addAndGet(-_records.size());
+			_records.clear();
+		}
+
+		synchronized boolean isIdle() {
+			return !_running && _records.isEmpty();
+		}
+
+		@Override
+		public Void call() {
+			for (;;) {
+				ConsumerRecord<?, ?> record;
+				int generation;
+				synchronized (this) {
+					record = _records.poll();
+					if (record == null) {
+						_running = false;
+						return null;
+					}
+					generation = _partition._generation;
+				}
+				try {
+					// successors of a failed record will be polled again
+					if (!_partition.hasFailed()) {
+						process(record);
+						_partition.complete(record.offset(), generation);
+					}
+				} catch (Exception e) {
+					if (_partition.retry(record.offset(), generation)) {
+						logger.error("Exception processing record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset(), e);
+					} else {
+						logger.error("Skipping record from topic " + record.topic() + " in partition " + record.partition() + " with offset " + record.offset() + " after " + MAX_ATTEMPTS + " attempts", e);
+						_partition.complete(record.offset(), generation);
+					}
+				} finally {
+					_buffered.decrementAndGet();
+				}
 			}
-		} catch (InterruptedException e) {
-			// cancelled
 		}
 	}
 
@@ -15,6 +15,7 @@
  */
 package com.artofarc.esb.action;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
@@ -37,12 +38,13 @@ import com.artofarc.util.TimeGauge;
 public abstract class Action extends Evaluator<ExecutionException> implements Cloneable {
 
 	protected final static Logger logger = LoggerFactory.getLogger(Action.class);
-	private final static Logger loggerTimeGauge = LoggerFactory.getLogger(Action.class.getName() + "TimeGauge");
-	private final static long timeGaugeThreshold = Long.parseLong(System.getProperty("esb0.timeGauge.threshold", "250"));
 
 	protected Action _nextAction;
 	protected Action _errorHandler;
 	private Location _location;
+	// pipeline fragment boundary towards _plannedNextAction resolved at deploy time, see linkList()
+	private Action _plannedNextAction;
+	private boolean _plannedPipelineStop;
 
 	// For JUnit
 	public final Action setNextAction(Action nextAction) {
@@ -111,90 +113,107 @@ public abstract class Action extends Evaluator<ExecutionException> implements Cl
 
 	/**
 	 * The ESB0 execution engine. TODO: Increase comprehensibility.
+	 * Pipeline buffers and time gauge are taken from the {@link Context} so that steady state processing does not allocate.
 	 */
 	public final void process(Context context, ESBMessage message) throws Exception {
-		final List<Action> pipeline = new ArrayList<>();
-		final List<ExecutionContext> resources = new ArrayList<>();
+		final ArrayList<Action> pipeline = context.getPipeline();
+		final ArrayList<ExecutionContext> resources = context.getPipelineResources();
+		// nested invocations use the buffers above this frame
+		final int base = pipeline.size();
 		final Deque<Action> stackErrorHandler = context.getStackErrorHandler();
 		if (getErrorHandler() != null) {
 			stackErrorHandler.push(getErrorHandler());
 		}
 		context.pushStackPos();
-		final TimeGauge timeGauge = new TimeGauge(loggerTimeGauge, timeGaugeThreshold, false);
+		final TimeGauge timeGauge = context.getActionTimeGauge();
+		final int timeGaugeDepth = timeGauge.getDepth();
 		timeGauge.startTimeMeasurement();
-		for (Action nextAction = this; nextAction != null;) {
-			Action action = nextAction;
-			boolean closeSilently = false;
-			try {
-				for (;; action = nextAction) {
-					if (action != this && action.getErrorHandler() != null) {
-						stackErrorHandler.push(action.getErrorHandler());
-						context.pushStackPos();
+		try {
+			for (Action nextAction = this; nextAction != null;) {
+				Action action = nextAction;
+				boolean closeSilently = false;
+				try {
+					for (;; action = nextAction) {
+						if (action != this && action.getErrorHandler() != null) {
+							stackErrorHandler.push(action.getErrorHandler());
+							context.pushStackPos();
+						}
+						final boolean isPipeline = pipeline.size() > base;
+						final ExecutionContext execContext = action.prepare(context, message, isPipeline);
+						timeGauge.stopTimeMeasurement("Prepare (isPipeline=%b): %s", true, isPipeline, action);
+						pipeline.add(action);
+						resources.add(execContext);
+						nextAction = action.nextAction(execContext);
+						if (nextAction == null) {
+							nextAction = context.getExecutionStack().poll();
+							if (nextAction == null) break;
+						}
+						if (nextAction == action._plannedNextAction) {
+							if (action._plannedPipelineStop) break;
+						} else if (action.isFragmentBoundary(context, execContext, nextAction)) {
+							break;
+						}
 					}
-					final boolean isPipeline = pipeline.size() > 0;
-					final ExecutionContext execContext = action.prepare(context, message, isPipeline);
-					timeGauge.stopTimeMeasurement("Prepare (isPipeline=%b): %s", true, isPipeline, action);
-					pipeline.add(action);
-					resources.add(execContext);
-					nextAction = action.nextAction(execContext);
-					if (nextAction == null) {
-						nextAction = context.getExecutionStack().poll();
-						if (nextAction == null) break;
+					if (logger.isDebugEnabled()) {
+						logger.debug("Pipeline fragment: {}", pipeline.subList(base, pipeline.size()));
 					}
-					final boolean nextActionOffersSink = nextAction.isOfferingSink(context);
-					// the nextAction can only be added if it is not offering a sink or if the current action does not stop or can write to a sink
-					if (nextActionOffersSink && !action.isStreamingToSink() || action.isPipelineStop(execContext, nextAction) && !(nextActionOffersSink && action.isStreamingToSink())) {
-						break;
+					// pipeline fragment execution phase
+					final int secondLast = pipeline.size() - 2;
+					for (int i = base; i < pipeline.size(); ++i) {
+						action = pipeline.get(i);
+						action.execute(context, resources.get(i), message, i == secondLast);
+						timeGauge.stopTimeMeasurement("Execute: %s", true, action);
 					}
-				}
-				logger.debug("Pipeline fragment: {}", pipeline);
-				// pipeline fragment execution phase
-				final int secondLast = pipeline.size() - 2;
-				for (int i = 0; i < pipeline.size(); ++i) {
-					action = pipeline.get(i);
-					action.execute(context, resources.get(i), message, i == secondLast);
-					timeGauge.stopTimeMeasurement("Execute: %s", true, action);
-				}
-			} catch (Exception e) {
-				if (e instanceof ExecutionException) {
-					logger.info("Flow interrupted by " + e.getMessage(), e.getCause());
-				} else {
-					logger.info("Exception while processing " + action, e);
-				}
-				logESBMessage(context, message);
-				closeSilently = true;
-				message.reset(BodyType.EXCEPTION, e);
-				if (nextAction != null) {
-					// if nextAction was polled from execution stack (e.g. HttpResponseAction), if not it will be unwinded
-					context.getExecutionStack().push(nextAction);
-				}
-				context.unwindStack();
-				processException(context, message);
-				break;
-			} finally {
-				for (int i = pipeline.size(); i > 0;) {
-					action = pipeline.get(--i);
-					try {
-						action.close(context, resources.get(i), message, closeSilently);
-						if (action != this && action.getErrorHandler() != null) {
-							context.getStackPos().pop();
-							stackErrorHandler.pop();
+				} catch (Exception e) {
+					if (e instanceof ExecutionException) {
+						logger.info("Flow interrupted by " + e.getMessage(), e.getCause());
+					} else {
+						logger.info("Exception while processing " + action, e);
+					}
+					logESBMessage(context, message);
+					closeSilently = true;
+					message.reset(BodyType.EXCEPTION, e);
+					if (nextAction != null) {
+						// if nextAction was polled from execution stack (e.g. HttpResponseAction), if not it will be unwinded
+						context.getExecutionStack().push(nextAction);
+					}
+					context.unwindStack();
+					processException(context, message);
+					break;
+				} finally {
+					for (int i = pipeline.size(); i > base;) {
+						action = pipeline.remove(--i);
+						try {
+							action.close(context, resources.remove(i), message, closeSilently);
+							if (action != this && action.getErrorHandler() != null) {
+								context.getStackPos().pop();
+								stackErrorHandler.pop();
+							}
+						} catch (Exception e) {
+							if (!closeSilently)
+								throw e;
 						}
-					} catch (Exception e) {
-						if (!closeSilently)
-							throw e;
+						timeGauge.stopTimeMeasurement("Close: %s", true, action);
 					}
-					timeGauge.stopTimeMeasurement("Close: %s", true, action);
 				}
 			}
-			pipeline.clear();
-			resources.clear();
+			context.getStackPos().poll();
+			if (getErrorHandler() != null) {
+				stackErrorHandler.poll();
+			}
+			timeGauge.stopTimeMeasurement("Finished process: %s", false, _location != null ? _location.getServiceArtifactURI() : getClass().getSimpleName());
+		} finally {
+			// only has an effect if left by an exception
+			truncate(pipeline, base);
+			truncate(resources, base);
+			timeGauge.unwind(timeGaugeDepth);
 		}
-		context.getStackPos().poll();
-		if (getErrorHandler() != null) {
-			stackErrorHandler.poll();
+	}
+
+	private static void truncate(ArrayList<?> list, int size) {
+		for (int i = list.size(); i > size;) {
+			list.remove(--i);
 		}
-		timeGauge.stopTimeMeasurement("Finished process: %s", false, _location != null ? _location.getServiceArtifactURI() : getClass().getSimpleName());
 	}
 
 	public static void processException(Context context, ESBMessage message) throws Exception {
@@ -215,6 +234,42 @@ public abstract class Action extends Evaluator<ExecutionException> implements Cl
 	// pipelining
 	protected boolean _pipelineStop, _offeringSink, _streamingToSink;
 
+	private static final ClassValue<Boolean> STATIC_PIPELINE_TRAITS = new ClassValue<Boolean>() {
+
+		@Override
+		protected Boolean computeValue(Class<?> cls) {
+			for (; cls != Action.class; cls = cls.getSuperclass()) {
+				for (Method method : cls.getDeclaredMethods()) {
+					if (method.getName().equals("isPipelineStop") || method.getName().equals("isOfferingSink")) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * @return true if the pipeline fragment must end between this and the nextAction
+	 */
+	private boolean isFragmentBoundary(Context context, ExecutionContext execContext, Action nextAction) {
+		final boolean nextActionOffersSink = nextAction.isOfferingSink(context);
+		// the nextAction can only be added if it is not offering a sink or if the current action does not stop or can write to a sink
+		return nextActionOffersSink && !isStreamingToSink() || isPipelineStop(execContext, nextAction) && !(nextActionOffersSink && isStreamingToSink());
+	}
+
+	/**
+	 * Resolve the fragment boundary towards the static next Action in advance, unless one of both answers depends on the message.
+	 */
+	private void planPipeline() {
+		if (_nextAction != null && STATIC_PIPELINE_TRAITS.get(getClass()) && STATIC_PIPELINE_TRAITS.get(_nextAction.getClass())) {
+			_plannedPipelineStop = isFragmentBoundary(null, null, _nextAction);
+			_plannedNextAction = _nextAction;
+		} else {
+			_plannedNextAction = null;
+		}
+	}
+
 	/**
 	 * @param nextAction The next Action that will be processed in the flow, may be null
 	 * @return true if the {@link #execute(Context, ExecutionContext, ESBMessage, boolean) execute()} method must be called before the next {@link #Action} instance can be processed
@@ -271,6 +326,12 @@ public abstract class Action extends Evaluator<ExecutionException> implements Cl
 	protected void close(Context context, ExecutionContext execContext, ESBMessage message, boolean exception) throws Exception {
 	}
 
+	/**
+	 * Called when this action is removed from the execution stack by an exception without having been processed.
+	 */
+	public void unwound() {
+	}
+
 	@Override
 	public Action clone() {
 		try {
@@ -295,8 +356,12 @@ public abstract class Action extends Evaluator<ExecutionException> implements Cl
 		}
 		Action startAction = iterator.next(), action = startAction;
 		while (iterator.hasNext()) {
-			action = action._nextAction = iterator.next();
+			Action nextAction = iterator.next();
+			action._nextAction = nextAction;
+			action.planPipeline();
+			action = nextAction;
 		}
+		action.planPipeline();
 		return startAction;
 	}
 
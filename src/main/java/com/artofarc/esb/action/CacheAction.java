@@ -17,6 +17,9 @@ package com.artofarc.esb.action;
 
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -24,6 +27,8 @@ import com.artofarc.esb.SchedulingConsumerPort;
 import com.artofarc.esb.context.Context;
 import com.artofarc.esb.context.ExecutionContext;
 import com.artofarc.esb.context.GlobalContext;
+import com.artofarc.esb.context.WorkerPool;
+import com.artofarc.esb.message.BodyType;
 import com.artofarc.esb.message.ESBMessage;
 import com.artofarc.esb.resource.LRUCacheWithExpirationFactory;
 
@@ -33,11 +38,12 @@ public class CacheAction extends Action {
 	private final List<String> _valueNames;
 	private final int _indexBody;
 	private final Action _cacheAction;
-	private final boolean _notWriteOnly, _isNullable;
+	private final boolean _notWriteOnly, _isNullable, _singleFlight;
 	private final LRUCacheWithExpirationFactory<Object, Object[]>.Cache _cache;
 	private final String _ttl;
+	private final long _staleWhileRevalidate;
 
-	public CacheAction(GlobalContext globalContext, String keyExp, boolean isNullable, List<String> valueNames, Action cacheAction, boolean writeOnly, String cacheName, int maxSize, String ttl) {
+	public CacheAction(GlobalContext globalContext, String keyExp, boolean isNullable, List<String> valueNames, Action cacheAction, boolean writeOnly, String cacheName, int maxSize, boolean concurrent, long maxOffHeapSize, String ttl, boolean singleFlight, int staleWhileRevalidate) {
 		_keyExp = keyExp;
 		_isNullable = isNullable;
 		_valueNames = valueNames;
@@ -46,12 +52,23 @@ public class CacheAction extends Action {
 		_indexBody = valueNames.indexOf("body");
 		@SuppressWarnings("unchecked")
 		LRUCacheWithExpirationFactory<Object, Object[]> factory = globalContext.getResourceFactory(LRUCacheWithExpirationFactory.class);
-		_cache = factory.getResource(cacheName, maxSize);
+		LRUCacheWithExpirationFactory<Object, Object[]>.Cache cache = factory.getResource(cacheName, new LRUCacheWithExpirationFactory.CacheConfig(maxSize, concurrent, maxOffHeapSize));
+		if (cache.isConcurrent() != concurrent) {
+			// other CacheActions still use the existing cache, it cannot be replaced
+			throw new IllegalArgumentException("Cache " + cacheName + " already exists with concurrent=" + cache.isConcurrent());
+		}
+		_cache = cache;
 		if (_cache.getMaxSize() != maxSize) {
 			logger.info("Set new size for cache " + cacheName + " to " + maxSize);
 			_cache.setMaxSize(maxSize);
 		}
+		if (_cache.getMaxOffHeapSize() != maxOffHeapSize) {
+			logger.info("Set new off heap size for cache " + cacheName + " to " + maxOffHeapSize);
+			_cache.setMaxOffHeapSize(maxOffHeapSize);
+		}
 		_ttl = ttl;
+		_singleFlight = singleFlight;
+		_staleWhileRevalidate = staleWhileRevalidate;
 	}
 
 	@Override
@@ -68,8 +85,22 @@ public class CacheAction extends Action {
 				context.getExecutionStack().push(_nextAction);
 			}
 			Action action = null;
-			Object[] values = _cache.get(key);
-			if (_notWriteOnly && values != null) {
+			Object[] values = _notWriteOnly ? _cache.get(key) : null;
+			LRUCacheWithExpirationFactory.Load<Object[]> load = null;
+			if (values == null && _notWriteOnly && _singleFlight) {
+				long timeout = message.getTimeleft(60000L).longValue();
+				load = new LRUCacheWithExpirationFactory.Load<>(timeout);
+				LRUCacheWithExpirationFactory.Load<Object[]> pending = _cache.joinLoad(key, load);
+				if (pending != null) {
+					load = null;
+					try {
+						values = pending.get(timeout, TimeUnit.MILLISECONDS);
+					} catch (TimeoutException e) {
+						logger.debug("Timeout waiting for concurrent load of key " + key);
+					}
+				}
+			}
+			if (values != null) {
 				for (int i = 0; i < _valueNames.size(); ++i) {
 					if (i != _indexBody) {
 						message.putVariable(_valueNames.get(i), values[i]);
@@ -77,32 +108,11 @@ public class CacheAction extends Action {
 				}
 			} else {
 				action = _cacheAction;
-				context.getExecutionStack().push(new TerminalAction() {
-
-					@Override
-					protected void execute(Context context, ESBMessage message) throws Exception {
-						long ttl;
-						if (Character.isDigit(_ttl.charAt(0))) {
-							try {
-								ttl = Long.parseLong(_ttl);
-							} catch (NumberFormatException e) {
-								Calendar time = DatatypeConverter.parseTime(_ttl);
-								ttl = SchedulingConsumerPort.millisUntilNext(time) / 1000;
-							}
-						} else {
-							ttl = ((Number) resolve(message, _ttl, true)).longValue();
-						}
-						if (ttl > 0) {
-							Object[] values = new Object[_valueNames.size()];
-							for (int i = 0; i < _valueNames.size(); ++i) {
-								values[i] = i != _indexBody ? resolve(message, _valueNames.get(i), true) : message.cloneBody(context, false);
-							}
-							_cache.put(key, values, ttl);
-						}
-					}
-				});
+				context.getExecutionStack().push(new StoreAction(key, load, System.nanoTime()));
 			}
-			return new ExecutionContext(key, action);
+			ExecutionContext execContext = new ExecutionContext(key, action);
+			execContext.setResource3(values);
+			return execContext;
 		} else if (_isNullable) {
 			return null;
 		} else {
@@ -111,12 +121,24 @@ public class CacheAction extends Action {
 	}
 
 	@Override
-	protected void execute(Context context, ExecutionContext execContext, ESBMessage message, boolean nextActionIsPipelineStop) {
-		if (execContext != null && _notWriteOnly && _indexBody >= 0) {
-			Object[] values = _cache.get(execContext.getResource());
+	protected void execute(Context context, ExecutionContext execContext, ESBMessage message, boolean nextActionIsPipelineStop) throws Exception {
+		if (execContext != null) {
+			// values of a cache hit, we must not look up again as the entry might have been evicted meanwhile
+			Object[] values = execContext.getResource3();
 			if (values != null) {
-				message.clearHeaders();
-				message.reset(null, values[_indexBody]);
+				if (values.length > _valueNames.size() && System.nanoTime() - (Long) values[_valueNames.size()] > 0) {
+					revalidate(context, message, execContext.getResource());
+				}
+				if (_indexBody >= 0) {
+					message.clearHeaders();
+					Object body = values[_indexBody];
+					if (body instanceof LRUCacheWithExpirationFactory.OffHeapBody) {
+						LRUCacheWithExpirationFactory.OffHeapBody offHeapBody = (LRUCacheWithExpirationFactory.OffHeapBody) body;
+						message.reset(BodyType.INPUT_STREAM, offHeapBody.getInputStream(), offHeapBody.getCharsetName());
+					} else {
+						message.reset(null, body);
+					}
+				}
 			}
 		}
 	}
@@ -126,4 +148,125 @@ public class CacheAction extends Action {
 		return execContext != null ? execContext.getResource2() : _nextAction;
 	}
 
+	/**
+	 * Serve the stale values and refresh them in background, unless another refresh is already running.
+	 */
+	private void revalidate(Context context, ESBMessage message, Object key) throws Exception {
+		final LRUCacheWithExpirationFactory.Load<Object[]> load = new LRUCacheWithExpirationFactory.Load<>(message.getTimeleft(60000L).longValue());
+		if (_cache.joinLoad(key, load) == null) {
+			final ESBMessage copy = message.copy(context, true, true, true);
+			WorkerPool workerPool = context.getPoolContext().getWorkerPool();
+			if (workerPool.getExecutorService() == null) {
+				workerPool = context.getGlobalContext().getDefaultWorkerPool();
+			}
+			final WorkerPool pool = workerPool;
+			try {
+				pool.getExecutorService().execute(() -> {
+					final Context workerContext = pool.getContext();
+					try {
+						workerContext.getExecutionStack().push(new StoreAction(key, load, System.nanoTime()));
+						_cacheAction.process(workerContext, copy);
+					} catch (Exception e) {
+						logger.warn("Revalidation failed for key " + key, e);
+					} finally {
+						workerContext.getExecutionStack().clear();
+						workerContext.getStackErrorHandler().clear();
+						workerContext.getStackPos().clear();
+						pool.releaseContext(workerContext);
+						_cache.completeLoad(key, load, null);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.warn("Could not revalidate key " + key, e);
+				_cache.completeLoad(key, load, null);
+			}
+		}
+	}
+
+	private Object cloneBody(Context context, ESBMessage message) throws Exception {
+		if (_cache.getMaxOffHeapSize() > 0) {
+			switch (message.getBodyType()) {
+			case INVALID:
+			case XQ_SEQUENCE:
+			case RESULT:
+			case OUTPUT_STREAM:
+			case WRITER:
+				break;
+			default:
+				byte[] content = message.getBodyAsByteArray(context);
+				LRUCacheWithExpirationFactory.OffHeapBody offHeapBody = _cache.storeOffHeap(content, message.getCharset());
+				if (offHeapBody != null) {
+					return offHeapBody;
+				}
+				logger.debug("Off heap budget of cache exhausted, keeping body on heap");
+				return content;
+			}
+		}
+		return message.cloneBody(context, false);
+	}
+
+	/**
+	 * Puts the result of the _cacheAction into the cache and hands it over to concurrent misses of the same key.
+	 */
+	private final class StoreAction extends TerminalAction {
+
+		private final Object _key;
+		private final LRUCacheWithExpirationFactory.Load<Object[]> _load;
+		private final long _startOfLoad;
+
+		StoreAction(Object key, LRUCacheWithExpirationFactory.Load<Object[]> load, long startOfLoad) {
+			_key = key;
+			_load = load;
+			_startOfLoad = startOfLoad;
+		}
+
+		@Override
+		public void unwound() {
+			// the _cacheAction failed, let concurrent misses of the same key try on their own
+			if (_load != null) {
+				_cache.completeLoad(_key, _load, null);
+			}
+		}
+
+		@Override
+		protected void execute(Context context, ESBMessage message) throws Exception {
+			Object[] values = null;
+			try {
+				values = store(context, message);
+			} finally {
+				if (_load != null) {
+					_cache.completeLoad(_key, _load, values);
+				}
+			}
+		}
+
+		private Object[] store(Context context, ESBMessage message) throws Exception {
+			long ttl;
+			if (Character.isDigit(_ttl.charAt(0))) {
+				try {
+					ttl = Long.parseLong(_ttl);
+				} catch (NumberFormatException e) {
+					Calendar time = DatatypeConverter.parseTime(_ttl);
+					ttl = SchedulingConsumerPort.millisUntilNext(time) / 1000;
+				}
+			} else {
+				ttl = ((Number) resolve(message, _ttl, true)).longValue();
+			}
+			Object[] values = null;
+			if (ttl > 0) {
+				values = new Object[_staleWhileRevalidate > 0 ? _valueNames.size() + 1 : _valueNames.size()];
+				for (int i = 0; i < _valueNames.size(); ++i) {
+					values[i] = i != _indexBody ? resolve(message, _valueNames.get(i), true) : cloneBody(context, message);
+				}
+				if (_staleWhileRevalidate > 0) {
+					// point in time after which the values are served stale
+					values[_valueNames.size()] = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+				}
+				_cache.put(_key, values, ttl + _staleWhileRevalidate);
+			}
+			_cache.recordLoad(System.nanoTime() - _startOfLoad);
+			return values;
+		}
+	}
+
 }
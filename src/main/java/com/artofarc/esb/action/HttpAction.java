@@ -16,14 +16,13 @@
 package com.artofarc.esb.action;
 
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -39,6 +38,7 @@ import com.artofarc.esb.context.WorkerPool;
 import static com.artofarc.esb.http.HttpConstants.*;
 import com.artofarc.esb.http.Http2UrlSelector;
 import com.artofarc.esb.http.HttpEndpoint;
+import com.artofarc.esb.http.OutputStreamBodyPublisher;
 import com.artofarc.esb.message.BodyType;
 import static com.artofarc.esb.message.ESBConstants.*;
 import com.artofarc.esb.message.ESBMessage;
@@ -145,6 +145,38 @@ public class HttpAction extends Action {
 		};
 	}
 
+	/**
+	 * Send with a body streamed by the calling thread. The exchange runs asynchronously so no second thread is needed.
+	 *
+	 * @return the future response or null if async
+	 */
+	private Future<HttpResponse<InputStream>> sendStreamed(Context context, ESBMessage message, int timeout, boolean async, WorkerPool workerPool, Http2UrlSelector http2UrlSelector,
+			OutputStreamBodyPublisher bodyPublisher, CountDownLatch streamConsumed) throws Exception {
+
+		HttpRequest.Builder requestBuilder = createHttpRequestBuilder(context, message, timeout, bodyPublisher);
+		BiConsumer<HttpResponse<InputStream>, Throwable> fn;
+		CompletableFuture<HttpResponse<InputStream>> future;
+		if (async) {
+			future = null;
+			fn = createAsyncHandler(workerPool, context, message, timeout);
+		} else {
+			future = new CompletableFuture<>();
+			fn = (httpResponse, exception) -> {
+				if (exception != null) {
+					future.completeExceptionally(exception);
+				} else {
+					future.complete(httpResponse);
+				}
+			};
+		}
+		http2UrlSelector.sendAsync(_httpEndpoint, requestBuilder, createAppendHttpUrl(message), true, streamConsumed, (httpResponse, exception) -> {
+			// release writer if still waiting for demand
+			bodyPublisher.abort(exception);
+			fn.accept(httpResponse, exception);
+		}, workerPool);
+		return future;
+	}
+
 	@Override
 	protected ExecutionContext prepare(Context context, ESBMessage message, boolean inPipeline) throws Exception {
 		message.determineSinkContentType();
@@ -165,28 +197,18 @@ public class HttpAction extends Action {
 			// check, if we need a pipe
 			boolean usePipe = doOutput && (inPipeline || (contentLength == null && message.getBodyType() != BodyType.INPUT_STREAM));
 			if (usePipe) {
-				PipedOutputStream pos = new PipedOutputStream();
-				PipedInputStream pis = new PipedInputStream(pos, IOUtils.MTU);
 				countDownLatch = new CountDownLatch(1);
-				HttpRequest.Builder requestBuilder = createHttpRequestBuilder(context, message, timeout, HttpRequest.BodyPublishers.ofInputStream(() -> {
-					countDownLatch.countDown();
-					return pis;
-				}));
-				if (async) {
-					http2UrlSelector.sendAsync(_httpEndpoint, requestBuilder, createAppendHttpUrl(message), doOutput, countDownLatch, createAsyncHandler(workerPool, context, message, timeout), workerPool);
-				} else {
-					Future<HttpResponse<InputStream>> future = workerPool.getExecutorService().submit(() -> http2UrlSelector.send(_httpEndpoint, requestBuilder, createAppendHttpUrl(message), doOutput, countDownLatch));
-					executionContext.setResource2(future);
-				}
+				OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(countDownLatch, timeout);
+				executionContext.setResource2(sendStreamed(context, message, timeout, async, workerPool, http2UrlSelector, bodyPublisher, countDownLatch));
 				if (countDownLatch.await(_httpEndpoint.getMaxConnectTimeout(), TimeUnit.MILLISECONDS)) {
 					if (inPipeline) {
-						message.reset(BodyType.OUTPUT_STREAM, pos);
+						message.reset(BodyType.OUTPUT_STREAM, bodyPublisher);
 					} else {
-						message.writeRawTo(pos, context);
-						pos.close();
+						message.writeRawTo(bodyPublisher, context);
+						bodyPublisher.close();
 					}
 				} else {
-					pos.close();
+					bodyPublisher.close();
 				}
 			} else {
 				HttpRequest.BodyPublisher bodyPublisher;
@@ -228,25 +250,14 @@ public class HttpAction extends Action {
 			int timeout = message.getTimeleft(_readTimeout).intValue();
 			WorkerPool workerPool = context.getGlobalContext().getWorkerPool(_workerPool);
 			Http2UrlSelector http2UrlSelector = context.getGlobalContext().getHttpEndpointRegistry().getHttpUrlSelector(_httpEndpoint, workerPool);
-			PipedOutputStream pos = new PipedOutputStream();
-			PipedInputStream pis = new PipedInputStream(pos, IOUtils.MTU);
 			CountDownLatch countDownLatch = new CountDownLatch(1);
-			HttpRequest.Builder requestBuilder = createHttpRequestBuilder(context, message, timeout, HttpRequest.BodyPublishers.ofInputStream(() -> {
-				countDownLatch.countDown();
-				return pis;
-			}));
+			OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(countDownLatch, timeout);
 			Boolean async = execContext.getResource();
-			if (async) {
-				future = null;
-				http2UrlSelector.sendAsync(_httpEndpoint, requestBuilder, createAppendHttpUrl(message), true, countDownLatch, createAsyncHandler(workerPool, context, message, timeout), workerPool);
-			} else {
-				future = workerPool.getExecutorService().submit(() -> http2UrlSelector.send(_httpEndpoint, requestBuilder, createAppendHttpUrl(message), true, countDownLatch));
-			}
+			future = sendStreamed(context, message, timeout, async, workerPool, http2UrlSelector, bodyPublisher, countDownLatch);
 			if (countDownLatch.await(_httpEndpoint.getMaxConnectTimeout(), TimeUnit.MILLISECONDS)) {
-				mmp.writeTo(pos);
-			} else {
-				pos.close();
+				mmp.writeTo(bodyPublisher);
 			}
+			bodyPublisher.close();
 		} else {
 			future = execContext.getResource2();
 		}
@@ -15,8 +15,6 @@
  */
 package com.artofarc.esb.action;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -27,9 +25,12 @@ import javax.naming.NamingException;
 
 import com.artofarc.esb.context.*;
 import static com.artofarc.esb.http.HttpConstants.*;
+import com.artofarc.esb.jms.BytesMessageOutputStream;
 import com.artofarc.esb.jms.JMSCompletionListener;
 import com.artofarc.esb.jms.JMSConnectionData;
+import com.artofarc.esb.jms.JMSConnectionProvider;
 import com.artofarc.esb.jms.JMSConsumer;
+import com.artofarc.esb.jms.JMSReplyDemultiplexer;
 import com.artofarc.esb.jms.JMSSession;
 import com.artofarc.esb.jms.aq.AdtHelper;
 import com.artofarc.esb.message.*;
@@ -40,32 +41,6 @@ import com.sun.xml.xsom.XSSchemaSet;
 
 public class JMSAction extends Action {
 
-	static class BytesMessageOutputStream extends OutputStream {
-		final BytesMessage _bytesMessage;
-
-		BytesMessageOutputStream(BytesMessage bytesMessage) {
-			_bytesMessage = bytesMessage;
-		}
-
-		@Override
-		public void write(int b) throws IOException {
-			try {
-				_bytesMessage.writeByte((byte) b);
-			} catch (JMSException e) {
-				throw new IOException(e);
-			}
-		}
-
-		@Override
-		public void write(byte[] b, int off, int len) throws IOException {
-			try {
-				_bytesMessage.writeBytes(b, off, len);
-			} catch (JMSException e) {
-				throw new IOException(e);
-			}
-		}
-	}
-
 	private final List<JMSConnectionData> _jmsConnectionDataList;
 	private final Boolean _transacted;
 	private final boolean _activePassive;
@@ -80,13 +55,15 @@ public class JMSAction extends Action {
 	private final String _workerPool;
 	private final boolean _receiveFromTempQueue;
 	private final String _replyQueue, _receiveSelector;
+	private final boolean _sharedReplyConsumer;
 	private final String _multipartSubtype, _multipartOption;
 	private final XSSchemaSet _schemaSet;
 	private final AtomicInteger _pos;
+	private final boolean _sessionPoolable;
 
 	public JMSAction(GlobalContext globalContext, List<JMSConnectionData> jmsConnectionDataList, Boolean transacted, boolean activePassive, String jndiDestination, String queueName,
 			String topicName, String workerPool, boolean isBytesMessage, int deliveryMode, String priority, long timeToLive, String deliveryDelay, String expiryQueue,
-			boolean receiveFromTempQueue, String replyQueue, String receiveSelector, String multipartSubtype, String multipart, XSSchemaSet schemaSet) throws NamingException {
+			boolean receiveFromTempQueue, String replyQueue, String receiveSelector, boolean sharedReplyConsumer, String multipartSubtype, String multipart, XSSchemaSet schemaSet) throws NamingException {
 
 		_pipelineStop = true;
 		_offeringSink = true;
@@ -109,6 +86,20 @@ public class JMSAction extends Action {
 		_receiveFromTempQueue = receiveFromTempQueue;
 		_replyQueue = replyQueue;
 		_receiveSelector = receiveSelector;
+		if (sharedReplyConsumer) {
+			if (replyQueue == null) {
+				throw new IllegalArgumentException("sharedReplyConsumer requires a replyQueue");
+			}
+			if (receiveSelector != null && receiveSelector.contains("${")) {
+				throw new IllegalArgumentException("receiveSelector of a sharedReplyConsumer must not depend on the message");
+			}
+		}
+		if (workerPool != null && replyQueue != null && !sharedReplyConsumer) {
+			throw new IllegalArgumentException("An asynchronous reply from replyQueue requires a sharedReplyConsumer");
+		}
+		_sharedReplyConsumer = sharedReplyConsumer;
+		// only plain sends can use a session shared with other Contexts
+		_sessionPoolable = JMSConnectionProvider.isSessionPoolEnabled() && Boolean.TRUE != transacted && !activePassive && _pos == null && workerPool == null && !receiveFromTempQueue && replyQueue == null;
 		_multipartSubtype = multipartSubtype;
 		_multipartOption = multipart;
 		_schemaSet = schemaSet;
@@ -157,9 +148,9 @@ public class JMSAction extends Action {
 		if (inPipeline) {
 			if (_isBytesMessage && _multipartSubtype == null) {
 				JMSSession jmsSession = getJMSSession(context, null);
-				BytesMessage bytesMessage = jmsSession.getSession().createBytesMessage();
-				message.reset(BodyType.OUTPUT_STREAM, new BytesMessageOutputStream(bytesMessage));
-				return new ExecutionContext(bytesMessage, jmsSession);
+				BytesMessageOutputStream bytesMessageOutputStream = new BytesMessageOutputStream(jmsSession.getSession().createBytesMessage(), jmsSession);
+				message.reset(BodyType.OUTPUT_STREAM, bytesMessageOutputStream);
+				return new ExecutionContext(bytesMessageOutputStream, jmsSession);
 			} else {
 				ByteArrayOutputStream bos = new ByteArrayOutputStream();
 				message.reset(BodyType.OUTPUT_STREAM, bos);
@@ -173,9 +164,34 @@ public class JMSAction extends Action {
 	protected final void execute(Context context, ExecutionContext execContext, ESBMessage message, boolean nextActionIsPipelineStop) throws Exception {
 		context.getTimeGauge().startTimeMeasurement();
 		JMSSession jmsSession = execContext != null ? execContext.getResource2() : null;
-		if (jmsSession == null) {
-			jmsSession = getJMSSession(context, null);
+		if (jmsSession == null && isSessionPoolable(context)) {
+			JMSConnectionProvider jmsConnectionProvider = context.getResourceFactory(JMSSessionFactory.class).getJMSConnectionProvider();
+			jmsSession = jmsConnectionProvider.borrowPooledSession(_jmsConnectionDataList.get(0));
+			boolean failed = true;
+			try {
+				execute(context, execContext, message, jmsSession);
+				failed = false;
+			} finally {
+				jmsConnectionProvider.releasePooledSession(jmsSession, failed);
+			}
+		} else {
+			if (jmsSession == null) {
+				jmsSession = getJMSSession(context, null);
+			}
+			execute(context, execContext, message, jmsSession);
 		}
+	}
+
+	private boolean isSessionPoolable(Context context) {
+		if (_sessionPoolable && _transacted == null) {
+			// do not leave the transaction of the incoming message
+			JMSSession jmsSession = context.getResource(ESBConstants.JMSSession);
+			return jmsSession == null || !_jmsConnectionDataList.contains(jmsSession.getJMSConnectionData());
+		}
+		return _sessionPoolable;
+	}
+
+	private void execute(Context context, ExecutionContext execContext, ESBMessage message, JMSSession jmsSession) throws Exception {
 		final Session session = jmsSession.getSession();
 		if (_workerPool != null && session.getTransacted()) {
 			throw new ExecutionException(this, "Cannot send asynchronous within a transacted session");
@@ -189,8 +205,10 @@ public class JMSAction extends Action {
 		}
 		context.getTimeGauge().stopTimeMeasurement("JMS getSession", true);
 		Message jmsMessage;
-		if (execContext != null && execContext.getResource() instanceof Message) {
-			jmsMessage = execContext.getResource();
+		if (execContext != null && execContext.getResource() instanceof BytesMessageOutputStream) {
+			BytesMessageOutputStream bytesMessageOutputStream = execContext.getResource();
+			bytesMessageOutputStream.close();
+			jmsMessage = bytesMessageOutputStream.getBytesMessage();
 			jmsMessage.setStringProperty(ESBConstants.Charset, message.getSinkEncoding());
 		} else {
 			ByteArrayOutputStream bos = execContext != null ? execContext.getResource() : null;
@@ -204,12 +222,16 @@ public class JMSAction extends Action {
 				if (MimeHelper.isMimeMultipart(message, _multipartSubtype, _multipartOption)) {
 					message.determineSinkContentType();
 					MimeMultipart mmp = MimeHelper.createMimeMultipart(context, message, _multipartSubtype, _multipartOption, bos, false);
-					mmp.writeTo(new BytesMessageOutputStream(bytesMessage));
+					try (BytesMessageOutputStream bytesMessageOutputStream = new BytesMessageOutputStream(bytesMessage, jmsSession)) {
+						mmp.writeTo(bytesMessageOutputStream);
+					}
 					message.putHeader(HTTP_HEADER_CONTENT_TYPE, unfoldHttpHeader(mmp.getContentType()));
 				} else {
 					// raw or not?
-					message.writeTo(new BytesMessageOutputStream(bytesMessage), context);
-					message.closeBody();
+					try (BytesMessageOutputStream bytesMessageOutputStream = new BytesMessageOutputStream(bytesMessage, jmsSession)) {
+						message.writeTo(bytesMessageOutputStream, context);
+						message.closeBody();
+					}
 					bytesMessage.setStringProperty(ESBConstants.Charset, message.getSinkEncoding());
 				}
 				jmsMessage = bytesMessage;
@@ -266,7 +288,9 @@ public class JMSAction extends Action {
 			}
 		}
 		Destination destination = _destination != null ? _destination : getDestination(message, jmsSession);
-		if (_receiveFromTempQueue) {
+		if (_workerPool != null && (_receiveFromTempQueue || _replyQueue != null)) {
+			sendAndReceiveAsync(context, message, jmsSession, jmsMessage, destination, priority, timeToLive, timeToLive > 0 ? timeToLive : timeLeft);
+		} else if (_receiveFromTempQueue) {
 			jmsMessage.setJMSReplyTo(jmsSession.getTemporaryQueue());
 			jmsSession.createProducer(destination).send(jmsMessage, _deliveryMode, priority, timeToLive);
 			context.getTimeGauge().stopTimeMeasurement("JMS send", true);
@@ -276,6 +300,21 @@ public class JMSAction extends Action {
 				throw new ExecutionException(this, "No reply message received within given timeout");
 			}
 			JMSConsumer.fillESBMessage(context, message, replyMessage);
+		} else if (_sharedReplyConsumer) {
+			final JMSReplyDemultiplexer replyDemultiplexer = jmsSession.getReplyDemultiplexer(_replyQueue, _receiveSelector);
+			replyDemultiplexer.prepareRequest(jmsMessage);
+			jmsSession.createProducer(destination).send(jmsMessage, _deliveryMode, priority, timeToLive);
+			context.getTimeGauge().stopTimeMeasurement("JMS send", true);
+			final String messageID = jmsMessage.getJMSMessageID();
+			message.putVariable(ESBConstants.JMSMessageID, messageID);
+			// replies correlate to the JMSCorrelationID of the request if present, otherwise to its JMSMessageID
+			final String correlationID = jmsMessage.getJMSCorrelationID() != null ? jmsMessage.getJMSCorrelationID() : messageID;
+			Message replyMessage = replyDemultiplexer.receive(correlationID, timeToLive > 0 ? timeToLive : timeLeft);
+			context.getTimeGauge().stopTimeMeasurement("JMS receive", false);
+			if (replyMessage == null) {
+				throw new ExecutionException(this, "No reply message received within given timeout");
+			}
+			JMSConsumer.fillESBMessage(context, message, replyMessage);
 		} else if (_replyQueue != null) {
 			jmsSession.createProducer(destination).send(jmsMessage, _deliveryMode, priority, timeToLive);
 			context.getTimeGauge().stopTimeMeasurement("JMS send", true);
@@ -339,6 +378,57 @@ public class JMSAction extends Action {
 		}
 	}
 
+	/**
+	 * The flow is continued on a thread of the WorkerPool when the reply arrives.
+	 */
+	private void sendAndReceiveAsync(Context context, ESBMessage message, JMSSession jmsSession, Message jmsMessage, Destination destination, int priority, long timeToLive, long timeout) throws Exception {
+		final WorkerPool workerPool = context.getGlobalContext().getWorkerPool(_workerPool);
+		final AsyncProcessingPool asyncProcessingPool = workerPool.getAsyncProcessingPool();
+		if (asyncProcessingPool == null) {
+			throw new ExecutionException(this, "No AsyncProcessingPool in WorkerPool " + workerPool.getName());
+		}
+		final JMSReplyDemultiplexer replyDemultiplexer = jmsSession.getReplyDemultiplexer(_receiveFromTempQueue ? null : _replyQueue, _receiveFromTempQueue ? null : _receiveSelector);
+		if (_receiveFromTempQueue) {
+			jmsMessage.setJMSReplyTo(replyDemultiplexer.getQueue());
+		}
+		replyDemultiplexer.prepareRequest(jmsMessage);
+		jmsSession.createProducer(destination).send(jmsMessage, _deliveryMode, priority, timeToLive);
+		final String messageID = jmsMessage.getJMSMessageID();
+		message.putVariable(ESBConstants.JMSMessageID, messageID);
+		final Object asyncContext = asyncProcessingPool.saveContext(null, _nextAction, DataStructures.moveToNewList(context.getExecutionStack()), context.getStackErrorHandler(),
+				context.getStackPos(), message.getVariables(), System.currentTimeMillis() + timeout);
+		final String correlationID = jmsMessage.getJMSCorrelationID() != null ? jmsMessage.getJMSCorrelationID() : messageID;
+		replyDemultiplexer.receiveAsync(correlationID, timeout, (replyMessage, exception) -> workerPool.getExecutorService().execute(() -> {
+			ESBMessage esbMessage = new ESBMessage(BodyType.INVALID, null);
+			Context workerContext = workerPool.getContext();
+			Action action = asyncProcessingPool.restoreContext(asyncContext, workerContext, esbMessage);
+			try {
+				if (action == null) {
+					if (exception == null) {
+						logger.warn("AsyncContext already expired for reply with JMSCorrelationID " + correlationID);
+					}
+				} else if (exception == null) {
+					JMSConsumer.fillESBMessage(workerContext, esbMessage, replyMessage);
+					action.process(workerContext, esbMessage);
+				} else {
+					esbMessage.reset(BodyType.EXCEPTION, exception);
+					if (!workerContext.getStackPos().isEmpty()) {
+						workerContext.unwindStack();
+					}
+					processException(workerContext, esbMessage);
+				}
+			} catch (Exception e) {
+				logger.error("Exception while completing JMS receive", e);
+			} finally {
+				workerContext.getExecutionStack().clear();
+				workerContext.getStackErrorHandler().clear();
+				workerContext.getStackPos().clear();
+				workerPool.releaseContext(workerContext);
+			}
+		}));
+		context.getTimeGauge().stopTimeMeasurement("JMS send", false);
+	}
+
 	@Override
 	protected Action nextAction(ExecutionContext execContext) {
 		return _workerPool == null ? super.nextAction(execContext) : null;
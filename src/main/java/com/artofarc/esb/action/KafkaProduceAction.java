@@ -18,15 +18,22 @@ package com.artofarc.esb.action;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
 
+import com.artofarc.esb.context.AsyncProcessingPool;
 import com.artofarc.esb.context.Context;
+import com.artofarc.esb.context.ExecutionContext;
 import com.artofarc.esb.context.GlobalContext;
+import com.artofarc.esb.context.WorkerPool;
+import com.artofarc.esb.message.BodyType;
 import com.artofarc.esb.message.ESBMessage;
 import com.artofarc.esb.resource.KafkaProducerFactory;
+import com.artofarc.util.DataStructures;
 
 public class KafkaProduceAction extends TerminalAction {
 
@@ -34,30 +41,139 @@ public class KafkaProduceAction extends TerminalAction {
 	private final Integer _partition;
 	private final boolean _binary;
 	private final Producer<?, ?> _producer;
+	private final String _workerPool;
+	private final long _timeout;
+	// bounds the records in flight when not waiting for the outcome
+	private final Semaphore _inFlight;
 
-	public KafkaProduceAction(GlobalContext globalContext, Properties properties, String topic, Integer partition, boolean binary) {
+	public KafkaProduceAction(GlobalContext globalContext, Properties properties, String topic, Integer partition, boolean binary, String workerPool, long timeout, boolean fireAndForget, int maxInFlight) {
 		_topic = topic;
 		_partition = partition;
 		_binary = binary;
+		_workerPool = workerPool;
+		_timeout = timeout;
+		_inFlight = fireAndForget ? new Semaphore(maxInFlight) : null;
 		KafkaProducerFactory kafkaProducerFactory = globalContext.getResourceFactory(KafkaProducerFactory.class);
 		_producer = kafkaProducerFactory.getResource(properties);
 	}
 
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void execute(Context context, ESBMessage message) throws Exception {
-		@SuppressWarnings("rawtypes")
 		ProducerRecord record = new ProducerRecord<>(_topic, _partition, message.getVariable("record.key"), _binary ? message.getBodyAsByteArray(context) : message.getBodyAsString(context));
 		for (Entry<String, Object> entry : message.getHeaders()) {
-			String value = entry.getValue().toString();
-			record.headers().add(entry.getKey(), value.getBytes(ESBMessage.CHARSET_DEFAULT));
+			record.headers().add(entry.getKey(), encodeHeaderValue(entry.getValue()));
 		}
 		context.getTimeGauge().startTimeMeasurement();
-		@SuppressWarnings("unchecked")
-		Future<RecordMetadata> future = _producer.send(record);
-		context.getTimeGauge().stopTimeMeasurement("Kafka send", true);
-		RecordMetadata metadata = future.get();
-		message.getVariables().put("recordMetadata", metadata);
-		context.getTimeGauge().stopTimeMeasurement("Kafka Record Metadata(topic=%s, partition=%d, offset=%d)", false, metadata.topic(), metadata.partition(), metadata.offset());
+		if (_inFlight != null) {
+			if (!_inFlight.tryAcquire(_timeout, TimeUnit.MILLISECONDS)) {
+				throw new ExecutionException(this, "Timeout waiting for acknowledgement of records in flight to topic " + _topic);
+			}
+			try {
+				_producer.send(record, (metadata, exception) -> {
+					_inFlight.release();
+					if (exception != null) {
+						logger.error("Could not send record to topic " + _topic, exception);
+					}
+				});
+			} catch (RuntimeException e) {
+				_inFlight.release();
+				throw e;
+			}
+			context.getTimeGauge().stopTimeMeasurement("Kafka send", false);
+		} else if (_workerPool != null) {
+			sendAsync(context, message, record);
+			context.getTimeGauge().stopTimeMeasurement("Kafka send", false);
+		} else {
+			Future<RecordMetadata> future = _producer.send(record);
+			context.getTimeGauge().stopTimeMeasurement("Kafka send", true);
+			RecordMetadata metadata = future.get();
+			message.getVariables().put("recordMetadata", metadata);
+			context.getTimeGauge().stopTimeMeasurement("Kafka Record Metadata(topic=%s, partition=%d, offset=%d)", false, metadata.topic(), metadata.partition(), metadata.offset());
+		}
+	}
+
+	/**
+	 * The flow is continued on a thread of the WorkerPool when the record is acknowledged, so the producer can batch records of concurrent flows.
+	 * The continuation gets the body as sent and the headers of the message.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void sendAsync(Context context, ESBMessage message, ProducerRecord record) throws Exception {
+		final WorkerPool workerPool = context.getGlobalContext().getWorkerPool(_workerPool);
+		final AsyncProcessingPool asyncProcessingPool = workerPool.getAsyncProcessingPool();
+		if (asyncProcessingPool == null) {
+			throw new ExecutionException(this, "No AsyncProcessingPool in WorkerPool " + workerPool.getName());
+		}
+		// body is already materialized for the record, so it is not copied
+		final ESBMessage esbMessage = message.copy(context, true, true, false);
+		final Object asyncContext = asyncProcessingPool.saveContext(null, _nextAction, DataStructures.moveToNewList(context.getExecutionStack()), context.getStackErrorHandler(),
+				context.getStackPos(), message.getVariables(), System.currentTimeMillis() + _timeout);
+		try {
+			_producer.send(record, (metadata, exception) -> workerPool.getExecutorService().execute(() -> {
+				Context workerContext = workerPool.getContext();
+				Action action = asyncProcessingPool.restoreContext(asyncContext, workerContext, esbMessage);
+				try {
+					if (action == null) {
+						logger.warn("AsyncContext already expired for record sent to topic " + _topic);
+					} else if (exception == null) {
+						esbMessage.getVariables().put("recordMetadata", metadata);
+						action.process(workerContext, esbMessage);
+					} else {
+						esbMessage.reset(BodyType.EXCEPTION, exception);
+						if (!workerContext.getStackPos().isEmpty()) {
+							workerContext.unwindStack();
+						}
+						processException(workerContext, esbMessage);
+					}
+				} catch (Exception e) {
+					logger.error("Exception while completing Kafka send", e);
+				} finally {
+					workerContext.getExecutionStack().clear();
+					workerContext.getStackErrorHandler().clear();
+					workerContext.getStackPos().clear();
+					workerPool.releaseContext(workerContext);
+				}
+			}));
+		} catch (RuntimeException e) {
+			asyncProcessingPool.cancelContext(asyncContext, context);
+			throw e;
+		}
+	}
+
+	@Override
+	protected Action nextAction(ExecutionContext execContext) {
+		return _workerPool == null || _inFlight != null ? super.nextAction(execContext) : null;
+	}
+
+	static byte[] encodeHeaderValue(Object value) {
+		if (value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+			return encodeDecimal(((Number) value).longValue());
+		}
+		String s = value instanceof String ? (String) value : value.toString();
+		return s.getBytes(ESBMessage.CHARSET_DEFAULT);
+	}
+
+	private static byte[] encodeDecimal(long value) {
+		if (value == Long.MIN_VALUE) {
+			return Long.toString(value).getBytes(ESBMessage.CHARSET_DEFAULT);
+		}
+		int len = value < 0 ? 2 : 1;
+		for (long v = Math.abs(value); v >= 10; v /= 10) {
+			++len;
+		}
+		byte[] result = new byte[len];
+		long v = Math.abs(value);
+		do {
+			result[--len] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v > 0);
+		if (value < 0) {
+			result[0] = '-';
+		}
+		return result;
 	}
 
 }
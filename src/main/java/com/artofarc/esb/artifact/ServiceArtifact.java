@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SSLContext;
 import javax.wsdl.Binding;
@@ -42,12 +43,17 @@ import com.artofarc.esb.TimerService;
 import com.artofarc.esb.action.*;
 import com.artofarc.esb.context.GlobalContext;
 import com.artofarc.esb.http.HttpCheckAlive;
+import com.artofarc.esb.http.HttpCircuitBreaker;
+import com.artofarc.esb.http.HttpConnectionPool;
+import com.artofarc.esb.http.HttpHedging;
+import com.artofarc.esb.http.HttpResponseCache;
 import com.artofarc.esb.http.HttpEndpoint;
 import com.artofarc.esb.http.HttpUrl;
 import com.artofarc.esb.jdbc.JDBCParameter;
 import com.artofarc.esb.jms.JMSConnectionData;
 import com.artofarc.esb.jms.JMSConsumer;
 import com.artofarc.esb.jms.JMSConsumerGroup;
+import com.artofarc.esb.jms.JMSWorkerScaler;
 import com.artofarc.esb.service.*;
 import com.artofarc.esb.servlet.HttpConsumer;
 import com.artofarc.esb.servlet.HttpResponseAction;
@@ -134,6 +140,15 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 				if (jmsBinding.getAt() != null && jmsBinding.getWorkerCount() > 1) {
 					throw new ValidationException(this, "With at only one worker is allowed");
 				}
+				if (jmsBinding.getErrorQueue() != null && jmsBinding.getPollInterval() == 0) {
+					throw new ValidationException(this, "errorQueue requires polling");
+				}
+				if (jmsBinding.isAggregate() && jmsBinding.getPollInterval() == 0) {
+					throw new ValidationException(this, "aggregate requires polling");
+				}
+				if (jmsBinding.getPrefetch() > 0 && (jmsBinding.getPollInterval() == 0 || jmsBinding.isAggregate())) {
+					throw new ValidationException(this, "prefetch requires polling without aggregate");
+				}
 				int minWorkerCount = jmsBinding.getMinWorkerCount() != null ? jmsBinding.getMinWorkerCount() : jmsBinding.getWorkerCount();
 				List<JMSConnectionData> jmsConnectionDataList = JMSConnectionData.create(globalContext, jmsBinding.getJndiConnectionFactory(), jmsBinding.getUserName(), jmsBinding.getPassword(), jmsBinding.getClientID());
 				if (jmsBinding.isActivePassive() && jmsConnectionDataList.size() != 2) {
@@ -152,15 +167,16 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 					schemaSet = resolveSchemaSet(globalContext, jmsBinding.getTopicName().getSchemaURI());
 					rootElement = jmsBinding.getTopicName().getXmlElement();
 				}
+				Supplier<JMSWorkerScaler> workerScaler = createJMSWorkerScaler(globalContext, jmsBinding.getWorkerScaling());
 				if (jmsConnectionDataList.size() == 1 || jmsBinding.isActivePassive()) {
 					_consumerPort = new JMSConsumer(globalContext, getURI(), workerPool, jmsConnectionDataList.get(0), jmsBinding.getJndiDestination(), queueName, topicName, schemaSet,
 							rootElement, jmsBinding.getSubscription(), jmsBinding.isNoLocal(), jmsBinding.isShared(), jmsBinding.getMessageSelector(), jmsBinding.getWorkerCount(),
-							minWorkerCount, jmsBinding.getBatchSize(), jmsBinding.getBatchTime(), jmsBinding.getPollInterval(), jmsBinding.getTimeUnit(), jmsBinding.getAt());
+							minWorkerCount, jmsBinding.getBatchSize(), jmsBinding.getBatchTime(), jmsBinding.getPollInterval(), jmsBinding.getTimeUnit(), jmsBinding.getAt(), jmsBinding.getErrorQueue(), jmsBinding.isAggregate(), jmsBinding.getPrefetch(), workerScaler.get());
 					globalContext.checkBindJmsConsumer(getConsumerPort());
 				} else {
 					_consumerPort = new JMSConsumerGroup(globalContext, getURI(), workerPool, jmsConnectionDataList, jmsBinding.getJndiDestination(), queueName, topicName, schemaSet,
 							rootElement, jmsBinding.getSubscription(), jmsBinding.isNoLocal(), jmsBinding.isShared(), jmsBinding.getMessageSelector(), jmsBinding.getWorkerCount(),
-							minWorkerCount, jmsBinding.getBatchSize(), jmsBinding.getBatchTime(), jmsBinding.getPollInterval(), jmsBinding.getTimeUnit(), jmsBinding.getAt());
+							minWorkerCount, jmsBinding.getBatchSize(), jmsBinding.getBatchTime(), jmsBinding.getPollInterval(), jmsBinding.getTimeUnit(), jmsBinding.getAt(), jmsBinding.getErrorQueue(), jmsBinding.isAggregate(), jmsBinding.getPrefetch(), workerScaler);
 				}
 				break;
 			case TIMER:
@@ -175,7 +191,8 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 				break;
 			case KAFKA:
 				Service.KafkaBinding kafkaBinding = checkBindingPresent(service.getKafkaBinding());
-				_consumerPort = new KafkaConsumerPort(getURI(), resolveWorkerPool(kafkaBinding.getWorkerPool()), kafkaBinding.getPollInterval(), createProperties(kafkaBinding.getProperty(), globalContext), kafkaBinding.getTopic(), kafkaBinding.getTimeout());
+				_consumerPort = new KafkaConsumerPort(getURI(), resolveWorkerPool(kafkaBinding.getWorkerPool()), kafkaBinding.getPollInterval(), createProperties(kafkaBinding.getProperty(), globalContext), kafkaBinding.getTopic(), kafkaBinding.getTimeout(),
+						KafkaConsumerPort.Ordering.valueOf(kafkaBinding.getOrdering().name()));
 				globalContext.checkBindKafkaConsumer(getConsumerPort());
 				break;
 			default:
@@ -254,9 +271,37 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 			} else if (http.getCheckAliveInterval() != null) {
 				httpCheckAlive = new HttpCheckAlive();
 			}
+			HttpCircuitBreaker circuitBreaker = null;
+			if (http.getCircuitBreaker() != null) {
+				Http.CircuitBreaker cb = http.getCircuitBreaker();
+				circuitBreaker = new HttpCircuitBreaker(cb.getFailureRateThreshold(), cb.getSlowCallRateThreshold(), cb.getSlowCallDuration(), cb.getMinimumCalls(), cb.getWindow(),
+						cb.getOpenDuration(), cb.getHalfOpenCalls(), cb.getMaxEjectionPercent());
+			}
 			HttpClient.Version version = http.getVersion() != null ? HttpClient.Version.valueOf(http.getVersion().replace('/', '_').replace('.', '_')) : null;
+			HttpConnectionPool connectionPool = null;
+			if (http.getConnectionPool() != null) {
+				if (version != null || http.getProxyUrl() != null) {
+					throw new ValidationException(this, getLineNumber(http), "connectionPool requires HTTP/1 without proxyUrl");
+				}
+				connectionPool = new HttpConnectionPool(http.getConnectionPool().getMaxConnections(), http.getConnectionPool().getIdleTimeout());
+			}
+			HttpHedging hedging = null;
+			if (http.getHedging() != null) {
+				if (version == null) {
+					throw new ValidationException(this, getLineNumber(http), "hedging requires version");
+				}
+				hedging = new HttpHedging(http.getHedging().getDelay(), http.getHedging().getPercentile(), http.getHedging().getBudget());
+			}
+			HttpResponseCache responseCache = null;
+			if (http.getResponseCache() != null) {
+				if (version == null) {
+					throw new ValidationException(this, getLineNumber(http), "responseCache requires version");
+				}
+				Http.ResponseCache rc = http.getResponseCache();
+				responseCache = new HttpResponseCache(rc.getMaxSize(), rc.getMaxEntrySize(), rc.getSpillDirectory() != null ? globalContext.bindProperties(rc.getSpillDirectory()) : null, rc.getMaxSpillSize());
+			}
 			HttpEndpoint httpEndpoint = new HttpEndpoint(http.getName(), endpoints, http.isMultiThreaded(), http.getUsername(), http.getPassword(), http.getConnectTimeout(),
-				http.getRetries() != null ? http.getRetries() : endpoints.size() - 1, http.getCheckAliveInterval(), httpCheckAlive, getModificationTime(), proxy, sslContext, version);
+				http.getRetries() != null ? http.getRetries() : endpoints.size() - 1, http.getCheckAliveInterval(), httpCheckAlive, getModificationTime(), proxy, sslContext, version, getLoadBalancing(http), circuitBreaker, connectionPool, hedging, responseCache);
 			httpEndpoint = globalContext.getHttpEndpointRegistry().validate(httpEndpoint);
 			String multipartSubtype = http.getMultipartSubtype() != null ? http.getMultipartSubtype().value() : http.getMultipartRequest() != null ? "related" : null;
 			if (http.getVersion() != null) {
@@ -292,13 +337,14 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 			}
 			addAction(list, new JMSAction(globalContext, jmsConnectionData, jms.isTransacted(), jms.isActivePassive(), jms.getJndiDestination(), queueName, topicName,
 					resolveWorkerPool(jms.getWorkerPool()), jms.isBytesMessage(), jms.getDeliveryMode(), jms.getPriority(), jms.getTimeToLive(), jms.getDeliveryDelay(),
-					jms.getExpiryQueue(), jms.isReceiveFromTempQueue(), jms.getReplyQueue(), jms.getReceiveSelector(), multipartSubtype, jms.getMultipart(), schemaSet), location);
+					jms.getExpiryQueue(), jms.isReceiveFromTempQueue(), jms.getReplyQueue(), jms.getReceiveSelector(), jms.isSharedReplyConsumer(), multipartSubtype, jms.getMultipart(), schemaSet), location);
 			break;
 		}
 		case "produceKafka": {
 			ProduceKafka produceKafka = (ProduceKafka) actionElement.getValue();
 			addAction(list, new KafkaProduceAction(globalContext, createProperties(produceKafka.getProperty(), globalContext), produceKafka.getTopic(),
-					produceKafka.getPartition(), produceKafka.isBinary()), location);
+					produceKafka.getPartition(), produceKafka.isBinary(), resolveWorkerPool(produceKafka.getWorkerPool()), produceKafka.getTimeout(), produceKafka.isFireAndForget(),
+					produceKafka.getMaxInFlight()), location);
 			break;
 		}
 		case "sendMail": {
@@ -526,7 +572,7 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 		case "cache":
 			Cache cache = (Cache) actionElement.getValue();
 			addAction(list, new CacheAction(globalContext, cache.getKey(), cache.isNullable(), cache.getValue(),
-				Action.linkList(transform(globalContext, cache.getAction(), null)), cache.isWriteOnly(), cache.getName(), cache.getMaxSize(), cache.getTtl()), location);
+				Action.linkList(transform(globalContext, cache.getAction(), null)), cache.isWriteOnly(), cache.getName(), cache.getMaxSize(), cache.isConcurrent(), cache.getMaxOffHeapSize(), cache.getTtl(), cache.isSingleFlight(), cache.getStaleWhileRevalidate()), location);
 			_usedCaches.add(cache.getName());
 			break;
 		case "uncache":
@@ -628,6 +674,27 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 		return null;
 	}
 
+	private Supplier<JMSWorkerScaler> createJMSWorkerScaler(GlobalContext globalContext, Service.JmsBinding.WorkerScaling workerScaling) throws Exception {
+		if (workerScaling == null) {
+			return JMSWorkerScaler::new;
+		}
+		java.lang.ClassLoader classLoader = resolveClassLoader(globalContext, workerScaling.getClassLoader());
+		@SuppressWarnings("unchecked")
+		Class<? extends JMSWorkerScaler> cls = workerScaling.getClazz() != null ? (Class<? extends JMSWorkerScaler>) Class.forName(workerScaling.getClazz(), true, classLoader) : JMSWorkerScaler.class;
+		java.lang.reflect.Constructor<? extends JMSWorkerScaler> con = cls.getConstructor();
+		return () -> {
+			JMSWorkerScaler workerScaler;
+			try {
+				workerScaler = con.newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw ReflectionUtils.convert(e, RuntimeException.class);
+			}
+			workerScaler.init(workerScaling.getRampUpThreshold(), workerScaling.getRampDownThreshold(), workerScaling.getRampUpDelay(), workerScaling.getRampDownDelay(),
+					workerScaling.getHysteresis(), workerScaling.isBrowseQueue());
+			return workerScaler;
+		};
+	}
+
 	private XSSchemaSet resolveSchemaSet(GlobalContext globalContext, String schemaURI) throws Exception {
 		if (schemaURI != null) {
 			SchemaArtifact schemaArtifact = loadArtifact(schemaURI);
@@ -706,6 +773,21 @@ public final class ServiceArtifact extends AbstractServiceArtifact {
 		return params;
 	}
 
+	private static HttpEndpoint.LoadBalancing getLoadBalancing(Http http) {
+		switch (http.getLoadBalancing()) {
+		case WEIGHTED_ROUND_ROBIN:
+			return HttpEndpoint.LoadBalancing.WEIGHTED_ROUND_ROBIN;
+		case LEAST_OUTSTANDING_REQUESTS:
+			return HttpEndpoint.LoadBalancing.LEAST_OUTSTANDING_REQUESTS;
+		case POWER_OF_TWO_CHOICES:
+			return HttpEndpoint.LoadBalancing.POWER_OF_TWO_CHOICES;
+		case PEAK_EWMA:
+			return HttpEndpoint.LoadBalancing.PEAK_EWMA;
+		default:
+			return HttpEndpoint.LoadBalancing.ROUND_ROBIN;
+		}
+	}
+
 	private static CookiePolicy getCookiePolicy(Http http) {
 		if (http.getCookiePolicy() != null) {
 			switch (http.getCookiePolicy()) {
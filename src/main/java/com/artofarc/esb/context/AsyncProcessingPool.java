@@ -106,6 +106,17 @@ public final class AsyncProcessingPool implements Runnable {
 		return asyncContext;
 	}
 
+	/**
+	 * Reverts saveContext if the asynchronous operation could not be started, so the exception can be handled by the caller.
+	 */
+	public void cancelContext(Object correlationID, Context context) {
+		AsyncContext asyncContext = _asyncContexts.remove(correlationID);
+		if (asyncContext != null) {
+			_expiries.remove(asyncContext);
+			context.getExecutionStack().addAll(asyncContext.executionStack);
+		}
+	}
+
 	public Action restoreContext(Object correlationID, Context context, ESBMessage message) {
 		AsyncContext asyncContext = _asyncContexts.remove(correlationID);
 		if (asyncContext != null) {
@@ -18,6 +18,7 @@ package com.artofarc.esb.context;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -43,6 +44,7 @@ import javax.xml.xquery.XQPreparedExpression;
 import javax.xml.xquery.XQSequence;
 
 import org.jvnet.fastinfoset.sax.FastInfosetReader;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
@@ -60,6 +62,7 @@ import com.artofarc.util.XQuerySource;
 public final class Context extends AbstractContext {
 
 	public static final String XML_OUTPUT_INDENT = System.getProperty("esb0.xmlOutputIndent", "yes");
+	private static final long TIME_GAUGE_THRESHOLD = Long.parseLong(System.getProperty("esb0.timeGauge.threshold", "250"));
 
 	private final PoolContext _poolContext;
 	private final Transformer _transformer;
@@ -67,6 +70,10 @@ public final class Context extends AbstractContext {
 	private final XQSequence _xqSequence;
 	private final Map<XQuerySource, XQPreparedExpression> _mapXQ = new HashMap<>();
 	private final TimeGauge _timeGauge = new TimeGauge(logger);
+	private final TimeGauge _actionTimeGauge = new TimeGauge(LoggerFactory.getLogger(Action.class.getName() + "TimeGauge"), TIME_GAUGE_THRESHOLD, false);
+	// Buffers for the pipeline fragments of (nested) Action.process invocations
+	private final ArrayList<Action> _pipeline = new ArrayList<>();
+	private final ArrayList<ExecutionContext> _pipelineResources = new ArrayList<>();
 	private final Deque<Action> _executionStack = new ArrayDeque<>();
 	private final Deque<Action> _stackErrorHandler = new ArrayDeque<>();
 	private final Deque<Integer> _stackPos = new ArrayDeque<>();
@@ -107,7 +114,7 @@ public final class Context extends AbstractContext {
 	public void unwindStack() {
 		int stackPos = _stackPos.pop();
 		while (_executionStack.size() > stackPos) {
-			_executionStack.pop();
+			_executionStack.pop().unwound();
 		}
 	}
 
@@ -119,6 +126,18 @@ public final class Context extends AbstractContext {
 		return _timeGauge;
 	}
 
+	public TimeGauge getActionTimeGauge() {
+		return _actionTimeGauge;
+	}
+
+	public ArrayList<Action> getPipeline() {
+		return _pipeline;
+	}
+
+	public ArrayList<ExecutionContext> getPipelineResources() {
+		return _pipelineResources;
+	}
+
 	public PoolContext getPoolContext() {
 		return _poolContext;
 	}
@@ -31,6 +31,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.OpenDataException;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.xml.transform.ErrorListener;
@@ -363,6 +365,11 @@ public final class GlobalContext extends Registry implements Runnable, com.artof
 		return factory.getResourceDescriptors();
 	}
 
+	public CompositeDataSupport[] getCacheStatistics() throws OpenDataException {
+		LRUCacheWithExpirationFactory<?, ?> factory = getResourceFactory(LRUCacheWithExpirationFactory.class);
+		return factory.getStatistics();
+	}
+
 	public String bindProperties(String exp) throws NamingException {
 		if (exp == null) return null;
 		StringBuilder builder = new StringBuilder();
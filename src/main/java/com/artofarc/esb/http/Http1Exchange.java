@@ -0,0 +1,593 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.artofarc.util.IOUtils;
+
+/**
+ * One HTTP/1.1 request/response on a pooled connection. The connection is given back to the pool on {@link #release()} if the response has been read completely.
+ * <p>
+ * A reused connection might have been closed by the server in the meantime. If this shows when writing the request or reading the first response line,
+ * the request is repeated once on a new connection, provided that no request body has been sent yet and the method is idempotent or the server has not
+ * yet accepted the body announced with Expect: 100-continue.
+ */
+final class Http1Exchange {
+
+	private static final int MAX_LINE_LENGTH = 65536;
+	// like HttpURLConnection
+	private static final int EXPECT_CONTINUE_TIMEOUT = 5000;
+	private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+	private final HttpEndpoint _httpEndpoint;
+	private final HttpConnectionPool.Pool _pool;
+	private HttpConnectionPool.Connection _connection;
+	private final URI _uri;
+	private final boolean _head, _idempotent;
+	private final byte[] _requestHead;
+	private final OutputStream _requestBody;
+	private boolean _requestComplete, _discardRequestBody, _responseComplete, _reusable = true, _released;
+	private String _statusLine;
+	private int _responseCode = -1;
+	private final Map<String, List<String>> _headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	private InputStream _responseBody;
+
+	/**
+	 * The connection is given back to the pool if the request cannot be sent.
+	 */
+	Http1Exchange(HttpEndpoint httpEndpoint, HttpConnectionPool.Pool pool, HttpConnectionPool.Connection connection, URL url, String method, Collection<Map.Entry<String, Object>> headers, boolean doOutput,
+			Long contentLength, boolean expectContinue) throws IOException {
+
+		_httpEndpoint = httpEndpoint;
+		_pool = pool;
+		_connection = connection;
+		try {
+			try {
+				_uri = url.toURI();
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			_head = "HEAD".equals(method);
+			_idempotent = IDEMPOTENT_METHODS.contains(method);
+			_requestHead = createRequestHead(url, method, headers, doOutput, contentLength, expectContinue);
+			_requestBody = doOutput ? contentLength != null ? new FixedLengthOutputStream(contentLength) : new ChunkedOutputStream() : null;
+			try {
+				sendRequestHead();
+			} catch (IOException e) {
+				if (!canRetry(e, false)) {
+					throw e;
+				}
+				renewConnection();
+				sendRequestHead();
+			}
+		} catch (IOException | RuntimeException e) {
+			_released = true;
+			_pool.release(_connection, false);
+			throw e;
+		}
+	}
+
+	private byte[] createRequestHead(URL url, String method, Collection<Map.Entry<String, Object>> headers, boolean doOutput, Long contentLength, boolean expectContinue) throws IOException {
+		String file = url.getFile();
+		StringBuilder builder = new StringBuilder(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+		appendHeader(builder, "Host", url.getPort() >= 0 ? url.getHost() + ':' + url.getPort() : url.getHost());
+		Map<String, List<String>> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (Map.Entry<String, Object> entry : headers) {
+			List<String> values = requestHeaders.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+			if (entry.getValue() instanceof List) {
+				@SuppressWarnings("unchecked")
+				List<String> list = (List<String>) entry.getValue();
+				values.addAll(list);
+			} else {
+				values.add(entry.getValue().toString());
+			}
+		}
+		CookieHandler cookieHandler = CookieHandler.getDefault();
+		if (cookieHandler != null) {
+			requestHeaders.putAll(cookieHandler.get(_uri, requestHeaders));
+		}
+		for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+			switch (entry.getKey().toLowerCase()) {
+			case "host":
+			case "connection":
+			case "content-length":
+			case "transfer-encoding":
+				// framing is up to us
+				break;
+			default:
+				for (String value : entry.getValue()) {
+					appendHeader(builder, entry.getKey(), value);
+				}
+				break;
+			}
+		}
+		if (doOutput) {
+			if (contentLength != null) {
+				appendHeader(builder, HttpConstants.HTTP_HEADER_CONTENT_LENGTH, contentLength.toString());
+			} else {
+				appendHeader(builder, "Transfer-Encoding", "chunked");
+			}
+			if (expectContinue) {
+				appendHeader(builder, "Expect", "100-continue");
+			}
+		}
+		return builder.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private void sendRequestHead() throws IOException {
+		_connection._out.write(_requestHead);
+		if (_requestBody == null) {
+			_connection._out.flush();
+			_requestComplete = true;
+		}
+	}
+
+	/**
+	 * @param bodyUnsent Whether the server will not see any of the request body even if the request has one
+	 */
+	private boolean canRetry(IOException e, boolean bodyUnsent) {
+		return _connection._reused && (bodyUnsent || _requestBody == null && _idempotent) && !(e instanceof SocketTimeoutException || e instanceof ProtocolException);
+	}
+
+	private void renewConnection() throws IOException {
+		_connection = _pool.renew(_connection, _httpEndpoint);
+	}
+
+	/**
+	 * @return false if the server has rejected the request body already
+	 */
+	private boolean isRequestBodyWritable() throws IOException {
+		if (_discardRequestBody) {
+			return false;
+		}
+		if (_requestComplete) {
+			throw new IOException("Stream closed");
+		}
+		return true;
+	}
+
+	private static void appendHeader(StringBuilder builder, String name, String value) {
+		if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("Illegal character in value of header " + name);
+		}
+		builder.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	OutputStream getOutputStream() throws ProtocolException {
+		if (_requestBody == null) {
+			throw new ProtocolException("Request has no body");
+		}
+		return _requestBody;
+	}
+
+	/**
+	 * Waits for the server to accept the request body announced with Expect: 100-continue.
+	 *
+	 * @return false if the server has already sent the final response, the request body is discarded then
+	 */
+	boolean awaitContinue() throws IOException {
+		int responseCode;
+		for (;;) {
+			try {
+				responseCode = readInterimResponse();
+				break;
+			} catch (SocketTimeoutException e) {
+				// server does not support Expect, send the request body anyway
+				return true;
+			} catch (IOException e) {
+				if (!canRetry(e, true)) {
+					throw e;
+				}
+				renewConnection();
+				sendRequestHead();
+			}
+		}
+		if (responseCode == 100) {
+			return true;
+		}
+		_discardRequestBody = true;
+		_requestComplete = true;
+		_reusable = false;
+		setResponse(responseCode);
+		return false;
+	}
+
+	private int readInterimResponse() throws IOException {
+		_connection._out.flush();
+		final int timeout = _connection._socket.getSoTimeout();
+		_connection._socket.setSoTimeout(timeout > 0 ? Math.min(timeout, EXPECT_CONTINUE_TIMEOUT) : EXPECT_CONTINUE_TIMEOUT);
+		try {
+			int responseCode;
+			do {
+				responseCode = readResponseHead();
+			} while (responseCode > 100 && responseCode < 200);
+			return responseCode;
+		} finally {
+			_connection._socket.setSoTimeout(timeout);
+		}
+	}
+
+	int getResponseCode() throws IOException {
+		if (_responseCode < 0) {
+			if (!_requestComplete) {
+				_requestBody.close();
+			}
+			int responseCode;
+			for (;;) {
+				try {
+					responseCode = readResponseHead();
+					break;
+				} catch (IOException e) {
+					if (!canRetry(e, false)) {
+						throw e;
+					}
+					renewConnection();
+					sendRequestHead();
+				}
+			}
+			// skip interim responses like 100 Continue
+			while (responseCode >= 100 && responseCode < 200) {
+				responseCode = readResponseHead();
+			}
+			setResponse(responseCode);
+		}
+		return _responseCode;
+	}
+
+	private int readResponseHead() throws IOException {
+		String statusLine = readLine();
+		if (statusLine == null) {
+			throw new EOFException("Connection closed before response from " + _uri);
+		}
+		if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.")) {
+			throw new ProtocolException("Invalid status line: " + statusLine);
+		}
+		int responseCode;
+		try {
+			responseCode = Integer.parseInt(statusLine.substring(9, 12));
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid status line: " + statusLine);
+		}
+		_statusLine = statusLine;
+		_headers.clear();
+		for (String line; !(line = readHeaderLine()).isEmpty();) {
+			int i = line.indexOf(':');
+			if (i <= 0) {
+				throw new ProtocolException("Invalid header line: " + line);
+			}
+			_headers.computeIfAbsent(line.substring(0, i).trim(), k -> new ArrayList<>()).add(line.substring(i + 1).trim());
+		}
+		return responseCode;
+	}
+
+	private String readHeaderLine() throws IOException {
+		String line = readLine();
+		if (line == null) {
+			throw new EOFException("Connection closed within response header from " + _uri);
+		}
+		return line;
+	}
+
+	private void setResponse(int responseCode) throws IOException {
+		if (_statusLine.startsWith("HTTP/1.0") || "close".equalsIgnoreCase(getHeaderField("Connection"))) {
+			_reusable = false;
+		}
+		CookieHandler cookieHandler = CookieHandler.getDefault();
+		if (cookieHandler != null) {
+			cookieHandler.put(_uri, _headers);
+		}
+		String contentLength = getHeaderField(HttpConstants.HTTP_HEADER_CONTENT_LENGTH);
+		if (_head || responseCode == 204 || responseCode == 304) {
+			_responseBody = InputStream.nullInputStream();
+			_responseComplete = true;
+		} else if ("chunked".equalsIgnoreCase(getHeaderField("Transfer-Encoding"))) {
+			_responseBody = new ChunkedInputStream();
+		} else if (contentLength != null) {
+			long length;
+			try {
+				length = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				length = -1L;
+			}
+			if (length < 0) {
+				_reusable = false;
+				throw new ProtocolException("Invalid Content-Length: " + contentLength);
+			}
+			_responseBody = new FixedLengthInputStream(length);
+		} else {
+			// delimited by end of connection
+			_reusable = false;
+			_responseBody = _connection._in;
+		}
+		_responseCode = responseCode;
+	}
+
+	String getHeaderField(String name) {
+		List<String> values = _headers.get(name);
+		return values != null ? values.get(0) : null;
+	}
+
+	Map<String, List<String>> getHeaders() {
+		return _headers;
+	}
+
+	InputStream getInputStream() throws IOException {
+		getResponseCode();
+		return _responseBody;
+	}
+
+	void release() {
+		if (!_released) {
+			_released = true;
+			boolean reusable = _reusable && _requestComplete && _responseComplete;
+			try {
+				reusable &= _connection._in.available() == 0;
+			} catch (IOException e) {
+				reusable = false;
+			}
+			_pool.release(_connection, reusable);
+		}
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder builder = new StringBuilder(64);
+		for (int c; (c = _connection._in.read()) != '\n';) {
+			if (c < 0) {
+				if (builder.length() == 0) {
+					return null;
+				}
+				throw new EOFException("Unexpected end of line");
+			}
+			if (builder.length() == MAX_LINE_LENGTH) {
+				throw new ProtocolException("Line too long");
+			}
+			builder.append((char) c);
+		}
+		int length = builder.length();
+		if (length > 0 && builder.charAt(length - 1) == '\r') {
+			builder.setLength(length - 1);
+		}
+		return builder.toString();
+	}
+
+	private final class FixedLengthOutputStream extends OutputStream {
+
+		private long _remaining;
+
+		FixedLengthOutputStream(long contentLength) {
+			_remaining = contentLength;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (isRequestBodyWritable()) {
+				if (_remaining == 0) {
+					throw new IOException("Content-Length exceeded");
+				}
+				_connection._out.write(b);
+				--_remaining;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!isRequestBodyWritable()) {
+				return;
+			}
+			if (len > _remaining) {
+				throw new IOException("Content-Length exceeded");
+			}
+			_connection._out.write(b, off, len);
+			_remaining -= len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!_requestComplete) {
+				if (_remaining > 0) {
+					_reusable = false;
+					throw new IOException("Content-Length not reached, " + _remaining + " bytes missing");
+				}
+				_connection._out.flush();
+				_requestComplete = true;
+			}
+		}
+	}
+
+	private final class ChunkedOutputStream extends OutputStream {
+
+		private final byte[] _buffer = new byte[IOUtils.MTU];
+		private int _count;
+
+		private void writeChunk() throws IOException {
+			if (_count > 0) {
+				_connection._out.write((Integer.toHexString(_count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				_connection._out.write(_buffer, 0, _count);
+				_connection._out.write('\r');
+				_connection._out.write('\n');
+				_count = 0;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (isRequestBodyWritable()) {
+				if (_count == _buffer.length) {
+					writeChunk();
+				}
+				_buffer[_count++] = (byte) b;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!isRequestBodyWritable()) {
+				return;
+			}
+			while (len > 0) {
+				if (_count == _buffer.length) {
+					writeChunk();
+				}
+				int n = Math.min(len, _buffer.length - _count);
+				System.arraycopy(b, off, _buffer, _count, n);
+				_count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!_requestComplete) {
+				writeChunk();
+				_connection._out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				_connection._out.flush();
+				_requestComplete = true;
+			}
+		}
+	}
+
+	private final class FixedLengthInputStream extends InputStream {
+
+		private final byte[] _oneByte = new byte[1];
+		private long _remaining;
+
+		FixedLengthInputStream(long contentLength) {
+			if ((_remaining = contentLength) == 0) {
+				_responseComplete = true;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(_remaining, _connection._in.available());
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(_oneByte, 0, 1) < 0 ? -1 : _oneByte[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_remaining == 0) {
+				return -1;
+			}
+			int n = _connection._in.read(b, off, (int) Math.min(len, _remaining));
+			if (n < 0) {
+				_reusable = false;
+				throw new EOFException("Connection closed, " + _remaining + " bytes of response missing");
+			}
+			if ((_remaining -= n) == 0) {
+				_responseComplete = true;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			// remaining data is not drained, connection will not be reused
+		}
+	}
+
+	private final class ChunkedInputStream extends InputStream {
+
+		private final byte[] _oneByte = new byte[1];
+		private long _chunkRemaining;
+
+		private boolean nextChunk() throws IOException {
+			if (_responseComplete) {
+				return false;
+			}
+			if (_chunkRemaining == 0) {
+				String line = readLine();
+				if (line != null && line.isEmpty()) {
+					// CRLF terminating the previous chunk
+					line = readLine();
+				}
+				if (line == null) {
+					_reusable = false;
+					throw new EOFException("Connection closed within chunked response");
+				}
+				int i = line.indexOf(';');
+				try {
+					_chunkRemaining = Long.parseLong((i >= 0 ? line.substring(0, i) : line).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Invalid chunk size: " + line);
+				}
+				if (_chunkRemaining == 0) {
+					// skip trailers
+					for (String trailer; (trailer = readLine()) != null && !trailer.isEmpty(););
+					_responseComplete = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(_chunkRemaining, _connection._in.available());
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(_oneByte, 0, 1) < 0 ? -1 : _oneByte[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			int n = _connection._in.read(b, off, (int) Math.min(len, _chunkRemaining));
+			if (n < 0) {
+				_reusable = false;
+				throw new EOFException("Connection closed within chunk");
+			}
+			_chunkRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			// remaining data is not drained, connection will not be reused
+		}
+	}
+
+}
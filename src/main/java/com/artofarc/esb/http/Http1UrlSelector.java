@@ -23,7 +23,15 @@ import java.net.URL;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
 import javax.net.ssl.HttpsURLConnection;
 
 import com.artofarc.esb.context.WorkerPool;
@@ -35,58 +43,128 @@ public final class Http1UrlSelector extends HttpUrlSelector {
 		private final HttpEndpoint _httpEndpoint;
 		private final int _pos;
 		private final HttpURLConnection _httpURLConnection;
+		private final Http1Exchange _exchange;
 		private final OutputStream _outputStream;
+		private final long _startTime = System.nanoTime();
 		private int _responseCode = -1;
+		// whether the outcome has been accounted for the circuit breaker
+		private boolean _recorded;
 
 		HttpUrlConnection(HttpEndpoint httpEndpoint, int pos, HttpURLConnection httpURLConnection, OutputStream outputStream) {
 			_httpEndpoint = httpEndpoint;
 			_pos = pos;
 			_httpURLConnection = httpURLConnection;
+			_exchange = null;
 			_outputStream = outputStream;
 			inUse.incrementAndGet(pos);
 		}
 
+		HttpUrlConnection(HttpEndpoint httpEndpoint, int pos, Http1Exchange exchange) {
+			_httpEndpoint = httpEndpoint;
+			_pos = pos;
+			_httpURLConnection = null;
+			_exchange = exchange;
+			_outputStream = null;
+			inUse.incrementAndGet(pos);
+		}
+
 		public HttpUrl getHttpUrl() {
 			return _httpEndpoint.getHttpUrls().get(_pos);
 		}
 
 		public OutputStream getOutputStream() throws IOException {
+			if (_exchange != null) {
+				return _exchange.getOutputStream();
+			}
 			return _outputStream != null ? _outputStream : _httpURLConnection.getOutputStream();
 		}
 
 		public int getResponseCode() throws IOException {
 			if (_responseCode < 0) {
-				_responseCode = _httpURLConnection.getResponseCode();
+				try {
+					_responseCode = _exchange != null ? _exchange.getResponseCode() : _httpURLConnection.getResponseCode();
+				} catch (IOException e) {
+					if (!_recorded) {
+						_recorded = true;
+						recordFailure(_pos);
+					}
+					throw e;
+				}
+				_recorded = true;
 				HttpCheckAlive httpCheckAlive = _httpEndpoint.getHttpCheckAlive();
-				if (httpCheckAlive != null && !httpCheckAlive.isAlive(_responseCode, _httpURLConnection::getHeaderField)) {
+				if (httpCheckAlive != null && !httpCheckAlive.isAlive(_responseCode, _exchange != null ? _exchange::getHeaderField : _httpURLConnection::getHeaderField)) {
+					recordFailure(_pos);
 					if (_httpEndpoint.getCheckAliveInterval() != null) {
 						setActive(_httpEndpoint, _pos, false);
 					}
-					if (_httpURLConnection.getErrorStream() != null) {
+					if (_exchange != null) {
+						// Consume error message
+						_exchange.getInputStream().transferTo(OutputStream.nullOutputStream());
+					} else if (_httpURLConnection.getErrorStream() != null) {
 						// Consume error message
 						_httpURLConnection.getErrorStream().transferTo(OutputStream.nullOutputStream());
 					}
 					throw new HttpCheckAlive.ConnectException(getHttpUrl().getUrlStr() + " is not alive. Response code " + _responseCode);
 				}
+				recordLatency(_httpEndpoint, _pos, System.nanoTime() - _startTime);
 			}
 			return _responseCode;
 		}
 
 		public Map<String, List<String>> getHeaders() {
-			return _httpURLConnection.getHeaderFields();
+			return _exchange != null ? _exchange.getHeaders() : _httpURLConnection.getHeaderFields();
 		}
 
 		public InputStream getInputStream() throws IOException {
+			if (_exchange != null) {
+				getResponseCode();
+				return _exchange.getInputStream();
+			}
 			return getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ? _httpURLConnection.getInputStream() : _httpURLConnection.getErrorStream();
 		}
 
 		public void close() {
 			inUse.decrementAndGet(_pos);
+			if (_exchange != null) {
+				_exchange.release();
+			}
 		}
 	}
 
+	private final HttpConnectionPool.Pool[] _pools;
+	private final ScheduledFuture<?> _evictionFuture;
+
 	Http1UrlSelector(HttpEndpoint httpEndpoint, WorkerPool workerPool) {
 		super(httpEndpoint, workerPool);
+		HttpConnectionPool connectionPool = httpEndpoint.getConnectionPool();
+		if (connectionPool != null) {
+			_pools = new HttpConnectionPool.Pool[httpEndpoint.getHttpUrls().size()];
+			for (int i = 0; i < _pools.length; ++i) {
+				_pools[i] = connectionPool.new Pool(httpEndpoint.getHttpUrls().get(i));
+			}
+			ScheduledExecutorService scheduledExecutorService = workerPool.getScheduledExecutorService();
+			if (scheduledExecutorService == null) {
+				scheduledExecutorService = workerPool.getPoolContext().getGlobalContext().getDefaultWorkerPool().getScheduledExecutorService();
+			}
+			_evictionFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
+				for (HttpConnectionPool.Pool pool : _pools) {
+					pool.evictExpired();
+				}
+			}, connectionPool.getIdleTimeout(), connectionPool.getIdleTimeout(), TimeUnit.SECONDS);
+		} else {
+			_pools = null;
+			_evictionFuture = null;
+		}
+	}
+
+	@Override
+	protected void stopped() {
+		if (_pools != null) {
+			_evictionFuture.cancel(false);
+			for (HttpConnectionPool.Pool pool : _pools) {
+				pool.close();
+			}
+		}
 	}
 
 	@Override
@@ -120,6 +198,45 @@ public final class Http1UrlSelector extends HttpUrlSelector {
 			HttpUrl httpUrl = httpEndpoint.getHttpUrls().get(pos);
 			URL url = appendUrl != null && appendUrl.length() > 0 ? new URL(httpUrl.getUrlStr() + appendUrl) : httpUrl.getURL();
 			HttpUrlConnection httpUrlConnection = null;
+			if (_pools != null) {
+				// check whether server is willing to respond (before sending data)
+				boolean checkServer = retryCount > getUnavailableCount();
+				boolean doOutput = doOutput(method, contentLength);
+				try {
+					Http1Exchange exchange = new Http1Exchange(httpEndpoint, _pools[pos], _pools[pos].lease(httpEndpoint, timeout), url, method, headers, doOutput, contentLength, checkServer && doOutput);
+					httpUrlConnection = new HttpUrlConnection(httpEndpoint, pos, exchange);
+					if (checkServer && (!doOutput || !exchange.awaitContinue())) {
+						httpUrlConnection.getResponseCode();
+					}
+					_totalConnectionsCount.incrementAndGet();
+					return httpUrlConnection;
+				} catch (HttpConnectionPool.PoolExhaustedException e) {
+					// url is busy, not broken
+					if (--retryCount < 0) {
+						throw e;
+					}
+					continue;
+				} catch (IOException e) {
+					if (httpUrlConnection == null || !httpUrlConnection._recorded) {
+						recordFailure(pos);
+					}
+					if (httpEndpoint.getCheckAliveInterval() != null) {
+						setActive(httpEndpoint, pos, false);
+					}
+					if (httpUrlConnection != null) {
+						httpUrlConnection.close();
+					}
+					if (--retryCount < 0) {
+						throw e;
+					}
+					continue;
+				} catch (RuntimeException e) {
+					if (httpUrlConnection != null) {
+						httpUrlConnection.close();
+					}
+					throw e;
+				}
+			}
 			try {
 				HttpURLConnection conn = createHttpURLConnection(httpEndpoint, url);
 				conn.setReadTimeout(timeout);
@@ -169,6 +286,9 @@ public final class Http1UrlSelector extends HttpUrlSelector {
 				_totalConnectionsCount.incrementAndGet();
 				return httpUrlConnection;
 			} catch (IOException e) {
+				if (httpUrlConnection == null || !httpUrlConnection._recorded) {
+					recordFailure(pos);
+				}
 				if (httpEndpoint.getCheckAliveInterval() != null) {
 					setActive(httpEndpoint, pos, false);
 				}
@@ -182,4 +302,21 @@ public final class Http1UrlSelector extends HttpUrlSelector {
 		}
 	}
 
+	@Override
+	public CompositeDataSupport[] getConnectionPoolStates() throws OpenDataException {
+		if (_pools == null) {
+			return null;
+		}
+		String[] itemNames = { "URL", "leased", "idle", "created", "reused", "evicted" };
+		OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG };
+		CompositeType rowType = new CompositeType("ConnectionPoolState", "State of the connection pool per url", itemNames, itemNames, itemTypes);
+		CompositeDataSupport[] result = new CompositeDataSupport[_pools.length];
+		for (int i = 0; i < _pools.length; ++i) {
+			HttpConnectionPool.Pool pool = _pools[i];
+			Object[] itemValues = { getFirstHttpEndpoint().getHttpUrls().get(i).toString(), pool.getLeased(), pool.getIdle(), pool.getCreated(), pool.getReused(), pool.getEvicted() };
+			result[i] = new CompositeDataSupport(rowType, itemNames, itemValues);
+		}
+		return result;
+	}
+
 }
@@ -22,18 +22,71 @@ import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
 
 import com.artofarc.esb.context.WorkerPool;
+import com.artofarc.util.ByteBufferListInputStream;
+import com.artofarc.util.ReflectionUtils;
 
 public final class Http2UrlSelector extends HttpUrlSelector {
 
+	private static final long bufferResponseLimit = Long.parseLong(System.getProperty("esb0.http2.bufferResponseLimit", "65536"));
+
+	/**
+	 * Responses with a known length up to bufferResponseLimit are received completely into the ByteBuffers delivered by the HttpClient,
+	 * larger or chunked responses are streamed.
+	 */
+	private static final HttpResponse.BodyHandler<InputStream> bodyHandler = responseInfo -> {
+		OptionalLong contentLength = responseInfo.headers().firstValueAsLong(HttpConstants.HTTP_HEADER_CONTENT_LENGTH);
+		if (contentLength.isPresent() && contentLength.getAsLong() <= bufferResponseLimit) {
+			return new ByteBufferListSubscriber();
+		}
+		return HttpResponse.BodySubscribers.ofInputStream();
+	};
+
 	private final HttpClient _httpClient;
+	private final WorkerPool _workerPool;
+	private final HttpHedging.Tracker _hedgingTracker;
+	private final ScheduledExecutorService _scheduledExecutorService;
+	private final HttpResponseCache.Store _responseCache;
 
 	public Http2UrlSelector(HttpEndpoint httpEndpoint, WorkerPool workerPool) {
 		super(httpEndpoint, workerPool);
+		_workerPool = workerPool;
+		if (httpEndpoint.getHedging() != null) {
+			_hedgingTracker = httpEndpoint.getHedging().new Tracker();
+			ScheduledExecutorService scheduledExecutorService = workerPool.getScheduledExecutorService();
+			if (scheduledExecutorService == null) {
+				scheduledExecutorService = workerPool.getPoolContext().getGlobalContext().getDefaultWorkerPool().getScheduledExecutorService();
+			}
+			_scheduledExecutorService = scheduledExecutorService;
+		} else {
+			_hedgingTracker = null;
+			_scheduledExecutorService = null;
+		}
+		_responseCache = httpEndpoint.getResponseCache() != null ? httpEndpoint.getResponseCache().new Store() : null;
 		HttpGlobalContext httpGlobalContext = workerPool.getPoolContext().getGlobalContext().getHttpGlobalContext();
 		HttpClient.Builder builder = HttpClient.newBuilder().proxy(httpGlobalContext).version(httpEndpoint.getVersion()).connectTimeout(Duration.ofMillis(httpEndpoint.getConnectTimeout()));
 		if (httpGlobalContext.getCookieManager() != null) {
@@ -55,8 +108,36 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 		return httpEndpoint.getHttpCheckAlive().isAlive(httpResponse.statusCode(), name -> httpResponse.headers().firstValue(name).orElse(null));
 	}
 
+	@Override
+	protected void stopped() {
+		if (_responseCache != null) {
+			_responseCache.clear();
+		}
+	}
+
 	public HttpResponse<InputStream> send(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String appendUrl, boolean doOutput, CountDownLatch streamConsumed) throws Exception {
-		HttpResponse.BodyHandler<InputStream> bodyHandler = HttpResponse.BodyHandlers.ofInputStream();
+		if (_responseCache == null) {
+			return sendUncached(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed);
+		}
+		HttpRequest request = requestBuilder.uri(new URI(httpEndpoint.getHttpUrls().get(0).getUrlStr() + appendUrl)).build();
+		if (!_responseCache.isApplicable(request)) {
+			HttpResponse<InputStream> httpResponse = sendUncached(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed);
+			_responseCache.invalidate(appendUrl, request, httpResponse);
+			return httpResponse;
+		}
+		final long now = System.currentTimeMillis();
+		HttpResponseCache.Entry entry = _responseCache.lookup(appendUrl, request);
+		HttpResponse<InputStream> cachedResponse = getCachedResponse(httpEndpoint, requestBuilder, appendUrl, request, entry, now);
+		if (cachedResponse != null) {
+			return cachedResponse;
+		}
+		if (entry != null) {
+			entry.addConditionalHeaders(requestBuilder);
+		}
+		return cacheResponse(appendUrl, request, entry, sendUncached(httpEndpoint, requestBuilder, appendUrl, false, null), now);
+	}
+
+	private HttpResponse<InputStream> sendUncached(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String appendUrl, boolean doOutput, CountDownLatch streamConsumed) throws Exception {
 		HttpCheckAlive httpCheckAlive = httpEndpoint.getHttpCheckAlive();
 		for (int retryCount = httpEndpoint.getRetries();;) {
 			int pos = computeNextPos(httpEndpoint);
@@ -67,9 +148,31 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 			// check whether server is willing to respond (before sending data)
 			boolean checkServer = retryCount > getUnavailableCount();
 			requestBuilder.expectContinue(checkServer && doOutput);
+			HttpRequest request = requestBuilder.uri(uri).build();
+			if (isHedgeable(streamConsumed, request)) {
+				CompletableFuture<HttpResponse<InputStream>> future = new CompletableFuture<>();
+				HedgedExchange hedgedExchange = new HedgedExchange(httpEndpoint, requestBuilder, appendUrl, doOutput, (httpResponse, exc) -> {
+					if (exc != null) {
+						future.completeExceptionally(exc);
+					} else {
+						future.complete(httpResponse);
+					}
+				}, null, retryCount);
+				hedgedExchange.start(pos, request);
+				try {
+					return future.get();
+				} catch (ExecutionException e) {
+					retryCount -= hedgedExchange.getAttempts();
+					if (!(e.getCause() instanceof IOException) || retryCount < 0) {
+						throw ReflectionUtils.convert(e.getCause(), Exception.class);
+					}
+					continue;
+				}
+			}
 			inUse.incrementAndGet(pos);
+			final long startTime = System.nanoTime();
 			try {
-				HttpResponse<InputStream> httpResponse = _httpClient.send(requestBuilder.uri(uri).build(), bodyHandler);
+				HttpResponse<InputStream> httpResponse = _httpClient.send(request, bodyHandler);
 				if (httpCheckAlive != null && !httpCheckAlive.isAlive(httpResponse.statusCode(), name -> httpResponse.headers().firstValue(name).orElse(null))) {
 					if (retryCount > 0 && streamConsumed != null && streamConsumed.getCount() == 0) {
 						// body was streamed, data is gone, cannot retry
@@ -77,9 +180,11 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 					}
 					throw new HttpCheckAlive.ConnectException(uri + " is not alive. Response code " + httpResponse.statusCode());
 				}
+				recordResponseTime(httpEndpoint, pos, System.nanoTime() - startTime);
 				_totalConnectionsCount.incrementAndGet();
 				return httpResponse;
 			} catch (IOException e) {
+				recordFailure(pos);
 				if (httpEndpoint.getCheckAliveInterval() != null) {
 					setActive(httpEndpoint, pos, false);
 				}
@@ -95,11 +200,107 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 	public void sendAsync(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String appendUrl, boolean doOutput, CountDownLatch streamConsumed,
 			BiConsumer<HttpResponse<InputStream>, Throwable> fn, WorkerPool workerPool) {
 
-		sendAsync(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed, fn, workerPool, HttpResponse.BodyHandlers.ofInputStream(), httpEndpoint.getRetries());
+		if (_responseCache == null) {
+			sendAsync(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed, fn, workerPool, httpEndpoint.getRetries());
+			return;
+		}
+		HttpRequest request;
+		try {
+			request = requestBuilder.uri(new URI(httpEndpoint.getHttpUrls().get(0).getUrlStr() + appendUrl)).build();
+		} catch (URISyntaxException e) {
+			fn.accept(null, e);
+			return;
+		}
+		if (!_responseCache.isApplicable(request)) {
+			sendAsync(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed, (httpResponse, exc) -> {
+				if (httpResponse != null) {
+					_responseCache.invalidate(appendUrl, request, httpResponse);
+				}
+				fn.accept(httpResponse, exc);
+			}, workerPool, httpEndpoint.getRetries());
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		HttpResponseCache.Entry entry = _responseCache.lookup(appendUrl, request);
+		HttpResponse<InputStream> cachedResponse = getCachedResponse(httpEndpoint, requestBuilder, appendUrl, request, entry, now);
+		if (cachedResponse != null) {
+			// do not continue the flow in the calling thread
+			workerPool.getExecutorService().execute(() -> fn.accept(cachedResponse, null));
+			return;
+		}
+		if (entry != null) {
+			entry.addConditionalHeaders(requestBuilder);
+		}
+		sendAsync(httpEndpoint, requestBuilder, appendUrl, false, null, (httpResponse, exc) -> {
+			if (httpResponse != null) {
+				try {
+					httpResponse = cacheResponse(appendUrl, request, entry, httpResponse, now);
+				} catch (IOException e) {
+					httpResponse = null;
+					exc = e;
+				}
+			}
+			fn.accept(httpResponse, exc);
+		}, workerPool, httpEndpoint.getRetries());
+	}
+
+	/**
+	 * @return the stored response if it is fresh or may be served stale while being revalidated in background, otherwise null
+	 */
+	private HttpResponse<InputStream> getCachedResponse(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String key, HttpRequest request, HttpResponseCache.Entry entry, long now) {
+		if (entry != null && _responseCache.allowsStored(request)) {
+			boolean fresh = entry.isFresh(now);
+			if (fresh || entry.isStaleWhileRevalidate(now)) {
+				HttpResponse<InputStream> cachedResponse;
+				try {
+					cachedResponse = entry.toResponse(request, now);
+				} catch (IOException e) {
+					// spilled body is gone
+					_responseCache.recordMiss();
+					return null;
+				}
+				_responseCache.recordHit();
+				if (!fresh && entry.startRevalidation()) {
+					HttpRequest.Builder revalidationBuilder = requestBuilder.copy();
+					entry.addConditionalHeaders(revalidationBuilder);
+					sendAsync(httpEndpoint, revalidationBuilder, key, false, null, (httpResponse, exc) -> {
+						try {
+							if (httpResponse != null) {
+								cacheResponse(key, request, entry, httpResponse, now).body().close();
+							}
+						} catch (IOException e) {
+							HttpEndpointRegistry.logger.debug("Revalidation failed for " + key, e);
+						} finally {
+							entry.endRevalidation();
+						}
+					}, _workerPool, httpEndpoint.getRetries());
+				}
+				return cachedResponse;
+			}
+		}
+		_responseCache.recordMiss();
+		return null;
+	}
+
+	private HttpResponse<InputStream> cacheResponse(String key, HttpRequest request, HttpResponseCache.Entry entry, HttpResponse<InputStream> httpResponse, long requestTime) throws IOException {
+		final long responseTime = System.currentTimeMillis();
+		if (entry != null && httpResponse.statusCode() == 304) {
+			httpResponse.body().close();
+			entry.freshen(httpResponse.headers(), requestTime, responseTime);
+			_responseCache.recordRevalidation();
+			return entry.toResponse(request, responseTime);
+		}
+		if (_responseCache.isStorable(request, httpResponse)) {
+			return _responseCache.store(key, request, httpResponse, requestTime, responseTime);
+		}
+		if (entry != null) {
+			_responseCache.remove(key);
+		}
+		return httpResponse;
 	}
 
 	private void sendAsync(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String appendUrl, boolean doOutput, CountDownLatch streamConsumed,
-			BiConsumer<HttpResponse<InputStream>, Throwable> fn, WorkerPool workerPool, HttpResponse.BodyHandler<InputStream> bodyHandler, int retryCount) {
+			BiConsumer<HttpResponse<InputStream>, Throwable> fn, WorkerPool workerPool, int retryCount) {
 
 		int pos = computeNextPos(httpEndpoint);
 		if (pos < 0) {
@@ -117,7 +318,12 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 		// check whether server is willing to respond (before sending data)
 		boolean checkServer = retryCount > getUnavailableCount();
 		HttpRequest request = requestBuilder.expectContinue(checkServer && doOutput).uri(uri).build();
+		if (isHedgeable(streamConsumed, request)) {
+			new HedgedExchange(httpEndpoint, requestBuilder, appendUrl, doOutput, fn, workerPool, retryCount).start(pos, request);
+			return;
+		}
 		inUse.incrementAndGet(pos);
+		final long startTime = System.nanoTime();
 		_httpClient.sendAsync(request, bodyHandler).handleAsync((httpResponse, completionException) -> {
 			inUse.decrementAndGet(pos);
 			boolean retry;
@@ -130,12 +336,17 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 				exc = completionException.getCause();
 				retry = exc instanceof IOException;
 			}
+			if (retry) {
+				recordFailure(pos);
+			} else if (httpResponse != null) {
+				recordResponseTime(httpEndpoint, pos, System.nanoTime() - startTime);
+			}
 			if (retry) {
 				if (httpEndpoint.getCheckAliveInterval() != null) {
 					setActive(httpEndpoint, pos, false);
 				}
 				if (retryCount > 0 && (streamConsumed == null || streamConsumed.getCount() > 0)) {
-					sendAsync(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed, fn, workerPool, bodyHandler, retryCount - 1);
+					sendAsync(httpEndpoint, requestBuilder, appendUrl, doOutput, streamConsumed, fn, workerPool, retryCount - 1);
 				} else {
 					fn.accept(null, exc);
 				}
@@ -149,4 +360,223 @@ public final class Http2UrlSelector extends HttpUrlSelector {
 		}, workerPool.getExecutorService());
 	}
 
+	private boolean isHedgeable(CountDownLatch streamConsumed, HttpRequest request) {
+		// a streamed body cannot be sent twice
+		return _hedgingTracker != null && streamConsumed == null && HttpHedging.isIdempotent(request.method()) && _hedgingTracker.getDelay() >= 0 && getActiveCount() > 1;
+	}
+
+	private void recordResponseTime(HttpEndpoint httpEndpoint, int pos, long nanos) {
+		recordLatency(httpEndpoint, pos, nanos);
+		if (_hedgingTracker != null) {
+			_hedgingTracker.record(nanos);
+		}
+	}
+
+	@Override
+	public CompositeData getResponseCacheState() throws OpenDataException {
+		if (_responseCache == null) {
+			return null;
+		}
+		String[] itemNames = { "entries", "size", "spillSize", "hits", "misses", "revalidations" };
+		OpenType<?>[] itemTypes = { SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG };
+		CompositeType rowType = new CompositeType("ResponseCacheState", "State of response cache (sizes in bytes)", itemNames, itemNames, itemTypes);
+		Object[] itemValues = { _responseCache.getEntries(), _responseCache.getSize(), _responseCache.getSpillSize(), _responseCache.getHits(), _responseCache.getMisses(), _responseCache.getRevalidations() };
+		return new CompositeDataSupport(rowType, itemNames, itemValues);
+	}
+
+	@Override
+	public CompositeData getHedgingState() throws OpenDataException {
+		if (_hedgingTracker == null) {
+			return null;
+		}
+		String[] itemNames = { "hedges", "wins", "delay" };
+		OpenType<?>[] itemTypes = { SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE };
+		CompositeType rowType = new CompositeType("HedgingState", "State of hedging (delay in ms)", itemNames, itemNames, itemTypes);
+		long delay = _hedgingTracker.getDelay();
+		Object[] itemValues = { _hedgingTracker.getHedges(), _hedgingTracker.getWins(), delay >= 0 ? delay / 1000000. : null };
+		return new CompositeDataSupport(rowType, itemNames, itemValues);
+	}
+
+	/**
+	 * Sends a request and, if there is no response after the hedging delay and the budget allows, the same request to another url.
+	 * The first usable response wins, the body of the other response is closed when it arrives. Without a WorkerPool the caller is responsible for retries.
+	 * Each launched request counts as one attempt against the retries.
+	 */
+	private final class HedgedExchange {
+
+		private final HttpEndpoint _httpEndpoint;
+		private final HttpRequest.Builder _requestBuilder;
+		private final String _appendUrl;
+		private final boolean _doOutput;
+		private final BiConsumer<HttpResponse<InputStream>, Throwable> _fn;
+		private final WorkerPool _workerPool;
+		private final int _retryCount;
+		private int _firstPos, _pending;
+		private boolean _hedged, _done;
+		private ScheduledFuture<?> _timer;
+
+		HedgedExchange(HttpEndpoint httpEndpoint, HttpRequest.Builder requestBuilder, String appendUrl, boolean doOutput, BiConsumer<HttpResponse<InputStream>, Throwable> fn, WorkerPool workerPool, int retryCount) {
+			_httpEndpoint = httpEndpoint;
+			_requestBuilder = requestBuilder;
+			_appendUrl = appendUrl;
+			_doOutput = doOutput;
+			_fn = fn;
+			_workerPool = workerPool;
+			_retryCount = retryCount;
+		}
+
+		void start(int pos, HttpRequest request) {
+			_hedgingTracker.deposit();
+			_firstPos = pos;
+			_pending = 1;
+			launch(pos, request, false);
+			synchronized (this) {
+				if (!_done) {
+					_timer = _scheduledExecutorService.schedule(this::hedge, _hedgingTracker.getDelay(), TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+
+		private void hedge() {
+			int pos;
+			HttpRequest request;
+			synchronized (this) {
+				if (_done || !_hedgingTracker.tryAcquire()) {
+					return;
+				}
+				// a discarded choice must not use up a probe admission
+				pos = computeScheduledPos(_httpEndpoint);
+				if (pos == _firstPos) {
+					pos = computeScheduledPos(_httpEndpoint);
+				}
+				try {
+					if (pos < 0 || pos == _firstPos) {
+						_hedgingTracker.refund();
+						return;
+					}
+					request = _requestBuilder.copy().uri(new URI(_httpEndpoint.getHttpUrls().get(pos).getUrlStr() + _appendUrl)).build();
+				} catch (URISyntaxException e) {
+					_hedgingTracker.refund();
+					return;
+				}
+				_hedged = true;
+				++_pending;
+			}
+			launch(pos, request, true);
+		}
+
+		synchronized int getAttempts() {
+			return _hedged ? 2 : 1;
+		}
+
+		private void launch(int pos, HttpRequest request, boolean hedge) {
+			inUse.incrementAndGet(pos);
+			final long startTime = System.nanoTime();
+			CompletableFuture<HttpResponse<InputStream>> future = _httpClient.sendAsync(request, bodyHandler);
+			BiFunction<HttpResponse<InputStream>, Throwable, Void> handler = (httpResponse, completionException) -> {
+				completed(pos, hedge, System.nanoTime() - startTime, httpResponse, completionException);
+				return null;
+			};
+			if (_workerPool != null) {
+				future.handleAsync(handler, _workerPool.getExecutorService());
+			} else {
+				future.handle(handler);
+			}
+		}
+
+		private void completed(int pos, boolean hedge, long nanos, HttpResponse<InputStream> httpResponse, Throwable completionException) {
+			inUse.decrementAndGet(pos);
+			boolean failed;
+			Throwable exc;
+			if (httpResponse != null) {
+				HttpCheckAlive httpCheckAlive = _httpEndpoint.getHttpCheckAlive();
+				failed = httpCheckAlive != null && !httpCheckAlive.isAlive(httpResponse.statusCode(), name -> httpResponse.headers().firstValue(name).orElse(null));
+				exc = failed ? new HttpCheckAlive.ConnectException(_httpEndpoint.getHttpUrls().get(pos).getUrlStr() + " is not alive. Response code " + httpResponse.statusCode()) : null;
+			} else {
+				exc = completionException instanceof CompletionException && completionException.getCause() != null ? completionException.getCause() : completionException;
+				failed = exc instanceof IOException;
+			}
+			if (failed) {
+				recordFailure(pos);
+				if (_httpEndpoint.getCheckAliveInterval() != null) {
+					setActive(_httpEndpoint, pos, false);
+				}
+			} else if (httpResponse != null) {
+				recordResponseTime(_httpEndpoint, pos, nanos);
+			}
+			boolean won = false;
+			int retries = -1;
+			synchronized (this) {
+				--_pending;
+				if (!_done) {
+					if (exc == null) {
+						won = true;
+					} else if (_pending > 0) {
+						// wait for the other exchange
+						return;
+					} else {
+						retries = _retryCount - getAttempts();
+					}
+					_done = true;
+					if (_timer != null) {
+						_timer.cancel(false);
+					}
+				} else {
+					exc = null;
+				}
+			}
+			if (won) {
+				if (hedge) {
+					_hedgingTracker.won();
+				}
+				_totalConnectionsCount.incrementAndGet();
+				_fn.accept(httpResponse, null);
+			} else if (exc != null) {
+				if (failed && retries >= 0 && _workerPool != null) {
+					sendAsync(_httpEndpoint, _requestBuilder, _appendUrl, _doOutput, null, _fn, _workerPool, retries);
+				} else {
+					_fn.accept(null, exc);
+				}
+			} else if (httpResponse != null) {
+				// lost the race, the connection is given back to the HttpClient
+				try {
+					httpResponse.body().close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	static final class ByteBufferListSubscriber implements HttpResponse.BodySubscriber<InputStream> {
+
+		private final CompletableFuture<InputStream> _body = new CompletableFuture<>();
+		private final List<ByteBuffer> _byteBuffers = new ArrayList<>();
+
+		@Override
+		public CompletionStage<InputStream> getBody() {
+			return _body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			_byteBuffers.addAll(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			_body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			_body.complete(new ByteBufferListInputStream(_byteBuffers));
+		}
+	}
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the circuit breakers guarding each url of an {@link HttpEndpoint}.
+ */
+public final class HttpCircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private static final int BUCKETS = 10;
+
+	private final int _failureRateThreshold, _slowCallRateThreshold;
+	private final long _slowCallDuration;
+	private final int _minimumCalls, _window, _openDuration, _halfOpenCalls, _maxEjectionPercent;
+
+	/**
+	 * @param failureRateThreshold Percentage of failed calls within the window which opens the breaker
+	 * @param slowCallRateThreshold Percentage of slow calls within the window which opens the breaker
+	 * @param slowCallDuration Milliseconds after which a call is considered slow
+	 * @param minimumCalls Number of calls within the window before rates are evaluated
+	 * @param window Length of the rolling window in seconds
+	 * @param openDuration Seconds until an open breaker lets probe calls pass (half open), also the time after which probe calls without outcome are replaced
+	 * @param halfOpenCalls Number of probe calls deciding whether to close or reopen the breaker
+	 * @param maxEjectionPercent Maximum percentage of urls which may be open at the same time, below 100 the breaker of a single url never opens
+	 */
+	public HttpCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, int slowCallDuration, int minimumCalls, int window, int openDuration, int halfOpenCalls, int maxEjectionPercent) {
+		_failureRateThreshold = failureRateThreshold;
+		_slowCallRateThreshold = slowCallRateThreshold;
+		_slowCallDuration = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+		_minimumCalls = minimumCalls;
+		_window = window;
+		_openDuration = openDuration;
+		_halfOpenCalls = halfOpenCalls;
+		_maxEjectionPercent = maxEjectionPercent;
+	}
+
+	public int getOpenDuration() {
+		return _openDuration;
+	}
+
+	boolean mayEject(int ejected, int size) {
+		return (ejected + 1) * 100 <= _maxEjectionPercent * size;
+	}
+
+	@Override
+	public int hashCode() {
+		return _failureRateThreshold + _slowCallRateThreshold + _minimumCalls + _window + _openDuration;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof HttpCircuitBreaker))
+			return false;
+		HttpCircuitBreaker other = (HttpCircuitBreaker) obj;
+		return _failureRateThreshold == other._failureRateThreshold && _slowCallRateThreshold == other._slowCallRateThreshold && _slowCallDuration == other._slowCallDuration
+				&& _minimumCalls == other._minimumCalls && _window == other._window && _openDuration == other._openDuration && _halfOpenCalls == other._halfOpenCalls
+				&& _maxEjectionPercent == other._maxEjectionPercent;
+	}
+
+	/**
+	 * Outcomes of the calls to one url in a rolling window of buckets.
+	 */
+	final class Window {
+
+		private final long _bucketLength = TimeUnit.SECONDS.toNanos(_window) / BUCKETS;
+		private final long _probeTimeout = TimeUnit.SECONDS.toNanos(_openDuration);
+		private final long[] _epochs = new long[BUCKETS];
+		private final int[] _calls = new int[BUCKETS], _failures = new int[BUCKETS], _slowCalls = new int[BUCKETS];
+		private State _state = State.CLOSED;
+		private int _admitted, _probes, _probeFailures, _probeSlowCalls;
+		private long _admittedSince;
+
+		synchronized State getState() {
+			return _state;
+		}
+
+		synchronized void setState(State state) {
+			_state = state;
+			_admitted = _probes = _probeFailures = _probeSlowCalls = 0;
+			_admittedSince = System.nanoTime();
+			if (state == State.CLOSED) {
+				for (int i = 0; i < BUCKETS; ++i) {
+					_calls[i] = _failures[i] = _slowCalls[i] = 0;
+				}
+			}
+		}
+
+		/**
+		 * @return whether a probe call may be sent to the half open url
+		 */
+		synchronized boolean tryAdmit() {
+			if (_state == State.HALF_OPEN) {
+				if (_admitted == _halfOpenCalls && System.nanoTime() - _admittedSince > _probeTimeout) {
+					// probe calls without outcome must not keep the url ejected forever
+					_admitted = _probes;
+					_admittedSince = System.nanoTime();
+				}
+				if (_admitted < _halfOpenCalls) {
+					++_admitted;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param nanos Duration of the call, ignored for failures
+		 * @return the state the breaker should change to or null if it should stay in its state
+		 */
+		synchronized State record(boolean failure, long nanos) {
+			final boolean slow = !failure && nanos >= _slowCallDuration;
+			switch (_state) {
+			case CLOSED:
+				long epoch = System.nanoTime() / _bucketLength;
+				int slot = Math.floorMod(epoch, BUCKETS);
+				if (_epochs[slot] != epoch) {
+					_epochs[slot] = epoch;
+					_calls[slot] = _failures[slot] = _slowCalls[slot] = 0;
+				}
+				++_calls[slot];
+				if (failure) {
+					++_failures[slot];
+				} else if (slow) {
+					++_slowCalls[slot];
+				}
+				int calls = 0, failures = 0, slowCalls = 0;
+				for (int i = 0; i < BUCKETS; ++i) {
+					if (epoch - _epochs[i] < BUCKETS) {
+						calls += _calls[i];
+						failures += _failures[i];
+						slowCalls += _slowCalls[i];
+					}
+				}
+				return calls >= _minimumCalls && exceedsThresholds(calls, failures, slowCalls) ? State.OPEN : null;
+			case HALF_OPEN:
+				if (_probes < _halfOpenCalls) {
+					++_probes;
+					if (failure) {
+						++_probeFailures;
+					} else if (slow) {
+						++_probeSlowCalls;
+					}
+					if (_probes == _halfOpenCalls) {
+						return exceedsThresholds(_probes, _probeFailures, _probeSlowCalls) ? State.OPEN : State.CLOSED;
+					}
+				}
+				return null;
+			default:
+				// late result of a call started before opening
+				return null;
+			}
+		}
+
+		private boolean exceedsThresholds(int calls, int failures, int slowCalls) {
+			return failures * 100 >= _failureRateThreshold * calls || slowCalls * 100 >= _slowCallRateThreshold * calls;
+		}
+	}
+
+}
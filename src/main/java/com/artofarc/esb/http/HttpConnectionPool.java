@@ -0,0 +1,296 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.artofarc.util.IOUtils;
+
+/**
+ * Configuration of the pools of persistent HTTP/1.1 connections kept for each url of an {@link HttpEndpoint}.
+ */
+public final class HttpConnectionPool {
+
+	private final int _maxConnections, _idleTimeout;
+
+	/**
+	 * @param maxConnections Maximum number of connections per url in use at the same time
+	 * @param idleTimeout Seconds an unused connection is kept open
+	 */
+	public HttpConnectionPool(int maxConnections, int idleTimeout) {
+		_maxConnections = maxConnections;
+		_idleTimeout = idleTimeout;
+	}
+
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	public int getIdleTimeout() {
+		return _idleTimeout;
+	}
+
+	@Override
+	public int hashCode() {
+		return _maxConnections + _idleTimeout;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof HttpConnectionPool))
+			return false;
+		HttpConnectionPool other = (HttpConnectionPool) obj;
+		return _maxConnections == other._maxConnections && _idleTimeout == other._idleTimeout;
+	}
+
+	static final class PoolExhaustedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		PoolExhaustedException(String message) {
+			super(message);
+		}
+	}
+
+	static final class Connection {
+
+		private final SocketChannel _channel;
+		final Socket _socket;
+		final InputStream _in;
+		final OutputStream _out;
+		private long _idleSince;
+		// whether the connection has been used for a former request
+		boolean _reused;
+
+		Connection(SocketChannel channel, Socket socket) throws IOException {
+			_channel = channel;
+			_socket = socket;
+			_in = new BufferedInputStream(socket.getInputStream(), IOUtils.MTU);
+			_out = new BufferedOutputStream(socket.getOutputStream(), IOUtils.MTU);
+		}
+
+		/**
+		 * A connection closed by the server while idle is readable at EOF (or with a TLS close_notify).
+		 */
+		boolean isStale() {
+			try {
+				if (_in.available() > 0) {
+					// unsolicited data
+					return true;
+				}
+				if (_socket instanceof SSLSocket) {
+					// reading from the channel would consume TLS records behind the back of the SSLSocket, so wait shortly for EOF instead
+					final int timeout = _socket.getSoTimeout();
+					_socket.setSoTimeout(1);
+					try {
+						_in.read();
+						return true;
+					} catch (SocketTimeoutException e) {
+						return false;
+					} finally {
+						_socket.setSoTimeout(timeout);
+					}
+				}
+				_channel.configureBlocking(false);
+				try {
+					return _channel.read(ByteBuffer.allocate(1)) != 0;
+				} finally {
+					_channel.configureBlocking(true);
+				}
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		void close() {
+			try {
+				_socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Connections to one url. Idle connections are LIFO ordered so that the least recently used gather at the tail where they expire.
+	 */
+	final class Pool {
+
+		private final HttpUrl _httpUrl;
+		private final Semaphore _permits = new Semaphore(_maxConnections);
+		private final ArrayDeque<Connection> _idle = new ArrayDeque<>();
+		private final long _idleTimeoutNanos = TimeUnit.SECONDS.toNanos(_idleTimeout);
+		private final AtomicLong _created = new AtomicLong(), _reused = new AtomicLong(), _evicted = new AtomicLong();
+
+		Pool(HttpUrl httpUrl) {
+			_httpUrl = httpUrl;
+		}
+
+		Connection lease(HttpEndpoint httpEndpoint, int timeout) throws IOException {
+			try {
+				if (!_permits.tryAcquire(httpEndpoint.getConnectTimeout(), TimeUnit.MILLISECONDS)) {
+					throw new PoolExhaustedException("All " + _maxConnections + " connections in use for " + _httpUrl.getUrlStr());
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			try {
+				for (Connection connection; (connection = pollIdle()) != null;) {
+					if (connection.isStale()) {
+						connection.close();
+						_evicted.incrementAndGet();
+					} else {
+						connection._socket.setSoTimeout(timeout);
+						connection._reused = true;
+						_reused.incrementAndGet();
+						return connection;
+					}
+				}
+				Connection connection = connect(httpEndpoint);
+				connection._socket.setSoTimeout(timeout);
+				_created.incrementAndGet();
+				return connection;
+			} catch (IOException | RuntimeException e) {
+				_permits.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Replaces a leased connection which turned out to be closed by the server, the permit is kept.
+		 */
+		Connection renew(Connection connection, HttpEndpoint httpEndpoint) throws IOException {
+			final int timeout = connection._socket.getSoTimeout();
+			connection.close();
+			_evicted.incrementAndGet();
+			Connection newConnection = connect(httpEndpoint);
+			newConnection._socket.setSoTimeout(timeout);
+			_created.incrementAndGet();
+			return newConnection;
+		}
+
+		private Connection connect(HttpEndpoint httpEndpoint) throws IOException {
+			URL url = _httpUrl.getURL();
+			int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+			SocketChannel channel = SocketChannel.open();
+			try {
+				Socket socket = channel.socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(url.getHost(), port), httpEndpoint.getConnectTimeout());
+				if ("https".equals(url.getProtocol())) {
+					SSLSocketFactory socketFactory = httpEndpoint.getSSLContext() != null ? httpEndpoint.getSSLContext().getSocketFactory() : (SSLSocketFactory) SSLSocketFactory.getDefault();
+					// the SSLContext caches sessions per host and port, thus further connections resume the session
+					SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, url.getHost(), port, true);
+					SSLParameters sslParameters = sslSocket.getSSLParameters();
+					sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+					sslSocket.setSSLParameters(sslParameters);
+					// Real life experience: SSL Handshake got stuck forever without timeout
+					sslSocket.setSoTimeout(httpEndpoint.getConnectTimeout());
+					sslSocket.startHandshake();
+					socket = sslSocket;
+				}
+				return new Connection(channel, socket);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private synchronized Connection pollIdle() {
+			evictExpired();
+			return _idle.pollFirst();
+		}
+
+		void release(Connection connection, boolean reusable) {
+			if (reusable) {
+				connection._idleSince = System.nanoTime();
+				synchronized (this) {
+					if (_idle.size() < _maxConnections) {
+						_idle.addFirst(connection);
+						connection = null;
+					}
+				}
+			}
+			if (connection != null) {
+				connection.close();
+			}
+			_permits.release();
+		}
+
+		synchronized void evictExpired() {
+			final long now = System.nanoTime();
+			for (Connection connection; (connection = _idle.peekLast()) != null && now - connection._idleSince > _idleTimeoutNanos;) {
+				_idle.pollLast().close();
+				_evicted.incrementAndGet();
+			}
+		}
+
+		void close() {
+			List<Connection> connections;
+			synchronized (this) {
+				connections = new ArrayList<>(_idle);
+				_idle.clear();
+			}
+			for (Connection connection : connections) {
+				connection.close();
+			}
+		}
+
+		int getLeased() {
+			return _maxConnections - _permits.availablePermits();
+		}
+
+		synchronized int getIdle() {
+			return _idle.size();
+		}
+
+		long getCreated() {
+			return _created.get();
+		}
+
+		long getReused() {
+			return _reused.get();
+		}
+
+		long getEvicted() {
+			return _evicted.get();
+		}
+	}
+
+}
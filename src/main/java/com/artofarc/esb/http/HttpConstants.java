@@ -49,6 +49,11 @@ public class HttpConstants {
 	public static final String HTTP_HEADER_AUTHORIZATION = "Authorization";
 	public static final String HTTP_HEADER_X_FORWARDED_FOR = "X-Forwarded-For";
 	public static final String HTTP_HEADER_X_METHOD_OVERRIDE = "X-HTTP-Method-Override";
+	public static final String HTTP_HEADER_CACHE_CONTROL = "Cache-Control";
+	public static final String HTTP_HEADER_ETAG = "ETag";
+	public static final String HTTP_HEADER_LAST_MODIFIED = "Last-Modified";
+	public static final String HTTP_HEADER_IF_NONE_MATCH = "If-None-Match";
+	public static final String HTTP_HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
 
 	public static final String HTTP_HEADER_CONTENT_TYPE_TEXT = "text/plain";
 	public static final String HTTP_HEADER_CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
@@ -25,6 +25,19 @@ import javax.net.ssl.SSLContext;
 
 public final class HttpEndpoint {
 
+	public enum LoadBalancing {
+		// for multi-threaded endpoints an url of weight w is taken every w-th time it is visited
+		ROUND_ROBIN,
+		// for multi-threaded endpoints traffic is sent in proportion to weight
+		WEIGHTED_ROUND_ROBIN,
+		// fewest requests in flight (relative to weight)
+		LEAST_OUTSTANDING_REQUESTS,
+		// better of two random urls, cost is requests in flight times latency EWMA
+		POWER_OF_TWO_CHOICES,
+		// like POWER_OF_TWO_CHOICES, but latency peaks are taken over immediately and only decay over time
+		PEAK_EWMA
+	}
+
 	private final String _name;
 	private final List<HttpUrl> _endpoints;
 	private final boolean _multiThreaded;
@@ -37,12 +50,17 @@ public final class HttpEndpoint {
 	private final Proxy _proxy;
 	private final SSLContext _sslContext;
 	private final HttpClient.Version _version;
+	private final LoadBalancing _loadBalancing;
+	private final HttpCircuitBreaker _circuitBreaker;
+	private final HttpConnectionPool _connectionPool;
+	private final HttpHedging _hedging;
+	private final HttpResponseCache _responseCache;
 
-	public HttpEndpoint(String name, List<HttpUrl> endpoints, boolean multiThreaded, String username, String password, int connectTimeout, int retries, Integer checkAliveInterval, HttpCheckAlive checkAlive, long modificationTime, Proxy proxy, SSLContext sslContext, HttpClient.Version version) {
-		this(name, endpoints, multiThreaded, username != null && password != null ? username + ':' + password : null, connectTimeout, retries, checkAliveInterval, checkAlive, modificationTime, proxy, sslContext, version);
+	public HttpEndpoint(String name, List<HttpUrl> endpoints, boolean multiThreaded, String username, String password, int connectTimeout, int retries, Integer checkAliveInterval, HttpCheckAlive checkAlive, long modificationTime, Proxy proxy, SSLContext sslContext, HttpClient.Version version, LoadBalancing loadBalancing, HttpCircuitBreaker circuitBreaker, HttpConnectionPool connectionPool, HttpHedging hedging, HttpResponseCache responseCache) {
+		this(name, endpoints, multiThreaded, username != null && password != null ? username + ':' + password : null, connectTimeout, retries, checkAliveInterval, checkAlive, modificationTime, proxy, sslContext, version, loadBalancing, circuitBreaker, connectionPool, hedging, responseCache);
 	}
 
-	public HttpEndpoint(String name, List<HttpUrl> endpoints, boolean multiThreaded, String basicAuthCredential, int connectTimeout, int retries, Integer checkAliveInterval, HttpCheckAlive checkAlive, long modificationTime, Proxy proxy, SSLContext sslContext, HttpClient.Version version) {
+	public HttpEndpoint(String name, List<HttpUrl> endpoints, boolean multiThreaded, String basicAuthCredential, int connectTimeout, int retries, Integer checkAliveInterval, HttpCheckAlive checkAlive, long modificationTime, Proxy proxy, SSLContext sslContext, HttpClient.Version version, LoadBalancing loadBalancing, HttpCircuitBreaker circuitBreaker, HttpConnectionPool connectionPool, HttpHedging hedging, HttpResponseCache responseCache) {
 		if (name != null) {
 			_name = name;
 		} else {
@@ -71,6 +89,20 @@ public final class HttpEndpoint {
 		}
 		_sslContext = sslContext;
 		_version = version;
+		_loadBalancing = loadBalancing != null ? loadBalancing : LoadBalancing.ROUND_ROBIN;
+		_circuitBreaker = circuitBreaker;
+		if (connectionPool != null && (version != null || proxy != null && proxy != Proxy.NO_PROXY)) {
+			throw new IllegalArgumentException("connectionPool requires HTTP/1 without proxy in " + _name);
+		}
+		_connectionPool = connectionPool;
+		if (hedging != null && version == null) {
+			throw new IllegalArgumentException("hedging requires a version in " + _name);
+		}
+		_hedging = hedging;
+		if (responseCache != null && version == null) {
+			throw new IllegalArgumentException("responseCache requires a version in " + _name);
+		}
+		_responseCache = responseCache;
 	}
 
 	public String getName() {
@@ -121,6 +153,26 @@ public final class HttpEndpoint {
 		return _version;
 	}
 
+	public LoadBalancing getLoadBalancing() {
+		return _loadBalancing;
+	}
+
+	public HttpCircuitBreaker getCircuitBreaker() {
+		return _circuitBreaker;
+	}
+
+	public HttpConnectionPool getConnectionPool() {
+		return _connectionPool;
+	}
+
+	public HttpHedging getHedging() {
+		return _hedging;
+	}
+
+	public HttpResponseCache getResponseCache() {
+		return _responseCache;
+	}
+
 	public int getMaxConnectTimeout() {
 		return (_retries + 1) * _connectTimeout;
 	}
@@ -138,8 +190,8 @@ public final class HttpEndpoint {
 
 	boolean hasSameConfig(HttpEndpoint other) {
 		return _endpoints.equals(other._endpoints) && _connectTimeout == other._connectTimeout && _retries == other._retries && _multiThreaded == other._multiThreaded
-				&& _version == other._version && Objects.equals(_checkAliveInterval, other._checkAliveInterval) && Objects.equals(_checkAlive, other._checkAlive)
-				&& Objects.equals(_basicAuthCredential, other._basicAuthCredential) && Objects.equals(_proxy, other._proxy) && Objects.equals(_sslContext, other._sslContext);
+				&& _version == other._version && _loadBalancing == other._loadBalancing && Objects.equals(_checkAliveInterval, other._checkAliveInterval) && Objects.equals(_checkAlive, other._checkAlive)
+				&& Objects.equals(_circuitBreaker, other._circuitBreaker) && Objects.equals(_connectionPool, other._connectionPool) && Objects.equals(_hedging, other._hedging) && Objects.equals(_responseCache, other._responseCache) && Objects.equals(_basicAuthCredential, other._basicAuthCredential) && Objects.equals(_proxy, other._proxy) && Objects.equals(_sslContext, other._sslContext);
 	}
 
 }
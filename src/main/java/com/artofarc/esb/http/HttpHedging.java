@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of hedged requests: An idempotent request not answered within a delay is sent to another url in addition, the first response wins.
+ */
+public final class HttpHedging {
+
+	private static final int SAMPLES = 256, MIN_SAMPLES = 20, RECOMPUTE_INTERVAL = 32;
+	// upper bound for hedges sent in a burst, tokens are counted in percent of a hedge
+	private static final int MAX_TOKENS = 10 * 100;
+
+	private final Integer _delay;
+	private final int _percentile, _budget;
+
+	/**
+	 * @param delay Milliseconds to wait for a response before hedging, if null the percentile of the observed latencies is taken
+	 * @param percentile Percentile of the observed latencies used as delay
+	 * @param budget Maximum percentage of requests which may be hedged
+	 */
+	public HttpHedging(Integer delay, int percentile, int budget) {
+		_delay = delay;
+		_percentile = percentile;
+		_budget = budget;
+	}
+
+	static boolean isIdempotent(String method) {
+		switch (method) {
+		case "GET":
+		case "HEAD":
+		case "OPTIONS":
+		case "TRACE":
+		case "PUT":
+		case "DELETE":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(_delay) + _percentile + _budget;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof HttpHedging))
+			return false;
+		HttpHedging other = (HttpHedging) obj;
+		return Objects.equals(_delay, other._delay) && _percentile == other._percentile && _budget == other._budget;
+	}
+
+	/**
+	 * Latencies and hedge budget of an endpoint.
+	 */
+	final class Tracker {
+
+		private final long[] _samples = new long[SAMPLES];
+		private int _count, _next;
+		private long _threshold = -1L;
+		private int _tokens;
+		private long _hedges, _wins;
+
+		synchronized void record(long nanos) {
+			_samples[_next] = nanos;
+			_next = (_next + 1) % SAMPLES;
+			if (_count < SAMPLES) {
+				++_count;
+			}
+			if (_delay == null && _count >= MIN_SAMPLES && (_threshold < 0 || _next % RECOMPUTE_INTERVAL == 0)) {
+				long[] sorted = Arrays.copyOf(_samples, _count);
+				Arrays.sort(sorted);
+				_threshold = sorted[Math.min(_count - 1, _count * _percentile / 100)];
+			}
+		}
+
+		/**
+		 * @return nanoseconds to wait before hedging or -1 if not enough latencies have been observed yet
+		 */
+		synchronized long getDelay() {
+			return _delay != null ? TimeUnit.MILLISECONDS.toNanos(_delay) : _threshold;
+		}
+
+		/**
+		 * Each hedgeable request earns a fraction of a hedge.
+		 */
+		synchronized void deposit() {
+			_tokens = Math.min(MAX_TOKENS, _tokens + _budget);
+		}
+
+		synchronized boolean tryAcquire() {
+			if (_tokens >= 100) {
+				_tokens -= 100;
+				++_hedges;
+				return true;
+			}
+			return false;
+		}
+
+		synchronized void refund() {
+			_tokens += 100;
+			--_hedges;
+		}
+
+		synchronized void won() {
+			++_wins;
+		}
+
+		synchronized long getHedges() {
+			return _hedges;
+		}
+
+		synchronized long getWins() {
+			return _wins;
+		}
+	}
+
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+import static com.artofarc.esb.http.HttpConstants.*;
+import com.artofarc.util.ByteArrayInputStream;
+
+/**
+ * Configuration of a shared HTTP cache (RFC 7234) for the GET requests to an {@link HttpEndpoint}, responses are shared by all callers of the endpoint.
+ * Bodies are kept in memory up to maxSize, least recently used entries are spilled to disk if a spillDirectory is configured.
+ */
+public final class HttpResponseCache {
+
+	// https://www.rfc-editor.org/rfc/rfc7231#section-6.1
+	private static final int[] CACHEABLE_BY_DEFAULT = { 200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501 };
+
+	private final long _maxSize, _maxEntrySize, _maxSpillSize;
+	private final String _spillDirectory;
+
+	/**
+	 * @param maxSize Maximum number of bytes of bodies kept in memory
+	 * @param maxEntrySize Larger bodies are not cached
+	 * @param spillDirectory Directory for bodies evicted from memory or null
+	 * @param maxSpillSize Maximum number of bytes of bodies kept in spillDirectory
+	 */
+	public HttpResponseCache(long maxSize, long maxEntrySize, String spillDirectory, long maxSpillSize) {
+		_maxSize = maxSize;
+		_maxEntrySize = maxEntrySize;
+		_spillDirectory = spillDirectory;
+		_maxSpillSize = maxSpillSize;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(_maxSize) + Long.hashCode(_maxEntrySize) + Objects.hashCode(_spillDirectory);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof HttpResponseCache))
+			return false;
+		HttpResponseCache other = (HttpResponseCache) obj;
+		return _maxSize == other._maxSize && _maxEntrySize == other._maxEntrySize && Objects.equals(_spillDirectory, other._spillDirectory) && _maxSpillSize == other._maxSpillSize;
+	}
+
+	static Map<String, String> parseCacheControl(HttpHeaders headers) {
+		Map<String, String> directives = new HashMap<>();
+		for (String value : headers.allValues(HTTP_HEADER_CACHE_CONTROL)) {
+			for (String directive : value.split(",")) {
+				int i = directive.indexOf('=');
+				if (i < 0) {
+					directives.put(directive.trim().toLowerCase(), "");
+				} else {
+					String arg = directive.substring(i + 1).trim();
+					if (arg.length() > 1 && arg.charAt(0) == '"') {
+						arg = arg.substring(1, arg.length() - 1);
+					}
+					directives.put(directive.substring(0, i).trim().toLowerCase(), arg);
+				}
+			}
+		}
+		return directives;
+	}
+
+	static long getSeconds(Map<String, String> directives, String name) {
+		String value = directives.get(name);
+		if (value != null) {
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				// invalid values are treated as stale (https://www.rfc-editor.org/rfc/rfc7234#section-4.2.1)
+				return 0L;
+			}
+		}
+		return -1L;
+	}
+
+	static long parseDate(HttpHeaders headers, String name) {
+		Optional<String> value = headers.firstValue(name);
+		if (value.isPresent()) {
+			try {
+				return ZonedDateTime.parse(value.get(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				// Expires: 0 and the like
+				return 0L;
+			}
+		}
+		return -1L;
+	}
+
+	private static String getValues(HttpHeaders headers, String name) {
+		return String.join(",", headers.allValues(name));
+	}
+
+	/**
+	 * Stored response for one variant of a request.
+	 */
+	final class Entry {
+
+		private final String _key;
+		private final int _statusCode;
+		private final URI _uri;
+		private final HttpClient.Version _version;
+		private final Map<String, String> _vary;
+		// guarded by this
+		private HttpHeaders _headers;
+		private long _responseTime, _freshnessLifetime, _staleWhileRevalidate, _correctedInitialAge;
+		private byte[] _body;
+		private Path _spillFile;
+		private final int _size;
+		private boolean _revalidating;
+		// guarded by the Store, the size is accounted as spilled as soon as the entry is chosen for spilling
+		private boolean _spilled, _removed;
+
+		Entry(String key, HttpRequest request, HttpResponse<?> httpResponse, byte[] body, long requestTime, long responseTime) {
+			_key = key;
+			_statusCode = httpResponse.statusCode();
+			_uri = httpResponse.uri();
+			_version = httpResponse.version();
+			_vary = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			for (String value : httpResponse.headers().allValues(HTTP_HEADER_VARY)) {
+				for (String name : value.split(",")) {
+					_vary.put(name.trim(), getValues(request.headers(), name.trim()));
+				}
+			}
+			_body = body;
+			_size = body.length;
+			update(httpResponse.headers(), requestTime, responseTime);
+		}
+
+		// https://www.rfc-editor.org/rfc/rfc7234#section-4.2
+		private void update(HttpHeaders headers, long requestTime, long responseTime) {
+			_headers = headers;
+			_responseTime = responseTime;
+			Map<String, String> directives = parseCacheControl(headers);
+			long date = parseDate(headers, "Date");
+			long maxAge = getSeconds(directives, "s-maxage");
+			if (maxAge < 0) {
+				maxAge = getSeconds(directives, "max-age");
+			}
+			if (directives.containsKey("no-cache")) {
+				_freshnessLifetime = 0L;
+			} else if (maxAge >= 0) {
+				_freshnessLifetime = TimeUnit.SECONDS.toMillis(maxAge);
+			} else {
+				long expires = parseDate(headers, "Expires");
+				_freshnessLifetime = expires >= 0 ? Math.max(0L, expires - (date > 0 ? date : responseTime)) : 0L;
+			}
+			boolean mustRevalidate = directives.containsKey("must-revalidate") || directives.containsKey("proxy-revalidate") || directives.containsKey("no-cache");
+			_staleWhileRevalidate = mustRevalidate ? 0L : TimeUnit.SECONDS.toMillis(Math.max(0L, getSeconds(directives, "stale-while-revalidate")));
+			long apparentAge = date > 0 ? Math.max(0L, responseTime - date) : 0L;
+			long ageValue = TimeUnit.SECONDS.toMillis(headers.firstValueAsLong("Age").orElse(0L));
+			_correctedInitialAge = Math.max(apparentAge, ageValue + responseTime - requestTime);
+		}
+
+		boolean matches(HttpRequest request) {
+			for (Map.Entry<String, String> entry : _vary.entrySet()) {
+				if (!entry.getValue().equals(getValues(request.headers(), entry.getKey()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized long getAge(long now) {
+			return _correctedInitialAge + now - _responseTime;
+		}
+
+		synchronized boolean isFresh(long now) {
+			return _freshnessLifetime > getAge(now);
+		}
+
+		synchronized boolean isStaleWhileRevalidate(long now) {
+			return _freshnessLifetime + _staleWhileRevalidate > getAge(now);
+		}
+
+		synchronized boolean startRevalidation() {
+			if (_revalidating) {
+				return false;
+			}
+			return _revalidating = true;
+		}
+
+		synchronized void endRevalidation() {
+			_revalidating = false;
+		}
+
+		synchronized void addConditionalHeaders(HttpRequest.Builder requestBuilder) {
+			Optional<String> etag = _headers.firstValue(HTTP_HEADER_ETAG);
+			if (etag.isPresent()) {
+				requestBuilder.setHeader(HTTP_HEADER_IF_NONE_MATCH, etag.get());
+			}
+			Optional<String> lastModified = _headers.firstValue(HTTP_HEADER_LAST_MODIFIED);
+			if (lastModified.isPresent()) {
+				requestBuilder.setHeader(HTTP_HEADER_IF_MODIFIED_SINCE, lastModified.get());
+			}
+		}
+
+		/**
+		 * Merge the headers of a 304 response (https://www.rfc-editor.org/rfc/rfc7234#section-4.3.4).
+		 */
+		synchronized void freshen(HttpHeaders headers, long requestTime, long responseTime) {
+			Map<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			map.putAll(_headers.map());
+			for (Map.Entry<String, List<String>> entry : headers.map().entrySet()) {
+				if (!entry.getKey().equalsIgnoreCase(HTTP_HEADER_CONTENT_LENGTH)) {
+					map.put(entry.getKey(), entry.getValue());
+				}
+			}
+			update(HttpHeaders.of(map, (name, value) -> true), requestTime, responseTime);
+		}
+
+		synchronized HttpResponse<InputStream> toResponse(HttpRequest request, long now) throws IOException {
+			byte[] body = _body != null ? _body : Files.readAllBytes(_spillFile);
+			Map<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			map.putAll(_headers.map());
+			map.put("Age", Collections.singletonList(Long.toString(TimeUnit.MILLISECONDS.toSeconds(getAge(now)))));
+			return new Response(request, _uri, _version, _statusCode, HttpHeaders.of(map, (name, value) -> true), new ByteArrayInputStream(body));
+		}
+	}
+
+	/**
+	 * The cache of one {@link HttpUrlSelector}. Keys are the urls relative to the endpoint, each key can have several variants.
+	 */
+	final class Store {
+
+		private final LinkedHashMap<String, List<Entry>> _entries = new LinkedHashMap<>(64, .75f, true);
+		private long _size, _spillSize;
+		private final AtomicLong _hits = new AtomicLong(), _misses = new AtomicLong(), _revalidations = new AtomicLong();
+
+		long getMaxEntrySize() {
+			return _maxEntrySize;
+		}
+
+		synchronized Entry lookup(String key, HttpRequest request) {
+			List<Entry> variants = _entries.get(key);
+			if (variants != null) {
+				for (Entry entry : variants) {
+					if (entry.matches(request)) {
+						return entry;
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Only GET requests use the cache, unless the client sends own validators or forbids storing.
+		 */
+		boolean isApplicable(HttpRequest request) {
+			HttpHeaders headers = request.headers();
+			return "GET".equals(request.method()) && !headers.firstValue(HTTP_HEADER_IF_NONE_MATCH).isPresent() && !headers.firstValue(HTTP_HEADER_IF_MODIFIED_SINCE).isPresent()
+					&& !parseCacheControl(headers).containsKey("no-store");
+		}
+
+		/**
+		 * https://www.rfc-editor.org/rfc/rfc7234#section-5.2.1
+		 */
+		boolean allowsStored(HttpRequest request) {
+			Map<String, String> directives = parseCacheControl(request.headers());
+			return !directives.containsKey("no-cache") && getSeconds(directives, "max-age") != 0 && !request.headers().allValues("Pragma").contains("no-cache");
+		}
+
+		void recordHit() {
+			_hits.incrementAndGet();
+		}
+
+		void recordMiss() {
+			_misses.incrementAndGet();
+		}
+
+		void recordRevalidation() {
+			_revalidations.incrementAndGet();
+		}
+
+		/**
+		 * https://www.rfc-editor.org/rfc/rfc7234#section-3
+		 */
+		boolean isStorable(HttpRequest request, HttpResponse<?> httpResponse) {
+			if (!"GET".equals(request.method()) || !isCacheableByDefault(httpResponse.statusCode())) {
+				return false;
+			}
+			if (parseCacheControl(request.headers()).containsKey("no-store")) {
+				return false;
+			}
+			HttpHeaders headers = httpResponse.headers();
+			Map<String, String> directives = parseCacheControl(headers);
+			if (directives.containsKey("no-store") || directives.containsKey("private")) {
+				return false;
+			}
+			if (request.headers().firstValue(HTTP_HEADER_AUTHORIZATION).isPresent() && !directives.containsKey("public") && !directives.containsKey("s-maxage")
+					&& !directives.containsKey("must-revalidate")) {
+				return false;
+			}
+			if (getValues(headers, HTTP_HEADER_VARY).contains("*")) {
+				return false;
+			}
+			return directives.containsKey("max-age") || directives.containsKey("s-maxage") || headers.firstValue("Expires").isPresent()
+					|| headers.firstValue(HTTP_HEADER_ETAG).isPresent() || headers.firstValue(HTTP_HEADER_LAST_MODIFIED).isPresent();
+		}
+
+		private boolean isCacheableByDefault(int statusCode) {
+			for (int code : CACHEABLE_BY_DEFAULT) {
+				if (code == statusCode) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Reads the body of a storable response and stores it if it does not exceed maxEntrySize.
+		 *
+		 * @return a response with a readable body
+		 */
+		HttpResponse<InputStream> store(String key, HttpRequest request, HttpResponse<InputStream> httpResponse, long requestTime, long responseTime) throws IOException {
+			if (httpResponse.headers().firstValueAsLong(HTTP_HEADER_CONTENT_LENGTH).orElse(0L) > _maxEntrySize) {
+				return httpResponse;
+			}
+			InputStream inputStream = httpResponse.body();
+			// stay below the maximum array size
+			byte[] body = inputStream.readNBytes((int) Math.min(_maxEntrySize + 1, Integer.MAX_VALUE - 8));
+			if (body.length > _maxEntrySize) {
+				return new Response(request, httpResponse.uri(), httpResponse.version(), httpResponse.statusCode(), httpResponse.headers(),
+						new SequenceInputStream(new ByteArrayInputStream(body), inputStream));
+			}
+			inputStream.close();
+			Entry entry = new Entry(key, request, httpResponse, body, requestTime, responseTime);
+			for (Entry victim : put(entry)) {
+				spill(victim);
+			}
+			return new Response(request, httpResponse.uri(), httpResponse.version(), httpResponse.statusCode(), httpResponse.headers(), new ByteArrayInputStream(body));
+		}
+
+		/**
+		 * @return the entries to be spilled by the caller outside of the lock
+		 */
+		private synchronized List<Entry> put(Entry entry) {
+			List<Entry> variants = _entries.get(entry._key);
+			if (variants == null) {
+				_entries.put(entry._key, variants = new ArrayList<>(1));
+			}
+			for (Iterator<Entry> iter = variants.iterator(); iter.hasNext();) {
+				Entry old = iter.next();
+				if (old._vary.equals(entry._vary)) {
+					iter.remove();
+					release(old);
+				}
+			}
+			variants.add(entry);
+			_size += entry._size;
+			return evict();
+		}
+
+		/**
+		 * Unsafe methods invalidate the stored responses (https://www.rfc-editor.org/rfc/rfc7234#section-4.4).
+		 */
+		void invalidate(String key, HttpRequest request, HttpResponse<?> httpResponse) {
+			switch (request.method()) {
+			case "GET":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+				break;
+			default:
+				if (httpResponse.statusCode() < 400) {
+					remove(key);
+				}
+				break;
+			}
+		}
+
+		synchronized void remove(String key) {
+			List<Entry> variants = _entries.remove(key);
+			if (variants != null) {
+				for (Entry entry : variants) {
+					release(entry);
+				}
+			}
+		}
+
+		private void release(Entry entry) {
+			entry._removed = true;
+			if (!entry._spilled) {
+				_size -= entry._size;
+			} else {
+				_spillSize -= entry._size;
+				// otherwise the spilling thread deletes the file
+				if (entry._spillFile != null) {
+					deleteSpillFile(entry._spillFile);
+				}
+			}
+		}
+
+		private void deleteSpillFile(Path spillFile) {
+			try {
+				Files.deleteIfExists(spillFile);
+			} catch (IOException e) {
+				HttpEndpointRegistry.logger.warn("Could not delete " + spillFile, e);
+			}
+		}
+
+		private List<Entry> evict() {
+			List<Entry> victims = new ArrayList<>();
+			for (Iterator<List<Entry>> iter = _entries.values().iterator(); _size > _maxSize && iter.hasNext();) {
+				List<Entry> variants = iter.next();
+				for (Iterator<Entry> iter2 = variants.iterator(); _size > _maxSize && iter2.hasNext();) {
+					Entry entry = iter2.next();
+					if (!entry._spilled) {
+						_size -= entry._size;
+						if (_spillDirectory != null && entry._size <= _maxSpillSize) {
+							entry._spilled = true;
+							_spillSize += entry._size;
+							victims.add(entry);
+						} else {
+							iter2.remove();
+							entry._removed = true;
+						}
+					}
+				}
+				if (variants.isEmpty()) {
+					iter.remove();
+				}
+			}
+			for (Iterator<List<Entry>> iter = _entries.values().iterator(); _spillSize > _maxSpillSize && iter.hasNext();) {
+				List<Entry> variants = iter.next();
+				for (Iterator<Entry> iter2 = variants.iterator(); _spillSize > _maxSpillSize && iter2.hasNext();) {
+					Entry entry = iter2.next();
+					if (entry._spilled) {
+						iter2.remove();
+						release(entry);
+					}
+				}
+				if (variants.isEmpty()) {
+					iter.remove();
+				}
+			}
+			return victims;
+		}
+
+		/**
+		 * Writes the body of an entry chosen by {@link #evict()} without holding the lock of the Store. The body stays in memory until the file is complete.
+		 */
+		private void spill(Entry entry) {
+			Path spillFile = null;
+			try {
+				spillFile = Files.createTempFile(Paths.get(_spillDirectory), "esb0-http-cache", null);
+				Files.write(spillFile, entry._body);
+			} catch (IOException e) {
+				HttpEndpointRegistry.logger.warn("Could not spill cache entry for " + entry._uri, e);
+				if (spillFile != null) {
+					spillFile.toFile().delete();
+				}
+				synchronized (this) {
+					if (!entry._removed) {
+						List<Entry> variants = _entries.get(entry._key);
+						variants.remove(entry);
+						if (variants.isEmpty()) {
+							_entries.remove(entry._key);
+						}
+						release(entry);
+					}
+				}
+				return;
+			}
+			synchronized (this) {
+				if (!entry._removed) {
+					synchronized (entry) {
+						entry._spillFile = spillFile;
+						entry._body = null;
+					}
+					return;
+				}
+			}
+			deleteSpillFile(spillFile);
+		}
+
+		synchronized void clear() {
+			for (List<Entry> variants : _entries.values()) {
+				for (Entry entry : variants) {
+					release(entry);
+				}
+			}
+			_entries.clear();
+		}
+
+		synchronized int getEntries() {
+			int count = 0;
+			for (List<Entry> variants : _entries.values()) {
+				count += variants.size();
+			}
+			return count;
+		}
+
+		synchronized long getSize() {
+			return _size;
+		}
+
+		synchronized long getSpillSize() {
+			return _spillSize;
+		}
+
+		long getHits() {
+			return _hits.get();
+		}
+
+		long getMisses() {
+			return _misses.get();
+		}
+
+		long getRevalidations() {
+			return _revalidations.get();
+		}
+	}
+
+	static final class Response implements HttpResponse<InputStream> {
+
+		private final HttpRequest _request;
+		private final URI _uri;
+		private final HttpClient.Version _version;
+		private final int _statusCode;
+		private final HttpHeaders _headers;
+		private final InputStream _body;
+
+		Response(HttpRequest request, URI uri, HttpClient.Version version, int statusCode, HttpHeaders headers, InputStream body) {
+			_request = request;
+			_uri = uri;
+			_version = version;
+			_statusCode = statusCode;
+			_headers = headers;
+			_body = body;
+		}
+
+		@Override
+		public int statusCode() {
+			return _statusCode;
+		}
+
+		@Override
+		public HttpRequest request() {
+			return _request;
+		}
+
+		@Override
+		public Optional<HttpResponse<InputStream>> previousResponse() {
+			return Optional.empty();
+		}
+
+		@Override
+		public HttpHeaders headers() {
+			return _headers;
+		}
+
+		@Override
+		public InputStream body() {
+			return _body;
+		}
+
+		@Override
+		public Optional<SSLSession> sslSession() {
+			return Optional.empty();
+		}
+
+		@Override
+		public URI uri() {
+			return _uri;
+		}
+
+		@Override
+		public HttpClient.Version version() {
+			return _version;
+		}
+	}
+
+}
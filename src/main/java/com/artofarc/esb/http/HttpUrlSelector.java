@@ -22,14 +22,19 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.management.AttributeChangeNotification;
 import javax.management.MBeanNotificationInfo;
 import javax.management.NotificationBroadcasterSupport;
+import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
 import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.OpenDataException;
@@ -40,13 +45,91 @@ import com.artofarc.esb.context.WorkerPool;
 
 public abstract class HttpUrlSelector extends NotificationBroadcasterSupport implements Runnable, HttpUrlSelectorMBean {
 
+	// upper bound for the length of the precomputed round robin sequence
+	private static final int MAX_SEQUENCE_LENGTH = 4096;
+	// time constant for the decay of the latency EWMA
+	private static final double DECAY_TIME = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Immutable snapshot of the active urls. Replaced (copy on write) whenever an url changes its state, thus selection needs no lock.
+	 */
+	private static final class Schedule {
+
+		final boolean[] _active;
+		// active positions not ejected by their circuit breaker in ascending order
+		final int[] _positions;
+		// smooth weighted round robin over the active positions
+		final int[] _sequence;
+
+		/**
+		 * @param weight share of each url in the sequence
+		 */
+		Schedule(boolean[] active, boolean[] ejected, int[] weight) {
+			_active = active.clone();
+			int count = 0, gcd = 0;
+			long total = 0;
+			for (int i = 0; i < active.length; ++i) {
+				if (active[i] && !ejected[i]) {
+					++count;
+					gcd = gcd(gcd, weight[i]);
+					total += weight[i];
+				}
+			}
+			_positions = new int[count];
+			int[] w = new int[count];
+			int length = 0;
+			for (int i = 0, j = 0; i < active.length; ++i) {
+				if (active[i] && !ejected[i]) {
+					_positions[j] = i;
+					w[j] = weight[i] / gcd;
+					if (total / gcd > MAX_SEQUENCE_LENGTH) {
+						w[j] = (int) Math.max(1L, (long) weight[i] * MAX_SEQUENCE_LENGTH / total);
+					}
+					length += w[j++];
+				}
+			}
+			_sequence = new int[length];
+			int[] current = new int[count];
+			for (int n = 0; n < length; ++n) {
+				int best = 0;
+				for (int j = 0; j < count; ++j) {
+					current[j] += w[j];
+					if (current[j] > current[best]) {
+						best = j;
+					}
+				}
+				current[best] -= length;
+				_sequence[n] = _positions[best];
+			}
+		}
+
+		private static int gcd(int a, int b) {
+			while (b != 0) {
+				int t = a % b;
+				a = b;
+				b = t;
+			}
+			return a;
+		}
+	}
+
 	private final List<WeakReference<HttpEndpoint>> _httpEndpoints = new ArrayList<>();
 	private final WorkerPool _workerPool;
 	private final int size, passiveSize;
 	private final int[] weight;
-	private final boolean[] active;
+	// share of the urls in the round robin sequence of multi-threaded endpoints
+	private final int[] share;
+	private final boolean[] active, ejected;
+	private final HttpCircuitBreaker _circuitBreaker;
+	private final HttpCircuitBreaker.Window[] _circuitBreakerWindows;
+	private int ejectedCount;
+	// half open urls, they stay out of the schedule and only get the probe calls
+	private volatile int[] _halfOpenPositions = new int[0];
 	protected final AtomicIntegerArray inUse;
-	private int pos;
+	private volatile Schedule _schedule;
+	private final AtomicInteger _cursor = new AtomicInteger();
+	// latency EWMA per url (as bits of a double in nanoseconds) and the point in time of its last update
+	private final AtomicLongArray _latencyEwma, _latencyStamp;
 	private int activeCount, passiveCount;
 	private long _sequenceNumber;
 	private ScheduledFuture<?> _future;
@@ -61,12 +144,45 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 		size = httpEndpoint.getHttpUrls().size();
 		weight = new int[size];
 		active = new boolean[size];
+		ejected = new boolean[size];
 		inUse = new AtomicIntegerArray(size);
+		_latencyEwma = new AtomicLongArray(size);
+		_latencyStamp = new AtomicLongArray(size);
 		for (int i = 0; i < size; ++i) {
 			weight[i] = httpEndpoint.getHttpUrls().get(i).getWeight();
 			if (active[i] = httpEndpoint.getHttpUrls().get(i).isActive()) ++activeCount;
 		}
 		passiveSize = size - activeCount;
+		share = httpEndpoint.getLoadBalancing() == HttpEndpoint.LoadBalancing.WEIGHTED_ROUND_ROBIN ? weight : inverse(weight);
+		_schedule = new Schedule(active, ejected, share);
+		_circuitBreaker = httpEndpoint.getCircuitBreaker();
+		if (_circuitBreaker != null) {
+			_circuitBreakerWindows = new HttpCircuitBreaker.Window[size];
+			for (int i = 0; i < size; ++i) {
+				_circuitBreakerWindows[i] = _circuitBreaker.new Window();
+			}
+		} else {
+			_circuitBreakerWindows = null;
+		}
+	}
+
+	/**
+	 * Traditionally an url of weight w is taken every w-th time it is visited, i.e. the share of an url is inversely proportional to its weight.
+	 */
+	private static int[] inverse(int[] weight) {
+		long lcm = 1;
+		for (int w : weight) {
+			lcm = lcm / Schedule.gcd((int) lcm, w) * w;
+			if (lcm > MAX_SEQUENCE_LENGTH) {
+				lcm = MAX_SEQUENCE_LENGTH;
+				break;
+			}
+		}
+		int[] share = new int[weight.length];
+		for (int i = 0; i < weight.length; ++i) {
+			share[i] = (int) Math.max(1L, lcm / weight[i]);
+		}
+		return share;
 	}
 
 	public static boolean doOutput(String method, Long contentLength) {
@@ -120,8 +236,8 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 		}
 	}
 
-	public final synchronized boolean isActive(int pos) {
-		return active[pos];
+	public final boolean isActive(int pos) {
+		return _schedule._active[pos];
 	}
 
 	public final void setActive(int pos, boolean b) {
@@ -131,6 +247,7 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 	synchronized void setActive(HttpEndpoint httpEndpoint, int pos, boolean b) {
 		if (active[pos] != b) {
 			active[pos] = b;
+			_schedule = new Schedule(active, ejected, share);
 			if (httpEndpoint.getHttpUrls().get(pos).isActive()) {
 				if (b) {
 					if (++activeCount == size - passiveSize) {
@@ -172,6 +289,10 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 			_future.cancel(true);
 			_future = null;
 		}
+		stopped();
+	}
+
+	protected void stopped() {
 	}
 
 	@Override
@@ -200,34 +321,170 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 
 	protected abstract boolean checkAlive(HttpEndpoint httpEndpoint, HttpUrl httpUrl) throws Exception;
 
-	synchronized int computeNextPos(HttpEndpoint httpEndpoint) {
-		if (getActiveCount() == 0) {
-			if (passiveSize > 0) {
-				// switch all passive urls on
-				for (int i = 0; i < size; ++i) {
-					if (!httpEndpoint.getHttpUrls().get(i).isActive()) {
-						setActive(httpEndpoint, i, true);
-					}
-				}
-			} else {
+	int computeNextPos(HttpEndpoint httpEndpoint) {
+		for (int pos : _halfOpenPositions) {
+			if (isActive(pos) && _circuitBreakerWindows[pos].tryAdmit()) {
+				return pos;
+			}
+		}
+		return computeScheduledPos(httpEndpoint);
+	}
+
+	/**
+	 * Like {@link #computeNextPos(HttpEndpoint)}, but without admitting probe calls to half open urls. For choices that might be discarded.
+	 */
+	int computeScheduledPos(HttpEndpoint httpEndpoint) {
+		Schedule schedule = _schedule;
+		if (schedule._positions.length == 0) {
+			schedule = activatePassive(httpEndpoint);
+			if (schedule == null) {
 				return -1;
 			}
 		}
-		for (int i = 0;; ++pos) {
-			if (pos == size) {
-				pos = 0;
+		switch (httpEndpoint.getLoadBalancing()) {
+		case LEAST_OUTSTANDING_REQUESTS:
+			return leastOutstandingRequests(schedule._positions);
+		case POWER_OF_TWO_CHOICES:
+		case PEAK_EWMA:
+			return powerOfTwoChoices(schedule._positions);
+		default:
+			break;
+		}
+		if (httpEndpoint.isMultiThreaded()) {
+			return schedule._sequence[(_cursor.getAndIncrement() & Integer.MAX_VALUE) % schedule._sequence.length];
+		}
+		// weight is the number of concurrent connections an url can take
+		final int[] positions = schedule._positions;
+		final int start = _cursor.get();
+		for (int i = 0; i < positions.length; ++i) {
+			int pos = positions[((start + i) & Integer.MAX_VALUE) % positions.length];
+			if (inUse.get(pos) < weight[pos]) {
+				_cursor.compareAndSet(start, start + i + 1);
+				return pos;
 			}
-			if (active[pos]) {
-				if (httpEndpoint.isMultiThreaded()) {
-					if (--weight[pos] == 0) {
-						weight[pos] = httpEndpoint.getHttpUrls().get(pos).getWeight();
-						return pos++;
-					}
-				} else if (i++ == getActiveCount() || inUse.get(pos) < weight[pos]) {
-					return pos++;
+		}
+		// all urls are busy, continue round robin
+		_cursor.compareAndSet(start, start + 1);
+		return positions[(start & Integer.MAX_VALUE) % positions.length];
+	}
+
+	private int leastOutstandingRequests(int[] positions) {
+		// rotate the starting point so that ties are resolved round robin
+		final int start = _cursor.getAndIncrement() & Integer.MAX_VALUE;
+		int result = -1;
+		double minLoad = Double.MAX_VALUE;
+		for (int i = 0; i < positions.length; ++i) {
+			int pos = positions[(start + i) % positions.length];
+			double load = (double) inUse.get(pos) / weight[pos];
+			if (load < minLoad) {
+				minLoad = load;
+				result = pos;
+			}
+		}
+		return result;
+	}
+
+	private int powerOfTwoChoices(int[] positions) {
+		if (positions.length == 1) {
+			return positions[0];
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int a = random.nextInt(positions.length), b = random.nextInt(positions.length - 1);
+		if (b >= a) {
+			++b;
+		}
+		long now = System.nanoTime();
+		return getCost(positions[a], now) <= getCost(positions[b], now) ? positions[a] : positions[b];
+	}
+
+	private double getCost(int pos, long now) {
+		return (inUse.get(pos) + 1) * getLatencyEwma(pos, now) / weight[pos];
+	}
+
+	/**
+	 * @return the latency EWMA decayed by the time passed since the last update, thus a url which had been slow once will get requests again
+	 */
+	private double getLatencyEwma(int pos, long now) {
+		double ewma = Double.longBitsToDouble(_latencyEwma.get(pos));
+		long elapsed = now - _latencyStamp.get(pos);
+		return elapsed > 0 ? ewma * Math.exp(-elapsed / DECAY_TIME) : ewma;
+	}
+
+	/**
+	 * Account the time until the response of an url arrived.
+	 */
+	protected final void recordLatency(HttpEndpoint httpEndpoint, int pos, long nanos) {
+		long now = System.nanoTime();
+		double w = Math.exp(-Math.max(0L, now - _latencyStamp.get(pos)) / DECAY_TIME);
+		boolean peak = httpEndpoint.getLoadBalancing() == HttpEndpoint.LoadBalancing.PEAK_EWMA;
+		for (;;) {
+			long bits = _latencyEwma.get(pos);
+			double ewma = Double.longBitsToDouble(bits);
+			// first sample is taken over as is
+			double next = ewma == 0. || peak && nanos > ewma ? nanos : ewma * w + nanos * (1. - w);
+			if (_latencyEwma.compareAndSet(pos, bits, Double.doubleToRawLongBits(next))) {
+				break;
+			}
+		}
+		_latencyStamp.set(pos, now);
+		recordOutcome(pos, false, nanos);
+	}
+
+	/**
+	 * Account a call to an url which failed with an IOException or was not alive.
+	 */
+	protected final void recordFailure(int pos) {
+		recordOutcome(pos, true, 0L);
+	}
+
+	private void recordOutcome(int pos, boolean failure, long nanos) {
+		if (_circuitBreakerWindows != null) {
+			HttpCircuitBreaker.State state = _circuitBreakerWindows[pos].record(failure, nanos);
+			if (state != null) {
+				changeCircuitBreakerState(pos, state);
+			}
+		}
+	}
+
+	synchronized void changeCircuitBreakerState(int pos, HttpCircuitBreaker.State state) {
+		HttpCircuitBreaker.Window window = _circuitBreakerWindows[pos];
+		HttpCircuitBreaker.State oldState = window.getState();
+		if (oldState == state) {
+			return;
+		}
+		if (state == HttpCircuitBreaker.State.OPEN) {
+			if (oldState == HttpCircuitBreaker.State.CLOSED && !_circuitBreaker.mayEject(ejectedCount, size)) {
+				HttpEndpointRegistry.logger.warn("Ejection limit reached, keep circuit breaker closed for " + getFirstHttpEndpoint().getHttpUrls().get(pos));
+				// start over with an empty window
+				window.setState(HttpCircuitBreaker.State.CLOSED);
+				return;
+			}
+			if (!ejected[pos]) {
+				ejected[pos] = true;
+				++ejectedCount;
+			}
+			_workerPool.getScheduledExecutorService().schedule(() -> changeCircuitBreakerState(pos, HttpCircuitBreaker.State.HALF_OPEN), _circuitBreaker.getOpenDuration(), TimeUnit.SECONDS);
+		} else if (state == HttpCircuitBreaker.State.CLOSED && ejected[pos]) {
+			ejected[pos] = false;
+			--ejectedCount;
+		}
+		window.setState(state);
+		_schedule = new Schedule(active, ejected, share);
+		_halfOpenPositions = IntStream.range(0, size).filter(i -> _circuitBreakerWindows[i].getState() == HttpCircuitBreaker.State.HALF_OPEN).toArray();
+		sendNotification(new AttributeChangeNotification(this, ++_sequenceNumber, System.currentTimeMillis(), "Circuit breaker state changed", "circuitBreaker[" + pos + "]", "java.lang.String", oldState.name(), state.name()));
+	}
+
+	private synchronized Schedule activatePassive(HttpEndpoint httpEndpoint) {
+		if (getActiveCount() == 0 && passiveSize > 0) {
+			// switch all passive urls on
+			for (int i = 0; i < size; ++i) {
+				if (!httpEndpoint.getHttpUrls().get(i).isActive()) {
+					setActive(httpEndpoint, i, true);
 				}
 			}
 		}
+		Schedule schedule = _schedule;
+		return schedule._positions.length > 0 ? schedule : null;
 	}
 
 	protected final int getUnavailableCount() {
@@ -238,17 +495,31 @@ public abstract class HttpUrlSelector extends NotificationBroadcasterSupport imp
 	// Methods for monitoring, not synchronized to avoid effects on important methods
 
 	public CompositeDataSupport[] getHttpEndpointStates() throws OpenDataException {
-		String[] itemNames = { "URL", "weight", "active", "inUse" };
-		OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.INTEGER, SimpleType.BOOLEAN, SimpleType.INTEGER };
-		CompositeType rowType = new CompositeType("HttpEndpointState", "State of HttpEndpoint", itemNames, itemNames, itemTypes);
+		String[] itemNames = { "URL", "weight", "active", "inUse", "latencyEwma", "circuitBreaker" };
+		OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.INTEGER, SimpleType.BOOLEAN, SimpleType.INTEGER, SimpleType.DOUBLE, SimpleType.STRING };
+		CompositeType rowType = new CompositeType("HttpEndpointState", "State of HttpEndpoint (latencyEwma in ms)", itemNames, itemNames, itemTypes);
 		CompositeDataSupport[] result = new CompositeDataSupport[size];
+		long now = System.nanoTime();
 		for (int i = 0; i < size; ++i) {
-			Object[] itemValues = { getFirstHttpEndpoint().getHttpUrls().get(i).toString(), weight[i], isActive(i), inUse.get(i) };
+			Object[] itemValues = { getFirstHttpEndpoint().getHttpUrls().get(i).toString(), weight[i], isActive(i), inUse.get(i), getLatencyEwma(i, now) / 1000000.,
+					_circuitBreakerWindows != null ? _circuitBreakerWindows[i].getState().name() : null };
 			result[i] = new CompositeDataSupport(rowType, itemNames, itemValues);
 		}
 		return result;
 	}
 
+	public CompositeDataSupport[] getConnectionPoolStates() throws OpenDataException {
+		return null;
+	}
+
+	public CompositeData getHedgingState() throws OpenDataException {
+		return null;
+	}
+
+	public CompositeData getResponseCacheState() throws OpenDataException {
+		return null;
+	}
+
 	public Long getHealthCheckingDelay() {
 		return _future != null ? _future.getDelay(TimeUnit.SECONDS) : null;
 	}
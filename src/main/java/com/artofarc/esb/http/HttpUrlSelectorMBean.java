@@ -24,6 +24,12 @@ public interface HttpUrlSelectorMBean {
 
 	CompositeData[] getHttpEndpointStates() throws OpenDataException;
 
+	CompositeData[] getConnectionPoolStates() throws OpenDataException;
+
+	CompositeData getHedgingState() throws OpenDataException;
+
+	CompositeData getResponseCacheState() throws OpenDataException;
+
 	Long getHealthCheckingDelay();
 
 	void setActive(int pos, boolean b);
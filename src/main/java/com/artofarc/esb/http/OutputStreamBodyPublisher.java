@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.artofarc.util.IOUtils;
+
+/**
+ * Request body written by the thread of the pipeline directly to the subscriber of the HttpClient.
+ * A full chunk is only handed over when the subscriber has signaled demand, otherwise the writer blocks (at most timeout).
+ * Chunks are not recycled because the HttpClient gives no notice when it is done with a ByteBuffer.
+ */
+public final class OutputStreamBodyPublisher extends OutputStream implements HttpRequest.BodyPublisher {
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _demandSignaled = _lock.newCondition();
+	private final CountDownLatch _streamConsumed;
+	private final long _timeout;
+	private Flow.Subscriber<? super ByteBuffer> _subscriber;
+	private long _demand;
+	private boolean _cancelled, _completed;
+	private Throwable _failure;
+	private ByteBuffer _chunk;
+	private boolean _closed;
+
+	/**
+	 * @param streamConsumed counted down on subscription
+	 * @param timeout Milliseconds to wait for demand
+	 */
+	public OutputStreamBodyPublisher(CountDownLatch streamConsumed, long timeout) {
+		_streamConsumed = streamConsumed;
+		_timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	@Override
+	public long contentLength() {
+		return -1;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		boolean completed;
+		_lock.lock();
+		try {
+			if (_subscriber != null) {
+				subscriber.onSubscribe(new Subscription(null));
+				subscriber.onError(new IOException("Request body can only be streamed once"));
+				return;
+			}
+			_subscriber = subscriber;
+			completed = _completed;
+			// under lock to ensure onSubscribe happens before onComplete
+			subscriber.onSubscribe(new Subscription(subscriber));
+		} finally {
+			_lock.unlock();
+		}
+		_streamConsumed.countDown();
+		if (completed) {
+			// closed without data before subscription
+			subscriber.onComplete();
+		}
+	}
+
+	/**
+	 * Wake up a waiting writer because the exchange has ended.
+	 *
+	 * @param exception the reason or null if the response has been received
+	 */
+	public void abort(Throwable exception) {
+		_lock.lock();
+		try {
+			_failure = exception != null ? exception : new IOException("Response already received");
+			_demandSignaled.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void emit(ByteBuffer chunk) throws IOException {
+		Flow.Subscriber<? super ByteBuffer> subscriber;
+		_lock.lock();
+		try {
+			long nanos = _timeout;
+			while (_demand == 0 && !_cancelled && _failure == null) {
+				if (nanos <= 0) {
+					throw new IOException("Timeout waiting for demand of request body subscriber");
+				}
+				nanos = _demandSignaled.awaitNanos(nanos);
+			}
+			if (_cancelled) {
+				throw new IOException("Request body subscription cancelled");
+			}
+			if (_failure != null) {
+				throw new IOException("Request body could not be sent", _failure);
+			}
+			--_demand;
+			subscriber = _subscriber;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			_lock.unlock();
+		}
+		subscriber.onNext(chunk);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (_closed) {
+			throw new IOException("Stream closed");
+		}
+		if (_chunk == null) {
+			_chunk = ByteBuffer.allocate(IOUtils.MTU);
+		}
+		_chunk.put((byte) b);
+		if (!_chunk.hasRemaining()) {
+			emit(_chunk.flip());
+			_chunk = null;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (_closed) {
+			throw new IOException("Stream closed");
+		}
+		while (len > 0) {
+			if (_chunk == null) {
+				_chunk = ByteBuffer.allocate(IOUtils.MTU);
+			}
+			int n = Math.min(len, _chunk.remaining());
+			_chunk.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!_chunk.hasRemaining()) {
+				emit(_chunk.flip());
+				_chunk = null;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!_closed) {
+			_closed = true;
+			if (_chunk != null && _chunk.position() > 0) {
+				emit(_chunk.flip());
+			}
+			_chunk = null;
+			Flow.Subscriber<? super ByteBuffer> subscriber;
+			_lock.lock();
+			try {
+				_completed = true;
+				subscriber = _cancelled ? null : _subscriber;
+			} finally {
+				_lock.unlock();
+			}
+			if (subscriber != null) {
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	private final class Subscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super ByteBuffer> _owner;
+
+		Subscription(Flow.Subscriber<? super ByteBuffer> owner) {
+			_owner = owner;
+		}
+
+		@Override
+		public void request(long n) {
+			if (_owner == null) {
+				return;
+			}
+			if (n <= 0) {
+				cancel();
+				_owner.onError(new IllegalArgumentException("non-positive request: " + n));
+				return;
+			}
+			_lock.lock();
+			try {
+				_demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+				_demandSignaled.signalAll();
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			if (_owner != null) {
+				_lock.lock();
+				try {
+					_cancelled = true;
+					_demandSignaled.signalAll();
+				} finally {
+					_lock.unlock();
+				}
+			}
+		}
+	}
+
+}
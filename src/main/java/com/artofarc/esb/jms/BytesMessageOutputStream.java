@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.jms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+import com.artofarc.util.IOUtils;
+
+/**
+ * Collects small writes in a chunk buffer which is reused per {@link JMSSession}.
+ * With direct hand-off writes of at least a chunk are passed to the BytesMessage without copying, in particular the buffer of a
+ * {@link com.artofarc.util.ByteArrayOutputStream} or byte[] body, which arrives in one write (see {@link java.io.ByteArrayInputStream#transferTo(OutputStream)}).
+ * Disable it (esb0.jms.directHandOff=false) for providers which keep a reference to the array instead of copying it.
+ */
+public final class BytesMessageOutputStream extends OutputStream {
+
+	static final int CHUNK_SIZE = IOUtils.MTU;
+	static final boolean DIRECT_HAND_OFF = Boolean.parseBoolean(System.getProperty("esb0.jms.directHandOff", "true"));
+
+	private final BytesMessage _bytesMessage;
+	private final JMSSession _jmsSession;
+	private final boolean _directHandOff;
+	private byte[] _buffer;
+	private int _count;
+
+	public BytesMessageOutputStream(BytesMessage bytesMessage, JMSSession jmsSession) {
+		this(bytesMessage, jmsSession, DIRECT_HAND_OFF);
+	}
+
+	BytesMessageOutputStream(BytesMessage bytesMessage, JMSSession jmsSession, boolean directHandOff) {
+		_bytesMessage = bytesMessage;
+		_jmsSession = jmsSession;
+		_directHandOff = directHandOff;
+		_buffer = jmsSession != null ? jmsSession.borrowChunkBuffer() : new byte[CHUNK_SIZE];
+	}
+
+	public BytesMessage getBytesMessage() {
+		return _bytesMessage;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (_buffer == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (_count > 0) {
+			writeBytes(_buffer, 0, _count);
+			_count = 0;
+		}
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		try {
+			_bytesMessage.writeBytes(b, off, len);
+		} catch (JMSException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (_count == _buffer.length) {
+			flushBuffer();
+		}
+		_buffer[_count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (_directHandOff && len >= _buffer.length) {
+			flushBuffer();
+			writeBytes(b, off, len);
+		} else {
+			while (len > 0) {
+				if (_count == _buffer.length) {
+					flushBuffer();
+				}
+				int n = Math.min(len, _buffer.length - _count);
+				System.arraycopy(b, off, _buffer, _count, n);
+				_count += n;
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (_buffer != null) {
+			flushBuffer();
+			if (_jmsSession != null) {
+				_jmsSession.returnChunkBuffer(_buffer);
+			}
+			_buffer = null;
+		}
+	}
+
+}
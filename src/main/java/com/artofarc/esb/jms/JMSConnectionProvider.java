@@ -52,6 +52,10 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 	final static Logger logger = LoggerFactory.getLogger(JMSConnectionProvider.class);
 	final static long closeWithTimeout = Long.parseLong(System.getProperty("esb0.jms.closeWithTimeout", "0"));
 	final static long reconnectInterval = Long.parseLong(System.getProperty("esb0.jms.reconnectInterval", "60"));
+	// bounds the idle sessions only, borrowing never blocks
+	final static int sessionPoolMaxIdle = Integer.parseInt(System.getProperty("esb0.jms.sessionPool.maxIdle", "0"));
+	final static int sessionPoolStripes = Integer.parseInt(System.getProperty("esb0.jms.sessionPool.stripes", "8"));
+	final static long sessionPoolIdleTimeout = Long.parseLong(System.getProperty("esb0.jms.sessionPool.idleTimeout", "300"));
 
 	private final PoolContext _poolContext;
 
@@ -86,11 +90,28 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 		getResource(jmsConnectionData).removeJMSConsumer(jmsConsumer);
 	}
 
+	public static boolean isSessionPoolEnabled() {
+		return sessionPoolMaxIdle > 0;
+	}
+
+	/**
+	 * @return a non-transacted session shared with other Contexts, must be given back using {@link #releasePooledSession(JMSSession, boolean)}
+	 */
+	public JMSSession borrowPooledSession(JMSConnectionData jmsConnectionData) throws JMSException {
+		return getResource(jmsConnectionData).getSessionPool().borrow();
+	}
+
+	public void releasePooledSession(JMSSession jmsSession, boolean discard) {
+		// give it back to the guard it was borrowed from, which may have been closed meanwhile
+		jmsSession.getJMSConnectionGuard().releasePooledSession(jmsSession, discard);
+	}
+
 	final class JMSConnectionGuard extends NotificationBroadcasterSupport implements AutoCloseable, ExceptionListener, Runnable, GlobalContext.PropertyChangeListener, com.artofarc.esb.mbean.JMSConnectionGuardMXBean {
 
 		private final ReentrantLock _lock = new ReentrantLock();
 		private final Map<JMSConsumer, Boolean> _jmsConsumers = new ConcurrentHashMap<>();
 		private final Set<JMSSessionFactory> _jmsSessionFactories = ConcurrentHashMap.newKeySet();
+		private final Map<String, JMSReplyDemultiplexer> _replyDemultiplexers = new ConcurrentHashMap<>();
 		private final JMSConnectionData _jmsConnectionData;
 		private volatile Connection _connection;
 		private volatile ConnectionMetaData _connectionMetaData;
@@ -99,6 +120,8 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 		private volatile long _lastChangeOfState;
 		private volatile boolean _disconnected;
 		private final AtomicBoolean _connecting = new AtomicBoolean();
+		private volatile JMSSessionPool _sessionPool;
+		private volatile Future<?> _evictionFuture;
 
 		private JMSConnectionGuard(JMSConnectionData jmsConnectionData) {
 			super(_poolContext.getWorkerPool().getExecutorService(), new MBeanNotificationInfo(new String[] { AttributeChangeNotification.ATTRIBUTE_CHANGE },
@@ -128,6 +151,44 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 			return connection;
 		}
 
+		JMSConnectionData getJMSConnectionData() {
+			return _jmsConnectionData;
+		}
+
+		JMSSessionPool getSessionPool() {
+			JMSSessionPool sessionPool = _sessionPool;
+			if (sessionPool == null) {
+				_lock.lock();
+				try {
+					sessionPool = _sessionPool;
+					if (sessionPool == null) {
+						logger.info("Creating session pool for " + _jmsConnectionData);
+						sessionPool = new JMSSessionPool(this, sessionPoolMaxIdle, sessionPoolStripes, sessionPoolIdleTimeout);
+						long period = Math.max(1L, sessionPoolIdleTimeout / 2);
+						_evictionFuture = getScheduledExecutorService().scheduleWithFixedDelay(sessionPool::evictIdle, period, period, TimeUnit.SECONDS);
+						_sessionPool = sessionPool;
+					}
+				} finally {
+					_lock.unlock();
+				}
+			}
+			return sessionPool;
+		}
+
+		void releasePooledSession(JMSSession jmsSession, boolean discard) {
+			_sessionPool.release(jmsSession, discard);
+		}
+
+		private void closeSessionPool(boolean cancelEviction) {
+			JMSSessionPool sessionPool = _sessionPool;
+			if (sessionPool != null) {
+				sessionPool.clear();
+				if (cancelEviction) {
+					_evictionFuture.cancel(false);
+				}
+			}
+		}
+
 		ConnectionMetaData getConnectionMetaData() {
 			return _connectionMetaData;
 		}
@@ -168,6 +229,31 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 			}
 		}
 
+		JMSReplyDemultiplexer getReplyDemultiplexer(String replyQueue, String messageSelector) throws JMSException {
+			final String key = replyQueue == null ? "" : messageSelector != null ? replyQueue + '?' + messageSelector : replyQueue;
+			JMSReplyDemultiplexer replyDemultiplexer = _replyDemultiplexers.get(key);
+			if (replyDemultiplexer == null) {
+				_lock.lock();
+				try {
+					replyDemultiplexer = _replyDemultiplexers.get(key);
+					if (replyDemultiplexer == null) {
+						replyDemultiplexer = new JMSReplyDemultiplexer(getConnection(), replyQueue, messageSelector);
+						_replyDemultiplexers.put(key, replyDemultiplexer);
+					}
+				} finally {
+					_lock.unlock();
+				}
+			}
+			return replyDemultiplexer;
+		}
+
+		private void closeReplyDemultiplexers() {
+			for (JMSReplyDemultiplexer replyDemultiplexer : _replyDemultiplexers.values()) {
+				Closer.closeQuietly(replyDemultiplexer);
+			}
+			_replyDemultiplexers.clear();
+		}
+
 		void addJMSSessionFactory(JMSSessionFactory jmsSessionFactory) {
 			_jmsSessionFactories.add(jmsSessionFactory);
 		}
@@ -194,11 +280,15 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 
 		private void scheduleReconnectTask() {
 			logger.info("Start reconnect thread for " + _jmsConnectionData);
+			_future = getScheduledExecutorService().scheduleAtFixedRate(this, reconnectInterval, reconnectInterval, TimeUnit.SECONDS);
+		}
+
+		private ScheduledExecutorService getScheduledExecutorService() {
 			ScheduledExecutorService scheduledExecutorService = _poolContext.getWorkerPool().getScheduledExecutorService();
 			if (scheduledExecutorService == null) {
 				scheduledExecutorService = _poolContext.getGlobalContext().getDefaultWorkerPool().getScheduledExecutorService();
 			}
-			_future = scheduledExecutorService.scheduleAtFixedRate(this, reconnectInterval, reconnectInterval, TimeUnit.SECONDS);
+			return scheduledExecutorService;
 		}
 
 		private void cancelReconnectTask() {
@@ -259,6 +349,8 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 				logger.info("Suspending JMSConsumer for " + jmsConsumer.getKey() + " in state " + entry.getValue());
 				jmsConsumer.suspend();
 			}
+			closeReplyDemultiplexers();
+			closeSessionPool(false);
 			for (JMSSessionFactory jmsSessionFactory : _jmsSessionFactories) {
 				try {
 					logger.info("Closing JMSSession");
@@ -329,6 +421,8 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 		public void close() throws JMSException {
 			_poolContext.getGlobalContext().unregisterMBean(getObjectName(_jmsConnectionData));
 			cancelReconnectTask();
+			closeReplyDemultiplexers();
+			closeSessionPool(true);
 			if (_connection != null) {
 				_connection.close();
 			}
@@ -382,6 +476,26 @@ public final class JMSConnectionProvider extends ResourceFactory<JMSConnectionPr
 		public Date getLastChangeOfState() {
 			return new Date(_lastChangeOfState);
 		}
+
+		public int getPooledSessionsIdle() {
+			JMSSessionPool sessionPool = _sessionPool;
+			return sessionPool != null ? sessionPool.getIdle() : 0;
+		}
+
+		public int getPooledSessionsBorrowed() {
+			JMSSessionPool sessionPool = _sessionPool;
+			return sessionPool != null ? sessionPool.getBorrowed() : 0;
+		}
+
+		public long getPooledSessionsCreated() {
+			JMSSessionPool sessionPool = _sessionPool;
+			return sessionPool != null ? sessionPool.getCreated() : 0L;
+		}
+
+		public long getPooledSessionsEvicted() {
+			JMSSessionPool sessionPool = _sessionPool;
+			return sessionPool != null ? sessionPool.getEvicted() : 0L;
+		}
 	}
 
 }
@@ -16,18 +16,31 @@
 package com.artofarc.esb.jms;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.*;
 import javax.management.ObjectName;
 import javax.naming.NamingException;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.dom.DOMResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import com.artofarc.esb.ConsumerPort;
 import com.artofarc.esb.Registry;
@@ -36,6 +49,7 @@ import com.artofarc.esb.Trend;
 import com.artofarc.esb.action.JDBCAction;
 import com.artofarc.esb.context.Context;
 import com.artofarc.esb.context.GlobalContext;
+import com.artofarc.esb.http.HttpConstants;
 import com.artofarc.esb.jdbc.JDBC2XMLMapper;
 import com.artofarc.esb.jms.aq.AdtHelper;
 import com.artofarc.esb.message.BodyType;
@@ -43,6 +57,7 @@ import com.artofarc.esb.message.ESBConstants;
 import com.artofarc.esb.message.ESBMessage;
 import com.artofarc.esb.resource.JMSSessionFactory;
 import com.artofarc.util.Closer;
+import com.artofarc.util.XMLProcessorFactory;
 import com.sun.xml.xsom.XSSchemaSet;
 
 public final class JMSConsumer extends SchedulingConsumerPort implements com.artofarc.esb.mbean.JMSConsumerMXBean {
@@ -56,24 +71,33 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 	private final boolean _noLocal;
 	private final boolean _shared;
 	private final String _messageSelector;
+	private final String _errorQueue;
+	private final boolean _aggregate;
+	private final int _prefetch;
 	private final JMSWorker[] _jmsWorker;
-	private final long _rampUpThreshold = 1000L;
-	private final long _rampUpDelay = 2000L;
-	private final long _rampDownThreshold = 100L;
-	private final long _rampDownDelay = 10000L;
+	private final JMSWorkerScaler _workerScaler;
 	private final int _minWorkerCount;
 	private final int _batchSize;
 	private final long _batchTime;
-	private long _lastControlChange;
 	private volatile boolean _operating;
 	private volatile int _workerCount;
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private final AtomicLong _bisections = new AtomicLong(), _poisonMessages = new AtomicLong(), _receiveIdleTime = new AtomicLong();
+	// JMSMessageID of poison messages with the time of marking, shared by all workers as redelivery may reach any of them
+	private final Map<String, Long> _poisonMessageIDs = new ConcurrentHashMap<>();
 	private final Trend _sentReceiveDelay = new Trend(10L);
+	private final Trend _processingTime = new Trend(10L);
+	private volatile int _queueDepth = -1;
 	private volatile long _lastChangeOfState;
-	private Future<?> _control;
+	private Future<?> _control, _browser;
+
+	private static final int MAX_QUEUE_DEPTH = Integer.parseInt(System.getProperty("esb0.jms.maxBrowsedQueueDepth", "10000"));
+	// a poison message not redelivered within this time has been consumed elsewhere
+	private static final long POISON_RETENTION = TimeUnit.MINUTES.toMillis(10);
 
 	public JMSConsumer(GlobalContext globalContext, String uri, String workerPool, JMSConnectionData jmsConnectionData, String jndiDestination, String queueName, String topicName,
 			XSSchemaSet schemaSet, String rootElement, String subscription, boolean noLocal, boolean shared, String messageSelector, int workerCount, int minWorkerCount, int batchSize,
-			int batchTime, long pollInterval, String timeUnit, XMLGregorianCalendar at) throws NamingException, JMSException {
+			int batchTime, long pollInterval, String timeUnit, XMLGregorianCalendar at, String errorQueue, boolean aggregate, int prefetch, JMSWorkerScaler workerScaler) throws NamingException, JMSException {
 
 		super(uri, workerPool, at, timeUnit, pollInterval, false);
 		_jmsConnectionData = jmsConnectionData;
@@ -104,6 +128,11 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 		_minWorkerCount = minWorkerCount;
 		_batchSize = batchSize;
 		_batchTime = batchTime * 1000000;
+		if (aggregate && _mapper != null) throw new IllegalArgumentException("Oracle AQ ADT messages cannot be aggregated: " + getKey());
+		_errorQueue = globalContext.bindProperties(errorQueue);
+		_aggregate = aggregate;
+		_prefetch = prefetch;
+		_workerScaler = workerScaler;
 	}
 
 	private String getDestinationName() {
@@ -149,6 +178,38 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 		return _sentReceiveDelay.getCurrent();
 	}
 
+	public long getCurrentProcessingTime() {
+		return _processingTime.getCurrent();
+	}
+
+	public int getInFlight() {
+		return _inFlight.get();
+	}
+
+	public int getQueueDepth() {
+		return _queueDepth;
+	}
+
+	public long getScalingPressure() {
+		return _workerScaler.getPressure();
+	}
+
+	public String getLastScalingDecision() {
+		return _workerScaler.getLastDecision();
+	}
+
+	public long getBisectionCount() {
+		return _bisections.get();
+	}
+
+	public long getPoisonMessageCount() {
+		return _poisonMessages.get();
+	}
+
+	public long getReceiveIdleTime() {
+		return TimeUnit.NANOSECONDS.toMillis(_receiveIdleTime.get());
+	}
+
 	public synchronized void init(GlobalContext globalContext) throws JMSException {
 		initWorkerPool(globalContext);
 		if (_workerPool.getExecutorService() == null) {
@@ -172,34 +233,59 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 	}
 
 	public void adjustJMSWorkerPool() {
-		adjustJMSWorkerPool(0, System.currentTimeMillis());
+		if (_workerScaler.isBrowseQueue() && _queueName != null && _operating) {
+			browseQueue();
+		}
+		adjustJMSWorkerPool(_inFlight.get() > 0 ? _sentReceiveDelay.getCurrent() : 0L, System.currentTimeMillis());
 	}
 
 	private synchronized void adjustJMSWorkerPool(long sentReceiveDelay, long receiveTimestamp) {
-		boolean notBusy = _control == null || _control.isDone();
-		if (_operating && _workerCount < _jmsWorker.length && sentReceiveDelay > _rampUpThreshold && notBusy && _lastControlChange + _rampUpDelay < receiveTimestamp) {
-			// add Worker
-			final JMSWorker jmsWorker = _period > 0L ? new JMSPollingWorker(0L) : new JMSWorker();
-			_control = _workerPool.getExecutorService().submit(() -> {
-				try {
-					jmsWorker.open();
-					jmsWorker.startListening();
+		if (_operating && (_control == null || _control.isDone())) {
+			switch (_workerScaler.decide(receiveTimestamp, _workerCount, _minWorkerCount, _jmsWorker.length, _inFlight.get(), _processingTime.getCurrent(), sentReceiveDelay, _queueDepth)) {
+			case ADD:
+				final JMSWorker newJmsWorker = _period > 0L ? new JMSPollingWorker(0L) : new JMSWorker();
+				_control = _workerPool.getExecutorService().submit(() -> {
+					try {
+						newJmsWorker.open();
+						newJmsWorker.startListening();
+					} catch (JMSException e) {
+						logger.error("Could not add JMSWorker", e);
+					}
+				});
+				_jmsWorker[_workerCount++] = newJmsWorker;
+				break;
+			case REMOVE:
+				final JMSWorker jmsWorker = _jmsWorker[--_workerCount];
+				_control = _workerPool.getExecutorService().submit(() -> {
+					jmsWorker.close();
+					jmsWorker._context.close();
+				});
+				_jmsWorker[_workerCount] = null;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private synchronized void browseQueue() {
+		if (_browser == null || _browser.isDone()) {
+			_browser = _workerPool.getExecutorService().submit(() -> {
+				JMSConnectionProvider jmsConnectionProvider = _workerPool.getPoolContext().getResourceFactory(JMSConnectionProvider.class);
+				try (Session session = jmsConnectionProvider.getResource(_jmsConnectionData).getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+					Queue queue = _destination instanceof Queue ? (Queue) _destination : session.createQueue(_queueName);
+					try (QueueBrowser queueBrowser = session.createBrowser(queue, _messageSelector)) {
+						int queueDepth = 0;
+						for (Enumeration<?> enumeration = queueBrowser.getEnumeration(); enumeration.hasMoreElements() && queueDepth < MAX_QUEUE_DEPTH; ++queueDepth) {
+							enumeration.nextElement();
+						}
+						_queueDepth = queueDepth;
+					}
 				} catch (JMSException e) {
-					logger.error("Could not add JMSWorker", e);
+					_queueDepth = -1;
+					logger.debug("Could not browse " + getKey(), e);
 				}
 			});
-			_jmsWorker[_workerCount++] = jmsWorker;
-			_lastControlChange = System.currentTimeMillis();
-		}
-		if (_operating && _workerCount > _minWorkerCount && sentReceiveDelay < _rampDownThreshold && notBusy && _lastControlChange + _rampDownDelay < receiveTimestamp) {
-			// remove Worker
-			final JMSWorker jmsWorker = _jmsWorker[--_workerCount];
-			_control = _workerPool.getExecutorService().submit(() -> {
-				jmsWorker.close();
-				jmsWorker._context.close();
-			});
-			_jmsWorker[_workerCount] = null;
-			_lastControlChange = System.currentTimeMillis();
 		}
 	}
 
@@ -305,6 +391,16 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 		return false;
 	}
 
+	private void markPoison(Message message) throws JMSException {
+		final long now = System.currentTimeMillis();
+		_poisonMessageIDs.values().removeIf(time -> now - time > POISON_RETENTION);
+		_poisonMessageIDs.put(message.getJMSMessageID(), now);
+	}
+
+	private boolean isPoison(Message message) throws JMSException {
+		return !_poisonMessageIDs.isEmpty() && _poisonMessageIDs.containsKey(message.getJMSMessageID());
+	}
+
 	public static void fillESBMessage(Context context, ESBMessage esbMessage, Message message) throws Exception {
 		for (@SuppressWarnings("unchecked")
 		Enumeration<String> propertyNames = message.getPropertyNames(); propertyNames.hasMoreElements();) {
@@ -412,6 +508,7 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 		public void onMessage(Message message) {
 			// monitor threads not started by us but by the JMS provider
 			_workerPool.addThread(Thread.currentThread(), getDestinationName());
+			_inFlight.incrementAndGet();
 			try {
 				long receiveTimestamp = processMessage(message);
 				commit(receiveTimestamp, receiveTimestamp - message.getJMSTimestamp());
@@ -422,6 +519,8 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 				} catch (JMSException je) {
 					throw new RuntimeException(je);
 				}
+			} finally {
+				_inFlight.decrementAndGet();
 			}
 		}
 
@@ -433,11 +532,13 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 			if (_mapper != null) {
 				AdtHelper.parseAdtMessage(message, _mapper, _context, esbMessage);
 			}
+			long start = System.nanoTime();
 			processInternal(_context, esbMessage);
+			_processingTime.accumulateAndGet((System.nanoTime() - start) / 1000L);
 			return esbMessage.getVariable(ESBConstants.initialTimestamp);
 		}
 
-		protected final void commit(long receiveTimestamp, long sentReceiveDelay) throws JMSException {
+		protected final boolean commit(long receiveTimestamp, long sentReceiveDelay) throws JMSException {
 			try {
 				JDBCAction.closeKeptConnections(_context, true);
 				JMSSessionFactory jmsSessionFactory = _context.getResourceFactory(JMSSessionFactory.class);
@@ -445,10 +546,11 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 			} catch (SQLException | JMSException e) {
 				logger.info("Rolling back for " + getKey(), e);
 				rollback();
-				return;
+				return false;
 			}
 			_session.getSession().commit();
 			adjustJMSWorkerPool(_sentReceiveDelay.accumulateAndGet(sentReceiveDelay), receiveTimestamp);
+			return true;
 		}
 
 		protected final void rollback() throws JMSException {
@@ -467,6 +569,16 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 	class JMSPollingWorker extends JMSWorker implements Runnable {
 		final long _initialDelay;
 		volatile Future<?> _poller;
+		DocumentBuilder _documentBuilder;
+		// lookahead of the current batch, filled by a receiver task running on a thread of its own
+		ArrayBlockingQueue<Message> _prefetchBuffer;
+		ExecutorService _receiver;
+		volatile boolean _stopReceiving;
+		volatile JMSException _receiveException;
+		// recovery of a failed batch: the next _suspects messages are processed in batches of at most _batchLimit
+		int _suspects, _batchLimit;
+		// poison messages sent to the error queue in the current transaction
+		final ArrayList<String> _movedToErrorQueue = new ArrayList<>();
 
 		JMSPollingWorker(long initialDelay) {
 			_initialDelay = initialDelay;
@@ -496,45 +608,315 @@ public final class JMSConsumer extends SchedulingConsumerPort implements com.art
 						poller.cancel(false);
 						_poller = null;
 					}
+					if (_receiver != null) {
+						_receiver.shutdown();
+						_receiver = null;
+					}
 				}
 			}
 		}
 
 		@Override
 		public synchronized void run() {
+			_inFlight.incrementAndGet();
 			try {
-				long receiveTimestamp = 0, sentReceiveDelay = 0, start = System.nanoTime();
-				int i = 0;
-				Message message;
-				while (_poller != null && (message = _messageConsumer.receiveNoWait()) != null) {
+				if (_aggregate) {
+					while (_poller != null && processAggregated());
+				} else if (_prefetch > 0) {
+					while (_poller != null && processPrefetched());
+				} else {
+					processSingly();
+				}
+				if (needsReschedule() && _poller != null) {
+					_poller = schedule(this, _initialDelay);
+				}
+			} catch (JMSException e) {
+				JMSConnectionProvider jmsConnectionProvider = _context.getPoolContext().getResourceFactory(JMSConnectionProvider.class);
+				jmsConnectionProvider.getExceptionListener(_jmsConnectionData).onException(e);
+			} finally {
+				_inFlight.decrementAndGet();
+			}
+		}
+
+		private void processSingly() throws JMSException {
+			long receiveTimestamp = 0, sentReceiveDelay = 0, start = System.nanoTime();
+			int i = 0, batchSize = _suspects > 0 ? _batchLimit : _batchSize;
+			_movedToErrorQueue.clear();
+			Message message;
+			while (_poller != null && (message = receiveNoWait()) != null) {
+				if (isPoison(message)) {
+					receiveTimestamp = moveToErrorQueue(message);
+					sentReceiveDelay = receiveTimestamp - message.getJMSTimestamp();
+				} else {
 					try {
 						receiveTimestamp = processMessage(message);
 						sentReceiveDelay = receiveTimestamp - message.getJMSTimestamp();
 					} catch (Exception e) {
 						logger.info("Rolling back for " + getKey(), e);
 						rollback();
+						bisect(batchSize, i, message);
 						i = 0;
 						break;
 					}
-					if (++i == _batchSize || System.nanoTime() - start > _batchTime) {
-						commit(receiveTimestamp, sentReceiveDelay);
-						if (i < _batchSize) {
-							logger.info("Batch timeout reached. Processed messages: " + i);
-						}
+				}
+				if (++i == batchSize || System.nanoTime() - start > _batchTime) {
+					if (!commitBatch(i, receiveTimestamp, sentReceiveDelay)) {
 						i = 0;
-						start = System.nanoTime();
+						break;
 					}
+					if (i < batchSize) {
+						logger.info("Batch timeout reached. Processed messages: " + i);
+					}
+					i = 0;
+					batchSize = _suspects > 0 ? _batchLimit : _batchSize;
+					_movedToErrorQueue.clear();
+					start = System.nanoTime();
+				}
+			}
+			if (i > 0) {
+				commitBatch(i, receiveTimestamp, sentReceiveDelay);
+			}
+		}
+
+		private Message receiveNoWait() throws JMSException {
+			long start = System.nanoTime();
+			try {
+				return _messageConsumer.receiveNoWait();
+			} finally {
+				_receiveIdleTime.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Messages of a batch are received by another thread while the flow processes their predecessors. Only this lookahead uses
+		 * the session concurrently, commit and rollback happen after the receiver has finished, so exactly the received messages are
+		 * committed. The receiver does not use the WorkerPool, because the flow could wait for it when all threads are busy.
+		 *
+		 * @return whether there are probably more messages
+		 */
+		private boolean processPrefetched() throws JMSException {
+			final int batchSize = _suspects > 0 ? _batchLimit : _batchSize;
+			if (_prefetchBuffer == null) {
+				_prefetchBuffer = new ArrayBlockingQueue<>(_prefetch);
+			}
+			if (_receiver == null) {
+				_receiver = Executors.newSingleThreadExecutor(r -> new Thread(r, "JMSReceiver-" + getKey()));
+			}
+			_prefetchBuffer.clear();
+			_movedToErrorQueue.clear();
+			_stopReceiving = false;
+			_receiveException = null;
+			final Future<?> receiver = _receiver.submit(() -> receiveAhead(batchSize));
+			long receiveTimestamp = 0, sentReceiveDelay = 0;
+			int i = 0;
+			Message message = null;
+			try {
+				while ((message = takePrefetched(receiver)) != null) {
+					receiveTimestamp = isPoison(message) ? moveToErrorQueue(message) : processMessage(message);
+					sentReceiveDelay = receiveTimestamp - message.getJMSTimestamp();
+					++i;
 				}
+			} catch (Exception e) {
+				logger.info("Rolling back for " + getKey(), e);
+				_stopReceiving = true;
+				while (takePrefetched(receiver) != null);
+				rollback();
+				bisect(batchSize, i, message);
+				return false;
+			}
+			if (_receiveException != null) {
 				if (i > 0) {
-					commit(receiveTimestamp, sentReceiveDelay);
+					commitBatch(i, receiveTimestamp, sentReceiveDelay);
 				}
-				if (needsReschedule() && _poller != null) {
-					_poller = schedule(this, _initialDelay);
+				throw _receiveException;
+			}
+			return i > 0 && commitBatch(i, receiveTimestamp, sentReceiveDelay) && i == batchSize;
+		}
+
+		private void receiveAhead(int batchSize) {
+			final long start = System.nanoTime();
+			try {
+				for (int n = 0; n < batchSize && !_stopReceiving && (n == 0 || System.nanoTime() - start <= _batchTime); ++n) {
+					Message message = _messageConsumer.receiveNoWait();
+					if (message == null) {
+						break;
+					}
+					while (!_prefetchBuffer.offer(message, 10L, TimeUnit.MILLISECONDS)) {
+						if (_stopReceiving) {
+							return;
+						}
+					}
 				}
 			} catch (JMSException e) {
-				JMSConnectionProvider jmsConnectionProvider = _context.getPoolContext().getResourceFactory(JMSConnectionProvider.class);
-				jmsConnectionProvider.getExceptionListener(_jmsConnectionData).onException(e);
+				_receiveException = e;
+			} catch (InterruptedException e) {
+				_stopReceiving = true;
+			}
+		}
+
+		/**
+		 * @return the next message of the batch or null if the receiver has finished
+		 */
+		private Message takePrefetched(Future<?> receiver) {
+			final long start = System.nanoTime();
+			try {
+				for (;;) {
+					boolean done = receiver.isDone();
+					Message message = _prefetchBuffer.poll(done ? 0L : 10L, TimeUnit.MILLISECONDS);
+					if (message != null || done) {
+						return message;
+					}
+				}
+			} catch (InterruptedException e) {
+				_stopReceiving = true;
+				Thread.currentThread().interrupt();
+				return null;
+			} finally {
+				_receiveIdleTime.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * @return whether there are probably more messages
+		 */
+		private boolean processAggregated() throws JMSException {
+			final int batchSize = _suspects > 0 ? _batchLimit : _batchSize;
+			final long start = System.nanoTime();
+			long receiveTimestamp = 0, sentReceiveDelay = 0;
+			int i = 0;
+			Message message = null;
+			_movedToErrorQueue.clear();
+			try {
+				Element messages = null;
+				while (i < batchSize && (i == 0 || System.nanoTime() - start <= _batchTime) && _poller != null && (message = receiveNoWait()) != null) {
+					if (isPoison(message)) {
+						receiveTimestamp = moveToErrorQueue(message);
+						++i;
+						continue;
+					}
+					if (messages == null) {
+						if (_documentBuilder == null) {
+							_documentBuilder = XMLProcessorFactory.getDocumentBuilderFactory().newDocumentBuilder();
+						}
+						Document document = _documentBuilder.newDocument();
+						document.appendChild(messages = document.createElement("messages"));
+					}
+					try {
+						appendMessage(messages, message);
+					} catch (Exception e) {
+						logger.info("Rolling back for " + getKey(), e);
+						rollback();
+						// the message which could not be appended is a suspect, too
+						bisect(i + 1, i, message);
+						return false;
+					}
+					sentReceiveDelay = System.currentTimeMillis() - message.getJMSTimestamp();
+					++i;
+				}
+				if (i == 0) {
+					return false;
+				}
+				if (messages != null) {
+					ESBMessage esbMessage = new ESBMessage(BodyType.DOM, messages.getOwnerDocument());
+					esbMessage.putVariable("JMSConnectionData", _jmsConnectionData.toString());
+					esbMessage.putVariable(ESBConstants.JMSOrigin, getDestinationName());
+					long startProcessing = System.nanoTime();
+					processInternal(_context, esbMessage);
+					_processingTime.accumulateAndGet((System.nanoTime() - startProcessing) / 1000L / i);
+					receiveTimestamp = esbMessage.getVariable(ESBConstants.initialTimestamp);
+				}
+			} catch (Exception e) {
+				logger.info("Rolling back for " + getKey(), e);
+				rollback();
+				// processing of the aggregate failed, any of its messages could be the cause
+				bisect(i, i - 1, i == 1 ? message : null);
+				return false;
+			}
+			return commitBatch(i, receiveTimestamp, sentReceiveDelay) && i == batchSize;
+		}
+
+		private void appendMessage(Element messages, Message message) throws Exception {
+			Document document = messages.getOwnerDocument();
+			Element element = document.createElement("message");
+			element.setAttribute(ESBConstants.JMSMessageID, message.getJMSMessageID());
+			element.setAttribute(ESBConstants.JMSTimestamp, Long.toString(message.getJMSTimestamp()));
+			if (message.getJMSCorrelationID() != null) {
+				element.setAttribute(ESBConstants.JMSCorrelationID, message.getJMSCorrelationID());
+			}
+			for (@SuppressWarnings("unchecked")
+			Enumeration<String> propertyNames = message.getPropertyNames(); propertyNames.hasMoreElements();) {
+				String propertyName = propertyNames.nextElement();
+				Element property = document.createElement("property");
+				property.setAttribute("name", propertyName);
+				property.setTextContent(String.valueOf(message.getObjectProperty(propertyName)));
+				element.appendChild(property);
+			}
+			ESBMessage esbMessage = new ESBMessage(BodyType.INVALID, null);
+			fillESBMessage(_context, esbMessage, message);
+			Element body = document.createElement("body");
+			if (HttpConstants.isNotXML(esbMessage.getContentType())) {
+				body.setTextContent(esbMessage.getBodyAsString(_context));
+			} else {
+				esbMessage.writeTo(new DOMResult(body), _context);
 			}
+			element.appendChild(body);
+			messages.appendChild(element);
+		}
+
+		private boolean commitBatch(int count, long receiveTimestamp, long sentReceiveDelay) throws JMSException {
+			if (commit(receiveTimestamp, sentReceiveDelay)) {
+				committed(count);
+				return true;
+			}
+			// failing message is unknown
+			bisect(count, count - 1, null);
+			return false;
+		}
+
+		private void committed(int count) {
+			for (String messageID : _movedToErrorQueue) {
+				_poisonMessageIDs.remove(messageID);
+				_poisonMessages.incrementAndGet();
+				logger.warn("Moved poison message " + messageID + " to " + _errorQueue);
+			}
+			_movedToErrorQueue.clear();
+			if (_suspects > 0 && (_suspects -= count) <= 0) {
+				_suspects = 0;
+				logger.info("Recovered from failed batch for " + getKey());
+			}
+		}
+
+		/**
+		 * Redelivery may come in another order or reach another worker, so this only narrows down the batch size. A message is considered
+		 * poison only when it fails in a transaction of its own after it had been delivered before.
+		 *
+		 * @param good Number of messages in the rolled back batch which were processed successfully before
+		 * @param failed The message which failed or null if unknown
+		 */
+		private void bisect(int batchSize, int good, Message failed) throws JMSException {
+			if (_batchSize > 1 || _errorQueue != null) {
+				_suspects = Math.max(_suspects, good + 1);
+				int batchLimit = failed != null ? Math.min(batchSize / 2, good) : batchSize / 2;
+				_batchLimit = Math.max(1, batchLimit);
+				if (batchSize > 1) {
+					_bisections.incrementAndGet();
+				}
+				// the message failed again in a transaction of its own
+				if (failed != null && batchSize == 1 && _errorQueue != null && failed.getJMSRedelivered()) {
+					markPoison(failed);
+				}
+			}
+		}
+
+		/**
+		 * The poison message is sent within the current transaction, thus it leaves the queue when the batch is committed.
+		 *
+		 * @return the receive timestamp
+		 */
+		private long moveToErrorQueue(Message message) throws JMSException {
+			_session.createProducer(_session.createQueue(_errorQueue)).send(message);
+			_movedToErrorQueue.add(message.getJMSMessageID());
+			return System.currentTimeMillis();
 		}
 	}
 
@@ -17,6 +17,7 @@ package com.artofarc.esb.jms;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -32,13 +33,13 @@ public class JMSConsumerGroup extends ConsumerPort {
 
 	public JMSConsumerGroup(GlobalContext globalContext, String uri, String workerPool, List<JMSConnectionData> jmsConnectionDataList, String jndiDestination, String queueName,
 			String topicName, XSSchemaSet schemaSet, String rootElement, String subscription, boolean noLocal, boolean shared, String messageSelector, int workerCount, int minWorkerCount,
-			int batchSize, int batchTime, long pollInterval, String timeUnit, XMLGregorianCalendar at) throws Exception {
+			int batchSize, int batchTime, long pollInterval, String timeUnit, XMLGregorianCalendar at, String errorQueue, boolean aggregate, int prefetch, Supplier<JMSWorkerScaler> workerScaler) throws Exception {
 
 		super(uri);
 		_group = new ArrayList<>(jmsConnectionDataList.size());
 		for (JMSConnectionData jmsConnectionData : jmsConnectionDataList) {
 			JMSConsumer jmsConsumer = new JMSConsumer(globalContext, uri, workerPool, jmsConnectionData, jndiDestination, queueName, topicName, schemaSet, rootElement, subscription, noLocal,
-					shared, messageSelector, workerCount, minWorkerCount, batchSize, batchTime, pollInterval, timeUnit, at);
+					shared, messageSelector, workerCount, minWorkerCount, batchSize, batchTime, pollInterval, timeUnit, at, errorQueue, aggregate, prefetch, workerScaler.get());
 			globalContext.checkBindJmsConsumer(jmsConsumer);
 			_group.add(jmsConsumer);
 		}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.jms;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.jms.*;
+
+/**
+ * One long-lived consumer on a reply queue (or a temporary queue) which hands over replies to the waiting requests by JMSCorrelationID.
+ * Replies arriving before the request started waiting are kept for a while, because the JMSMessageID is only known after sending.
+ * On a named reply queue each consumer only selects replies with its own JMSCorrelationID prefix, thus WorkerPools and nodes can share the queue.
+ * Responders must set the JMSCorrelationID of the reply to the JMSCorrelationID of the request, or to its JMSMessageID if the request has none.
+ * Replies without JMSCorrelationID cannot be dispatched and are discarded.
+ */
+public final class JMSReplyDemultiplexer implements MessageListener, AutoCloseable {
+
+	static final long unclaimedReplyRetention = Long.parseLong(System.getProperty("esb0.jms.unclaimedReplyRetention", "60")) * 1000L;
+
+	private static final class Correlation extends CompletableFuture<Message> {
+		final long _created = System.currentTimeMillis();
+	}
+
+	private final String _replyQueue;
+	// null for a temporary queue, which is exclusive to its connection
+	private final String _correlationIDPrefix;
+	private final AtomicLong _sequence = new AtomicLong();
+	private final Session _session;
+	private final Queue _queue;
+	private final MessageConsumer _consumer;
+	private final ConcurrentHashMap<String, Correlation> _correlations = new ConcurrentHashMap<>();
+	private volatile long _lastPurge = System.currentTimeMillis();
+
+	JMSReplyDemultiplexer(Connection connection, String replyQueue, String messageSelector) throws JMSException {
+		_replyQueue = replyQueue != null ? replyQueue : "temporary queue";
+		if (replyQueue != null) {
+			_correlationIDPrefix = "esb0-" + UUID.randomUUID() + '-';
+			String selector = "JMSCorrelationID LIKE '" + _correlationIDPrefix + "%'";
+			messageSelector = messageSelector != null ? selector + " AND (" + messageSelector + ')' : selector;
+		} else {
+			_correlationIDPrefix = null;
+		}
+		_session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			_queue = replyQueue != null ? _session.createQueue(replyQueue) : _session.createTemporaryQueue();
+			_consumer = _session.createConsumer(_queue, messageSelector);
+			_consumer.setMessageListener(this);
+		} catch (JMSException e) {
+			_session.close();
+			throw e;
+		}
+		JMSConnectionProvider.logger.info("Created shared reply consumer for " + _replyQueue);
+	}
+
+	public Queue getQueue() {
+		return _queue;
+	}
+
+	/**
+	 * Must be called before the request is sent. On a named reply queue the JMSCorrelationID of the request is prefixed, or assigned if not set.
+	 */
+	public void prepareRequest(Message request) throws JMSException {
+		if (_correlationIDPrefix != null) {
+			String correlationID = request.getJMSCorrelationID();
+			request.setJMSCorrelationID(_correlationIDPrefix + (correlationID != null ? correlationID : Long.toString(_sequence.incrementAndGet())));
+		}
+	}
+
+	private Correlation getCorrelation(String correlationID) {
+		return _correlations.computeIfAbsent(correlationID, k -> new Correlation());
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		try {
+			String correlationID = message.getJMSCorrelationID();
+			if (correlationID != null) {
+				getCorrelation(correlationID).complete(message);
+			} else {
+				JMSConnectionProvider.logger.warn("Discarding reply without JMSCorrelationID from " + _replyQueue);
+			}
+		} catch (JMSException e) {
+			JMSConnectionProvider.logger.error("Could not dispatch reply from " + _replyQueue, e);
+		}
+		purgeUnclaimed();
+	}
+
+	private void purgeUnclaimed() {
+		final long now = System.currentTimeMillis();
+		if (now - _lastPurge > unclaimedReplyRetention) {
+			_lastPurge = now;
+			for (Iterator<Map.Entry<String, Correlation>> iter = _correlations.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry<String, Correlation> entry = iter.next();
+				Correlation correlation = entry.getValue();
+				if (correlation.isDone() && now - correlation._created > unclaimedReplyRetention) {
+					JMSConnectionProvider.logger.warn("Discarding unclaimed reply from " + _replyQueue + " with JMSCorrelationID " + entry.getKey());
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the reply or null if none arrived within timeout
+	 */
+	public Message receive(String correlationID, long timeout) throws JMSException, InterruptedException {
+		Correlation correlation = getCorrelation(correlationID);
+		try {
+			return correlation.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			return null;
+		} catch (ExecutionException e) {
+			throw (JMSException) e.getCause();
+		} finally {
+			_correlations.remove(correlationID, correlation);
+		}
+	}
+
+	/**
+	 * Register a receiver which is called back in the thread of the consumer, thus it should hand over to a WorkerPool.
+	 * If no reply arrives within timeout the registration is dropped and the receiver is called back with a {@link TimeoutException}.
+	 */
+	public void receiveAsync(String correlationID, long timeout, BiConsumer<Message, Throwable> receiver) {
+		Correlation correlation = getCorrelation(correlationID);
+		correlation.orTimeout(timeout, TimeUnit.MILLISECONDS);
+		correlation.whenComplete((message, exception) -> {
+			_correlations.remove(correlationID, correlation);
+			receiver.accept(message, exception);
+		});
+	}
+
+	public int getPendingCount() {
+		return _correlations.size();
+	}
+
+	@Override
+	public void close() throws JMSException {
+		JMSException jmsException = new JMSException("Shared reply consumer closed for " + _replyQueue);
+		for (Correlation correlation : _correlations.values()) {
+			correlation.completeExceptionally(jmsException);
+		}
+		_correlations.clear();
+		_session.close();
+	}
+
+}
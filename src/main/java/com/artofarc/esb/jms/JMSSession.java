@@ -40,15 +40,27 @@ public final class JMSSession implements AutoCloseable {
 	private Session _session;
 	private TemporaryQueue _temporaryQueue;
 	private MessageConsumer _consumer;
+	private byte[] _chunkBuffer;
+	private final int _generation;
+	private long _idleSince;
 
 	public JMSSession(JMSSessionFactory jmsSessionFactory, JMSConnectionData jmsConnectionData, boolean transacted) throws JMSException {
 		_jmsConnectionData = jmsConnectionData;
 		_transacted = transacted;
 		_jmsConnection = jmsSessionFactory.getJMSConnectionProvider().getResource(jmsConnectionData);
+		_generation = 0;
 		createSession();
 		_jmsConnection.addJMSSessionFactory(jmsSessionFactory);
 	}
 
+	JMSSession(JMSConnectionProvider.JMSConnectionGuard jmsConnection, int generation) throws JMSException {
+		_jmsConnectionData = jmsConnection.getJMSConnectionData();
+		_transacted = false;
+		_jmsConnection = jmsConnection;
+		_generation = generation;
+		createSession();
+	}
+
 	private void createSession() throws JMSException {
 		_session = _jmsConnection.getConnection().createSession(_transacted, _transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
 	}
@@ -120,6 +132,42 @@ public final class JMSSession implements AutoCloseable {
 		return _consumer;
 	}
 
+	/**
+	 * @return the consumer shared by all sessions of the connection for replyQueue, for a temporary queue if replyQueue is null
+	 */
+	public JMSReplyDemultiplexer getReplyDemultiplexer(String replyQueue, String messageSelector) throws JMSException {
+		return _jmsConnection.getReplyDemultiplexer(replyQueue, messageSelector);
+	}
+
+	byte[] borrowChunkBuffer() {
+		byte[] chunkBuffer = _chunkBuffer;
+		if (chunkBuffer == null) {
+			return new byte[BytesMessageOutputStream.CHUNK_SIZE];
+		}
+		_chunkBuffer = null;
+		return chunkBuffer;
+	}
+
+	void returnChunkBuffer(byte[] chunkBuffer) {
+		_chunkBuffer = chunkBuffer;
+	}
+
+	JMSConnectionProvider.JMSConnectionGuard getJMSConnectionGuard() {
+		return _jmsConnection;
+	}
+
+	int getGeneration() {
+		return _generation;
+	}
+
+	long getIdleSince() {
+		return _idleSince;
+	}
+
+	void setIdleSince(long idleSince) {
+		_idleSince = idleSince;
+	}
+
 	public void setDeliveryDelay(MessageProducer producer, Message message, long deliveryDelay) throws JMSException {
 		ConnectionMetaData connectionMetaData = _jmsConnection.getConnectionMetaData();
 		if (connectionMetaData.getJMSMajorVersion() > 1) {
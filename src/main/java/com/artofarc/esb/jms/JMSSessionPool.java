@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.jms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+
+import com.artofarc.util.Closer;
+
+/**
+ * Non-transacted sessions (together with their cached producers) shared by all Contexts of a connection.
+ * Idle sessions are kept in stripes selected by thread to keep contention low, each stripe is bounded and LIFO ordered
+ * so that sessions unused for longer than the idle timeout gather at its tail where they are evicted.
+ * <p>
+ * Only idle sessions are bounded. A borrower never waits, it opens a new session if there is none idle in its stripe and
+ * surplus sessions are closed on release. Hence the number of open sessions is at most the number of concurrent senders plus maxIdle,
+ * the concurrency itself is limited by the WorkerPools.
+ */
+final class JMSSessionPool {
+
+	private final JMSConnectionProvider.JMSConnectionGuard _jmsConnection;
+	private final ArrayDeque<JMSSession>[] _stripes;
+	private final int _stripeCapacity;
+	private final long _idleTimeout;
+	private final AtomicInteger _borrowed = new AtomicInteger();
+	private final AtomicLong _created = new AtomicLong(), _evicted = new AtomicLong();
+	private volatile int _generation;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	JMSSessionPool(JMSConnectionProvider.JMSConnectionGuard jmsConnection, int maxIdle, int stripes, long idleTimeout) {
+		_jmsConnection = jmsConnection;
+		_stripes = new ArrayDeque[Math.max(1, Math.min(stripes, maxIdle))];
+		for (int i = 0; i < _stripes.length; ++i) {
+			_stripes[i] = new ArrayDeque<>();
+		}
+		_stripeCapacity = Math.max(1, maxIdle / _stripes.length);
+		_idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+	}
+
+	private ArrayDeque<JMSSession> getStripe() {
+		return _stripes[(int) (Thread.currentThread().getId() % _stripes.length)];
+	}
+
+	JMSSession borrow() throws JMSException {
+		ArrayDeque<JMSSession> stripe = getStripe();
+		JMSSession jmsSession;
+		synchronized (stripe) {
+			jmsSession = stripe.pollFirst();
+		}
+		if (jmsSession == null) {
+			jmsSession = new JMSSession(_jmsConnection, _generation);
+			_created.incrementAndGet();
+		}
+		_borrowed.incrementAndGet();
+		return jmsSession;
+	}
+
+	/**
+	 * @param discard whether the session is suspect, e.g. because a send failed
+	 */
+	void release(JMSSession jmsSession, boolean discard) {
+		_borrowed.decrementAndGet();
+		if (!discard && jmsSession.getGeneration() == _generation && jmsSession.getSession() != null) {
+			jmsSession.setIdleSince(System.nanoTime());
+			ArrayDeque<JMSSession> stripe = getStripe();
+			synchronized (stripe) {
+				if (stripe.size() < _stripeCapacity) {
+					stripe.addFirst(jmsSession);
+					return;
+				}
+			}
+		}
+		Closer.closeQuietly(jmsSession);
+	}
+
+	void evictIdle() {
+		final long now = System.nanoTime();
+		List<JMSSession> evicted = new ArrayList<>();
+		for (ArrayDeque<JMSSession> stripe : _stripes) {
+			synchronized (stripe) {
+				for (JMSSession jmsSession; (jmsSession = stripe.peekLast()) != null && now - jmsSession.getIdleSince() > _idleTimeout;) {
+					evicted.add(stripe.pollLast());
+				}
+			}
+		}
+		for (JMSSession jmsSession : evicted) {
+			Closer.closeQuietly(jmsSession);
+		}
+		_evicted.addAndGet(evicted.size());
+	}
+
+	/**
+	 * Close all idle sessions. Sessions currently borrowed are closed when released.
+	 */
+	void clear() {
+		++_generation;
+		for (ArrayDeque<JMSSession> stripe : _stripes) {
+			List<JMSSession> jmsSessions;
+			synchronized (stripe) {
+				jmsSessions = new ArrayList<>(stripe);
+				stripe.clear();
+			}
+			for (JMSSession jmsSession : jmsSessions) {
+				Closer.closeQuietly(jmsSession);
+			}
+		}
+	}
+
+	int getIdle() {
+		int idle = 0;
+		for (ArrayDeque<JMSSession> stripe : _stripes) {
+			synchronized (stripe) {
+				idle += stripe.size();
+			}
+		}
+		return idle;
+	}
+
+	int getBorrowed() {
+		return _borrowed.get();
+	}
+
+	long getCreated() {
+		return _created.get();
+	}
+
+	long getEvicted() {
+		return _evicted.get();
+	}
+
+}
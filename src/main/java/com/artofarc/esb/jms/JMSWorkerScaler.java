@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.jms;
+
+import java.util.Date;
+
+/**
+ * Decides when a {@link JMSConsumer} adds or removes a worker. Subclasses can implement another policy by overriding {@link #decide}.
+ * <p>
+ * The default policy estimates how long a message waits (pressure): from the queue depth and the processing time if the queue is browsed,
+ * otherwise from the sent/receive delay. Because that delay is skewed by clock drift between sender and receiver, a worker is only added
+ * while all workers are busy and a worker is removed as soon as two are idle. Each decision needs a number of consecutive votes (hysteresis).
+ */
+public class JMSWorkerScaler {
+
+	public enum Decision { KEEP, ADD, REMOVE }
+
+	private long _rampUpThreshold = 1000L, _rampDownThreshold = 100L, _rampUpDelay = 2000L, _rampDownDelay = 10000L;
+	private int _hysteresis = 3;
+	private boolean _browseQueue;
+
+	private int _upVotes, _downVotes;
+	private long _lastControlChange;
+	private volatile long _pressure;
+	private volatile String _lastDecision;
+
+	public final void init(int rampUpThreshold, int rampDownThreshold, int rampUpDelay, int rampDownDelay, int hysteresis, boolean browseQueue) {
+		_rampUpThreshold = rampUpThreshold;
+		_rampDownThreshold = rampDownThreshold;
+		_rampUpDelay = rampUpDelay;
+		_rampDownDelay = rampDownDelay;
+		_hysteresis = hysteresis;
+		_browseQueue = browseQueue;
+	}
+
+	public final boolean isBrowseQueue() {
+		return _browseQueue;
+	}
+
+	public final long getPressure() {
+		return _pressure;
+	}
+
+	public final String getLastDecision() {
+		return _lastDecision;
+	}
+
+	/**
+	 * Called by the JMSConsumer under its lock after each commit and periodically.
+	 *
+	 * @param now Current time in ms
+	 * @param inFlight Number of workers currently processing messages
+	 * @param processingTime Smoothed processing time of a message in microseconds
+	 * @param sentReceiveDelay Smoothed delay between sending and receiving of a message in ms, 0 if idle
+	 * @param queueDepth Number of messages in the queue or -1 if unknown
+	 */
+	protected Decision decide(long now, int workerCount, int minWorkerCount, int maxWorkerCount, int inFlight, long processingTime, long sentReceiveDelay, int queueDepth) {
+		final long pressure = queueDepth >= 0 ? queueDepth * processingTime / 1000L / Math.max(workerCount, 1) : sentReceiveDelay;
+		_pressure = pressure;
+		_upVotes = workerCount < maxWorkerCount && inFlight >= workerCount && pressure > _rampUpThreshold ? _upVotes + 1 : 0;
+		_downVotes = workerCount > minWorkerCount && inFlight < workerCount && (pressure < _rampDownThreshold || inFlight + 1 < workerCount) ? _downVotes + 1 : 0;
+		if (_upVotes >= _hysteresis && _lastControlChange + _rampUpDelay < now) {
+			return changeTo(Decision.ADD, now, workerCount + 1, inFlight);
+		}
+		if (_downVotes >= _hysteresis && _lastControlChange + _rampDownDelay < now) {
+			return changeTo(Decision.REMOVE, now, workerCount - 1, inFlight);
+		}
+		return Decision.KEEP;
+	}
+
+	private Decision changeTo(Decision decision, long now, int workerCount, int inFlight) {
+		_upVotes = _downVotes = 0;
+		_lastControlChange = now;
+		_lastDecision = decision + " to " + workerCount + " workers at " + new Date(now) + " (pressure=" + _pressure + "ms, inFlight=" + inFlight + ")";
+		return decision;
+	}
+
+}
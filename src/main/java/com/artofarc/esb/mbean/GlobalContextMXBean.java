@@ -18,6 +18,9 @@ package com.artofarc.esb.mbean;
 import java.util.List;
 import java.util.Set;
 
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.OpenDataException;
+
 public interface GlobalContextMXBean {
 
 	String getVersion() throws Exception;
@@ -36,4 +39,6 @@ public interface GlobalContextMXBean {
 
 	Set<String> getCaches();
 
+	CompositeData[] getCacheStatistics() throws OpenDataException;
+
 }
@@ -40,4 +40,12 @@ public interface JMSConnectionGuardMXBean {
 
 	void checkClose();
 
+	int getPooledSessionsIdle();
+
+	int getPooledSessionsBorrowed();
+
+	long getPooledSessionsCreated();
+
+	long getPooledSessionsEvicted();
+
 }
@@ -29,6 +29,22 @@ public interface JMSConsumerMXBean extends ConsumerPortMXBean {
 
 	long getCurrentSentReceiveDelay();
 
+	long getCurrentProcessingTime();
+
+	int getInFlight();
+
+	int getQueueDepth();
+
+	long getScalingPressure();
+
+	String getLastScalingDecision();
+
+	long getBisectionCount();
+
+	long getPoisonMessageCount();
+
+	long getReceiveIdleTime();
+
 	boolean unsubscribe();
 
 }
@@ -15,7 +15,12 @@
  */
 package com.artofarc.esb.message;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import com.artofarc.esb.context.Context;
 import com.artofarc.util.ReflectionUtils;
@@ -23,42 +28,51 @@ import com.artofarc.util.URLUtils;
 
 public abstract class Evaluator<E extends Exception> {
 
+	// Bound for the caches, protects against expressions which are themselves computed from messages
+	private static final int MAX_CACHED_EXPRESSIONS = 4096;
+	private static final ConcurrentHashMap<String, Template> TEMPLATES = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Path> PATHS = new ConcurrentHashMap<>();
+
 	protected abstract E createException(String message);
 
-	public final Object eval(String exp, Context context, ESBMessage message) throws Exception {
-		final StringBuilder builder = new StringBuilder();
-		for (int pos = 0;;) {
-			final int i = exp.indexOf("${", pos);
-			if (i < 0) {
-				if (pos == 0) return exp;
-				builder.append(exp.substring(pos));
-				break;
+	private static <T> T getCompiled(ConcurrentHashMap<String, T> cache, String exp, Function<String, T> compiler) {
+		T compiled = cache.get(exp);
+		if (compiled == null) {
+			compiled = compiler.apply(exp);
+			if (cache.size() < MAX_CACHED_EXPRESSIONS) {
+				T old = cache.putIfAbsent(exp, compiled);
+				if (old != null) compiled = old;
 			}
-			if (i > pos) {
-				builder.append(exp.substring(pos, i));
-				if (exp.charAt(i - 1) == '$') {
-					// Escape ${ with $${
-					pos = i + 1;
-					continue;
-				}
-			}
-			int j = exp.indexOf('}', i);
-			if (j < 0) throw new IllegalArgumentException("Matching } is missing");
-			final String path = exp.substring(i + 2, j);
-			final boolean standalone = ++j == exp.length() && i == 0 && pos == 0;
-			final Object value = evalPath(path, standalone, context, message);
-			if (standalone) {
-				return value;
-			}
-			builder.append(value.toString());
-			pos = j;
+		}
+		return compiled;
+	}
+
+	public final Object eval(String exp, Context context, ESBMessage message) throws Exception {
+		if (exp.indexOf("${") < 0) {
+			return exp;
+		}
+		final Template template = getCompiled(TEMPLATES, exp, Template::new);
+		final Path[] paths = template._paths;
+		if (template._standalone) {
+			return evalPath(paths[0], true, context, message);
+		}
+		if (paths.length == 0) {
+			return template._literals[0];
+		}
+		final StringBuilder builder = new StringBuilder(template._literals[0]);
+		for (int k = 0; k < paths.length; ++k) {
+			builder.append(evalPath(paths[k], false, context, message).toString()).append(template._literals[k + 1]);
 		}
 		return builder.toString();
 	}
 
 	public final Object evalPath(String path, boolean standalone, Context context, ESBMessage message) throws Exception {
-		int i = path.indexOf('.');
-		final String name = i < 0 ? path : path.substring(0, i);
+		return evalPath(getCompiled(PATHS, path, Path::new), standalone, context, message);
+	}
+
+	private Object evalPath(Path path, boolean standalone, Context context, ESBMessage message) throws Exception {
+		final String name = path._name;
+		boolean chain = path._dot >= 0;
 		Object value;
 		switch (name) {
 		case "null":
@@ -68,7 +82,7 @@ public abstract class Evaluator<E extends Exception> {
 			value = message;
 			break;
 		case "rawBody":
-			value = i > 0 ? message.getBody() : message.cloneBody(context, false);
+			value = chain ? message.getBody() : message.cloneBody(context, false);
 			break;
 		case "body":
 			value = message.getBodyAsString(context);
@@ -78,37 +92,148 @@ public abstract class Evaluator<E extends Exception> {
 			break;
 		default:
 			value = resolve(message, name, true);
-			if (value == null && (i >= 0 || name.indexOf('_') >= 0 || name.startsWith("java:"))) {
+			if (value == null && path._maybeProperty) {
 				// interpret dots as separators
-				value = context.getGlobalContext().getProperty(path);
-				i = -1;
+				value = context.getGlobalContext().getProperty(path._path);
+				chain = false;
 			}
 			break;
 		}
-		if (value == null && (!standalone || i >= 0)) {
+		if (value == null && (!standalone || chain)) {
 			throw createException("name could not be resolved: " + name);
 		}
-		if (i >= 0) {
-			final ReflectionUtils.ParamResolver<E> paramResolver = path.indexOf('(', i) < 0 ? null : new ReflectionUtils.ParamResolver<>() {
-
-				@Override
-				public Object resolve(String param) throws E {
-					final char firstChar = param.charAt(0);
-					if (firstChar == '\'') {
-						return param.substring(1, param.length() - 1);
-					} else if (Character.isDigit(firstChar) || firstChar == '-') {
-						return Integer.valueOf(param);
-					} else if ("null".equals(param)) {
-						return null;
-					}
-					return Evaluator.this.resolve(message, param, true);
+		if (chain) {
+			if (path._getters != null) {
+				for (Getter getter : path._getters) {
+					value = getter.invoke(value);
 				}
-			};
-			value = ReflectionUtils.eval(value, path, i + 1, paramResolver);
+			} else {
+				final ReflectionUtils.ParamResolver<E> paramResolver = new ReflectionUtils.ParamResolver<>() {
+
+					@Override
+					public Object resolve(String param) throws E {
+						final char firstChar = param.charAt(0);
+						if (firstChar == '\'') {
+							return param.substring(1, param.length() - 1);
+						} else if (Character.isDigit(firstChar) || firstChar == '-') {
+							return Integer.valueOf(param);
+						} else if ("null".equals(param)) {
+							return null;
+						}
+						return Evaluator.this.resolve(message, param, true);
+					}
+				};
+				value = ReflectionUtils.eval(value, path._path, path._dot + 1, paramResolver);
+			}
 		}
 		return value;
 	}
 
+	/**
+	 * Literal segments and paths of an expression, escapes are already resolved.
+	 */
+	private static final class Template {
+
+		final String[] _literals;
+		final Path[] _paths;
+		final boolean _standalone;
+
+		Template(String exp) {
+			final ArrayList<String> literals = new ArrayList<>();
+			final ArrayList<Path> paths = new ArrayList<>();
+			final StringBuilder builder = new StringBuilder();
+			boolean standalone = false;
+			for (int pos = 0;;) {
+				final int i = exp.indexOf("${", pos);
+				if (i < 0) {
+					builder.append(exp, pos, exp.length());
+					break;
+				}
+				if (i > pos) {
+					builder.append(exp, pos, i);
+					if (exp.charAt(i - 1) == '$') {
+						// Escape ${ with $${
+						pos = i + 1;
+						continue;
+					}
+				}
+				int j = exp.indexOf('}', i);
+				if (j < 0) throw new IllegalArgumentException("Matching } is missing");
+				literals.add(builder.toString());
+				builder.setLength(0);
+				paths.add(getCompiled(PATHS, exp.substring(i + 2, j), Path::new));
+				standalone = ++j == exp.length() && i == 0 && pos == 0;
+				pos = j;
+			}
+			literals.add(builder.toString());
+			_literals = literals.toArray(new String[literals.size()]);
+			_paths = paths.toArray(new Path[paths.size()]);
+			_standalone = standalone;
+		}
+	}
+
+	private static final class Path {
+
+		final String _path, _name;
+		final int _dot;
+		final boolean _maybeProperty;
+		// chain of methods without parameters, null if there are parameters
+		final Getter[] _getters;
+
+		Path(String path) {
+			_path = path;
+			_dot = path.indexOf('.');
+			_name = _dot < 0 ? path : path.substring(0, _dot);
+			_maybeProperty = _dot >= 0 || _name.indexOf('_') >= 0 || _name.startsWith("java:");
+			if (_dot >= 0 && path.indexOf('(', _dot) < 0) {
+				String[] methodNames = path.substring(_dot + 1).split("\\.", -1);
+				_getters = new Getter[methodNames.length];
+				for (int i = 0; i < methodNames.length; ++i) {
+					_getters[i] = new Getter(methodNames[i]);
+				}
+			} else {
+				_getters = null;
+			}
+		}
+	}
+
+	/**
+	 * Monomorphic inline cache binding a method name to a {@link MethodHandle} for the class last seen.
+	 */
+	private static final class Getter {
+
+		private static final class Binding {
+
+			final Class<?> _cls;
+			final MethodHandle _methodHandle;
+
+			Binding(Class<?> cls, MethodHandle methodHandle) {
+				_cls = cls;
+				_methodHandle = methodHandle;
+			}
+		}
+
+		private final String _methodName;
+		private volatile Binding _binding;
+
+		Getter(String methodName) {
+			_methodName = methodName;
+		}
+
+		Object invoke(Object root) throws ReflectiveOperationException {
+			Binding binding = _binding;
+			if (binding == null || binding._cls != root.getClass()) {
+				_binding = binding = new Binding(root.getClass(), ReflectionUtils.findGetter(root.getClass(), _methodName));
+			}
+			try {
+				return (Object) binding._methodHandle.invokeExact(root);
+			} catch (Throwable e) {
+				// same as reflective invocation
+				throw new InvocationTargetException(e);
+			}
+		}
+	}
+
 	public final Object resolve(ESBMessage message, String name, boolean checkAmbiguity) throws E {
 		Object value = message.getVariable(name);
 		if (value == null) {
@@ -15,31 +15,101 @@
  */
 package com.artofarc.esb.resource;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
 
 import com.artofarc.esb.context.GlobalContext;
+import com.artofarc.util.ByteBufferInputStream;
+
+public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCacheWithExpirationFactory<K, V>.Cache, String, LRUCacheWithExpirationFactory.CacheConfig, RuntimeException> implements Runnable {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	public static final class CacheConfig {
+
+		private final int _maxSize;
+		private final boolean _concurrent;
+		private final long _maxOffHeapSize;
+
+		public CacheConfig(int maxSize, boolean concurrent, long maxOffHeapSize) {
+			_maxSize = maxSize;
+			_concurrent = concurrent;
+			_maxOffHeapSize = maxOffHeapSize;
+		}
+	}
+
+	/**
+	 * Serialized message body stored in a direct buffer outside of the java heap.
+	 * The buffer is never modified after creation, thus any number of readers can stream it concurrently, even after the entry has been evicted.
+	 */
+	public static final class OffHeapBody {
+
+		private final ByteBuffer _byteBuffer;
+		private final String _charsetName;
+
+		OffHeapBody(byte[] content, Charset charset) {
+			_byteBuffer = ByteBuffer.allocateDirect(content.length).put(content).flip();
+			_charsetName = charset != null ? charset.name() : null;
+		}
+
+		public int getSize() {
+			return _byteBuffer.capacity();
+		}
 
-public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCacheWithExpirationFactory<K, V>.Cache, String, Integer, RuntimeException> implements Runnable {
+		public String getCharsetName() {
+			return _charsetName;
+		}
+
+		public ByteBufferInputStream getInputStream() {
+			return new ByteBufferInputStream(_byteBuffer.duplicate());
+		}
+	}
 
-	static final class Expiration<K> implements Delayed {
+	/**
+	 * Pending computation of a value. Concurrent misses of the same key wait for it instead of computing the value again (single flight).
+	 */
+	public static final class Load<V> extends CompletableFuture<V> {
 
-		private final long _expiration;
-		private final K _key;
-		private final String _cacheName;
+		private final long _deadline;
 
-		Expiration(long expiration, K key, String cacheName) {
+		public Load(long timeout) {
+			_deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		}
+
+		boolean isOverdue(long now) {
+			return now - _deadline > 0;
+		}
+	}
+
+	static class Expiration<K> implements Delayed {
+		final long _expiration;
+		final K _key;
+		// position in ExpirationQueue, -1 if not queued
+		int _index = -1;
+
+		Expiration(long expiration, K key) {
 			_expiration = expiration;
 			_key = key;
-			_cacheName = cacheName;
 		}
 
 		@Override
@@ -58,16 +128,243 @@ public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCach
 		}
 	}
 
-	public final class Cache implements AutoCloseable {
+	/**
+	 * Binary min heap where each element knows its own position. Thus removal of an arbitrary element is O(log n) instead of the linear scan of a DelayQueue.
+	 * Not thread safe, guarded by the owning Cache.
+	 */
+	static final class ExpirationQueue<K> {
+
+		private Expiration<?>[] _queue = new Expiration<?>[16];
+		private int _size;
+
+		@SuppressWarnings("unchecked")
+		Expiration<K> peek() {
+			return (Expiration<K>) _queue[0];
+		}
+
+		int size() {
+			return _size;
+		}
+
+		void add(Expiration<K> expiration) {
+			if (_size == _queue.length) {
+				_queue = Arrays.copyOf(_queue, _size * 2);
+			}
+			siftUp(_size++, expiration);
+		}
+
+		boolean remove(Expiration<K> expiration) {
+			int i = expiration._index;
+			if (i < 0 || i >= _size || _queue[i] != expiration) {
+				return false;
+			}
+			expiration._index = -1;
+			Expiration<?> last = _queue[--_size];
+			_queue[_size] = null;
+			if (i != _size) {
+				siftDown(i, last);
+				if (_queue[i] == last) {
+					siftUp(i, last);
+				}
+			}
+			return true;
+		}
+
+		void clear() {
+			for (int i = 0; i < _size; ++i) {
+				_queue[i]._index = -1;
+				_queue[i] = null;
+			}
+			_size = 0;
+		}
+
+		private void siftUp(int k, Expiration<?> expiration) {
+			while (k > 0) {
+				int parent = (k - 1) >>> 1;
+				Expiration<?> e = _queue[parent];
+				if (expiration._expiration - e._expiration >= 0) {
+					break;
+				}
+				_queue[k] = e;
+				e._index = k;
+				k = parent;
+			}
+			_queue[k] = expiration;
+			expiration._index = k;
+		}
+
+		private void siftDown(int k, Expiration<?> expiration) {
+			int half = _size >>> 1;
+			while (k < half) {
+				int child = (k << 1) + 1;
+				Expiration<?> c = _queue[child];
+				int right = child + 1;
+				if (right < _size && c._expiration - _queue[right]._expiration > 0) {
+					c = _queue[child = right];
+				}
+				if (expiration._expiration - c._expiration <= 0) {
+					break;
+				}
+				_queue[k] = c;
+				c._index = k;
+				k = child;
+			}
+			_queue[k] = expiration;
+			expiration._index = k;
+		}
+	}
+
+	public abstract class Cache implements AutoCloseable {
+
+		protected volatile int _maxSize;
+		private final boolean _concurrent;
+		private volatile long _maxOffHeapSize;
+		private final AtomicLong _offHeapSize = new AtomicLong();
+		protected final LongAdder _hitCount = new LongAdder(), _missCount = new LongAdder(), _evictionCount = new LongAdder();
+		private final LongAdder _loadCount = new LongAdder(), _totalLoadTime = new LongAdder();
+		private final ConcurrentHashMap<K, Load<V>> _loads = new ConcurrentHashMap<>();
+
+		Cache(int maxSize, boolean concurrent, long maxOffHeapSize) {
+			_maxSize = maxSize;
+			_concurrent = concurrent;
+			_maxOffHeapSize = maxOffHeapSize;
+		}
+
+		public final int getMaxSize() {
+			return _maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			_maxSize = maxSize;
+		}
+
+		public final boolean isConcurrent() {
+			return _concurrent;
+		}
+
+		public final long getMaxOffHeapSize() {
+			return _maxOffHeapSize;
+		}
+
+		public final void setMaxOffHeapSize(long maxOffHeapSize) {
+			_maxOffHeapSize = maxOffHeapSize;
+		}
+
+		public final long getOffHeapSize() {
+			return _offHeapSize.get();
+		}
+
+		/**
+		 * @return null if the content does not fit into the remaining off heap budget
+		 */
+		public final OffHeapBody storeOffHeap(byte[] content, Charset charset) {
+			for (;;) {
+				long size = _offHeapSize.get();
+				if (size + content.length > _maxOffHeapSize) {
+					return null;
+				}
+				if (_offHeapSize.compareAndSet(size, size + content.length)) {
+					break;
+				}
+			}
+			return new OffHeapBody(content, charset);
+		}
+
+		/**
+		 * Give back the budget of an entry that left the cache. The memory itself is freed by GC once the last reader is finished.
+		 */
+		final void released(Object value) {
+			if (value instanceof Object[] && _offHeapSize.get() > 0) {
+				for (Object part : (Object[]) value) {
+					if (part instanceof OffHeapBody) {
+						_offHeapSize.addAndGet(-((OffHeapBody) part).getSize());
+					}
+				}
+			}
+		}
+
+		public abstract Object put(K key, V value, long ttl);
+
+		public abstract boolean containsKey(K key);
+
+		public abstract V get(K key);
+
+		public abstract V remove(K key);
+
+		public abstract Set<K> keySet();
+
+		public abstract Collection<? extends Delayed> getExpirations();
+
+		public abstract Long getDelay(K key);
+
+		public abstract void clear();
+
+		public abstract int getSize();
+
+		/**
+		 * @return the point in time (System.nanoTime()) when the next entry expires or Long.MAX_VALUE if empty
+		 */
+		abstract long removeExpired(long now);
+
+		/**
+		 * Account the time it took to compute a value after a cache miss.
+		 */
+		public final void recordLoad(long nanos) {
+			_loadCount.increment();
+			_totalLoadTime.add(nanos);
+		}
+
+		/**
+		 * @return null if the caller became the loader and must {@link #completeLoad(Object, Load, Object) complete} the load, otherwise the pending load of another caller
+		 */
+		public final Load<V> joinLoad(K key, Load<V> load) {
+			for (;;) {
+				Load<V> pending = _loads.putIfAbsent(key, load);
+				if (pending == null) {
+					return null;
+				}
+				if (!pending.isOverdue(System.nanoTime())) {
+					return pending;
+				}
+				// the loader has gone lost (e.g. by an exception), take over
+				if (_loads.replace(key, pending, load)) {
+					pending.complete(null);
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * @param value null if the value could not be computed or must not be cached
+		 */
+		public final void completeLoad(K key, Load<V> load, V value) {
+			_loads.remove(key, load);
+			load.complete(value);
+		}
+
+		final Object[] getStatistics(String name) {
+			long hitCount = _hitCount.sum(), requestCount = hitCount + _missCount.sum(), loadCount = _loadCount.sum();
+			return new Object[] { name, _concurrent, getSize(), _maxSize, hitCount, requestCount - hitCount, requestCount > 0 ? (double) hitCount / requestCount : 1.,
+					_evictionCount.sum(), loadCount, loadCount > 0 ? _totalLoadTime.sum() / loadCount / 1000000. : 0., _offHeapSize.get(), _maxOffHeapSize };
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Exact LRU order with an access ordered LinkedHashMap. Every access is serialized by one lock.
+	 */
+	final class SynchronizedCache extends Cache {
 
-		private final String _name;
-		private volatile int _maxSize;
 		private final Map<K, Expiration<K>> _expirationKeys;
+		// guarded by _cache
+		private final ExpirationQueue<K> _expiries = new ExpirationQueue<>();
 		private final Map<K, V> _cache;
 
-		Cache(String name, int maxSize) {
-			_name = name;
-			_maxSize = maxSize;
+		SynchronizedCache(int maxSize, long maxOffHeapSize) {
+			super(maxSize, false, maxOffHeapSize);
 			_expirationKeys = new ConcurrentHashMap<>(maxSize);
 			_cache = Collections.synchronizedMap(new LinkedHashMap<K, V>(maxSize * 4 / 3, .75f, true) {
 				private static final long serialVersionUID = 1L;
@@ -77,83 +374,333 @@ public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCach
 					boolean remove = size() > _maxSize;
 					if (remove) {
 						Expiration<K> expiration = _expirationKeys.remove(eldest.getKey());
-						expiries.remove(expiration);
+						if (expiration != null) {
+							_expiries.remove(expiration);
+						}
+						released(eldest.getValue());
+						_evictionCount.increment();
 					}
 					return remove;
 				}
 			});
 		}
 
-		public int getMaxSize() {
-			return _maxSize;
-		}
-
-		public void setMaxSize(int maxSize) {
-			_maxSize = maxSize;
-		}
-
+		@Override
 		public Object put(K key, V value, long ttl) {
 			long ttlNanos = TimeUnit.NANOSECONDS.convert(ttl, TimeUnit.SECONDS);
-			Expiration<K> expiration = new Expiration<>(System.nanoTime() + ttlNanos, key, _name);
-			Expiration<K> expirationOld = _expirationKeys.put(key, expiration);
-			synchronized (LRUCacheWithExpirationFactory.this) {
+			Expiration<K> expiration = new Expiration<>(System.nanoTime() + ttlNanos, key);
+			Object old;
+			synchronized (_cache) {
+				Expiration<K> expirationOld = _expirationKeys.put(key, expiration);
 				if (expirationOld != null) {
-					expiries.remove(expirationOld);
+					_expiries.remove(expirationOld);
 				}
-				expiries.add(expiration);
-				return _cache.put(key, value);
+				_expiries.add(expiration);
+				old = _cache.put(key, value);
 			}
+			released(old);
+			scheduleCleaner(expiration._expiration);
+			return old;
 		}
 
+		@Override
 		public boolean containsKey(K key) {
-			return _cache.containsKey(key);
+			Expiration<K> expiration = _expirationKeys.get(key);
+			// do not report what the cleaner has not yet removed
+			return expiration != null && expiration._expiration - System.nanoTime() > 0 && _cache.containsKey(key);
 		}
 
+		@Override
 		public V get(K key) {
-			return _cache.get(key);
+			Expiration<K> expiration = _expirationKeys.get(key);
+			// like containsKey, ignore what the cleaner has not yet removed
+			V value = expiration != null && expiration._expiration - System.nanoTime() > 0 ? _cache.get(key) : null;
+			(value != null ? _hitCount : _missCount).increment();
+			return value;
 		}
 
+		@Override
 		public V remove(K key) {
-			Expiration<K> expiration = _expirationKeys.remove(key);
-			if (expiration != null) {
-				synchronized (LRUCacheWithExpirationFactory.this) {
-					expiries.remove(expiration);
+			synchronized (_cache) {
+				Expiration<K> expiration = _expirationKeys.remove(key);
+				if (expiration != null) {
+					_expiries.remove(expiration);
 				}
+				V value = _cache.remove(key);
+				released(value);
+				return value;
 			}
-			return _cache.remove(key);
 		}
 
+		@Override
 		public Set<K> keySet() {
 			return _expirationKeys.keySet();
 		}
 
+		@Override
 		public Collection<? extends Delayed> getExpirations() {
 			return _expirationKeys.values();
 		}
 
+		@Override
 		public Long getDelay(K key) {
 			Expiration<K> expiration = _expirationKeys.get(key);
 			return expiration != null ? expiration.getDelay(TimeUnit.SECONDS) : null;
 		}
 
+		@Override
 		public void clear() {
-			for (Expiration<K> expiration : _expirationKeys.values()) {
-				if (expiration == _expirationKeys.remove(expiration._key)) {
-					_cache.remove(expiration._key);
-					synchronized (LRUCacheWithExpirationFactory.this) {
-						expiries.remove(expiration);
+			synchronized (_cache) {
+				_expiries.clear();
+				_expirationKeys.clear();
+				for (V value : _cache.values()) {
+					released(value);
+				}
+				_cache.clear();
+			}
+		}
+
+		@Override
+		public int getSize() {
+			return _cache.size();
+		}
+
+		@Override
+		long removeExpired(long now) {
+			synchronized (_cache) {
+				for (Expiration<K> expiration; (expiration = _expiries.peek()) != null;) {
+					if (expiration._expiration - now > 0) {
+						return expiration._expiration;
+					}
+					_expiries.remove(expiration);
+					_expirationKeys.remove(expiration._key);
+					released(_cache.remove(expiration._key));
+				}
+				return Long.MAX_VALUE;
+			}
+		}
+	}
+
+	static final class Node<K, V> extends Expiration<K> {
+
+		private final V _value;
+		// CLOCK reference bit, set without lock by readers
+		private volatile boolean _referenced;
+		// position in Segment ring, guarded by Segment
+		private int _slot = -1;
+
+		Node(long expiration, K key, V value) {
+			super(expiration, key);
+			_value = value;
+		}
+	}
+
+	/**
+	 * Approximate LRU (CLOCK) on top of a ConcurrentHashMap. Reads are lock free and only set a reference bit.
+	 * Writes are striped by key hash over segments each owning its share of the capacity, its CLOCK ring and its expiration heap.
+	 */
+	final class ConcurrentCache extends Cache {
+
+		final class Segment {
+
+			private final ExpirationQueue<K> _expiries = new ExpirationQueue<>();
+			private Node<?, ?>[] _ring = new Node<?, ?>[16];
+			private int _size, _hand;
+
+			void link(Node<K, V> node) {
+				int capacity = (_maxSize + _segments.length - 1) / _segments.length;
+				while (_size >= capacity && _size > 0) {
+					evict();
+				}
+				if (_size == _ring.length) {
+					_ring = Arrays.copyOf(_ring, _size * 2);
+				}
+				node._slot = _size;
+				_ring[_size++] = node;
+				_expiries.add(node);
+			}
+
+			void unlink(Node<?, ?> node) {
+				int slot = node._slot;
+				if (slot >= 0) {
+					Node<?, ?> last = _ring[--_size];
+					_ring[_size] = null;
+					if (last != node) {
+						_ring[slot] = last;
+						last._slot = slot;
+					}
+					node._slot = -1;
+					if (_hand >= _size) {
+						_hand = 0;
+					}
+					released(node._value);
+				}
+				@SuppressWarnings("unchecked")
+				Expiration<K> expiration = (Expiration<K>) node;
+				_expiries.remove(expiration);
+			}
+
+			private void evict() {
+				for (;;) {
+					if (_hand >= _size) {
+						_hand = 0;
+					}
+					@SuppressWarnings("unchecked")
+					Node<K, V> candidate = (Node<K, V>) _ring[_hand];
+					if (candidate._referenced) {
+						// second chance
+						candidate._referenced = false;
+						++_hand;
+					} else {
+						_map.remove(candidate._key, candidate);
+						unlink(candidate);
+						_evictionCount.increment();
+						return;
+					}
+				}
+			}
+
+			synchronized Node<K, V> put(Node<K, V> node) {
+				Node<K, V> old = _map.put(node._key, node);
+				if (old != null) {
+					unlink(old);
+				}
+				link(node);
+				return old;
+			}
+
+			synchronized Node<K, V> remove(K key) {
+				Node<K, V> node = _map.remove(key);
+				if (node != null) {
+					unlink(node);
+				}
+				return node;
+			}
+
+			synchronized void clear() {
+				for (int i = 0; i < _size; ++i) {
+					_map.remove(_ring[i]._key, _ring[i]);
+					released(_ring[i]._value);
+					_ring[i]._slot = -1;
+					_ring[i] = null;
+				}
+				_size = _hand = 0;
+				_expiries.clear();
+			}
+
+			synchronized long removeExpired(long now) {
+				for (Expiration<K> expiration; (expiration = _expiries.peek()) != null;) {
+					if (expiration._expiration - now > 0) {
+						return expiration._expiration;
 					}
+					_map.remove(expiration._key, expiration);
+					unlink((Node<?, ?>) expiration);
 				}
+				return Long.MAX_VALUE;
 			}
 		}
 
+		private final ConcurrentHashMap<K, Node<K, V>> _map;
+		private final Segment[] _segments;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ConcurrentCache(int maxSize, long maxOffHeapSize) {
+			super(maxSize, true, maxOffHeapSize);
+			_map = new ConcurrentHashMap<>(maxSize);
+			// power of two, a segment should not fall below 64 entries
+			int segments = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / 64)));
+			_segments = new LRUCacheWithExpirationFactory.ConcurrentCache.Segment[segments];
+			for (int i = 0; i < segments; ++i) {
+				_segments[i] = new Segment();
+			}
+		}
+
+		private Segment segmentFor(Object key) {
+			int h = key.hashCode();
+			return _segments[(h ^ (h >>> 16)) & (_segments.length - 1)];
+		}
+
 		@Override
-		public void close() {
+		public Object put(K key, V value, long ttl) {
+			long ttlNanos = TimeUnit.NANOSECONDS.convert(ttl, TimeUnit.SECONDS);
+			Node<K, V> node = new Node<>(System.nanoTime() + ttlNanos, key, value);
+			Node<K, V> old = segmentFor(key).put(node);
+			scheduleCleaner(node._expiration);
+			return old != null ? old._value : null;
+		}
+
+		@Override
+		public boolean containsKey(K key) {
+			Node<K, V> node = _map.get(key);
+			// like get, ignore what the cleaner has not yet removed
+			return node != null && node._expiration - System.nanoTime() > 0;
+		}
+
+		@Override
+		public V get(K key) {
+			Node<K, V> node = _map.get(key);
+			// do not serve what the cleaner has not yet removed
+			if (node != null && node._expiration - System.nanoTime() > 0) {
+				if (!node._referenced) {
+					node._referenced = true;
+				}
+				_hitCount.increment();
+				return node._value;
+			}
+			_missCount.increment();
+			return null;
+		}
+
+		@Override
+		public V remove(K key) {
+			Node<K, V> node = segmentFor(key).remove(key);
+			return node != null ? node._value : null;
+		}
+
+		@Override
+		public Set<K> keySet() {
+			return _map.keySet();
+		}
+
+		@Override
+		public Collection<? extends Delayed> getExpirations() {
+			return _map.values();
+		}
+
+		@Override
+		public Long getDelay(K key) {
+			Node<K, V> node = _map.get(key);
+			return node != null ? node.getDelay(TimeUnit.SECONDS) : null;
+		}
+
+		@Override
+		public void clear() {
+			for (Segment segment : _segments) {
+				segment.clear();
+			}
+		}
+
+		@Override
+		public int getSize() {
+			return _map.size();
+		}
+
+		@Override
+		long removeExpired(long now) {
+			long nextExpiration = Long.MAX_VALUE;
+			for (Segment segment : _segments) {
+				long expiration = segment.removeExpired(now);
+				if (expiration != Long.MAX_VALUE && isBefore(expiration, nextExpiration)) {
+					nextExpiration = expiration;
+				}
+			}
+			return nextExpiration;
 		}
 	}
 
-	private final DelayQueue<Expiration<K>> expiries = new DelayQueue<>();
 	private final Future<?> cleaner;
+	// written only while holding this
+	private volatile long _nextExpiration = Long.MAX_VALUE;
 
 	public LRUCacheWithExpirationFactory(GlobalContext globalContext) {
 		cleaner = globalContext.getDefaultWorkerPool().executeLongLived(this, getClass().getSimpleName());
@@ -164,17 +711,48 @@ public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCach
 		cleaner.cancel(true);
 	}
 
+	private static boolean isBefore(long expiration, long nextExpiration) {
+		return nextExpiration == Long.MAX_VALUE || expiration - nextExpiration < 0;
+	}
+
+	private void scheduleCleaner(long expiration) {
+		// Usually the cleaner is already scheduled earlier, so we get along without the lock
+		if (isBefore(expiration, _nextExpiration)) {
+			synchronized (this) {
+				if (isBefore(expiration, _nextExpiration)) {
+					_nextExpiration = expiration;
+					notify();
+				}
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		try {
 			for (;;) {
-				Expiration<K> expiration = expiries.take();
 				synchronized (this) {
-					Cache lruCache = getResource(expiration._cacheName);
-					lruCache._cache.remove(expiration._key);
-					Expiration<K> expirationOld = lruCache._expirationKeys.remove(expiration._key);
-					if (expirationOld != null && expirationOld != expiration) {
-						expiries.remove(expirationOld);
+					// entries added during the sweep will lower this
+					_nextExpiration = Long.MAX_VALUE;
+				}
+				long now = System.nanoTime(), nextExpiration = Long.MAX_VALUE;
+				for (Cache lruCache : getResources()) {
+					long expiration = lruCache.removeExpired(now);
+					if (expiration != Long.MAX_VALUE && isBefore(expiration, nextExpiration)) {
+						nextExpiration = expiration;
+					}
+				}
+				synchronized (this) {
+					if (nextExpiration != Long.MAX_VALUE && isBefore(nextExpiration, _nextExpiration)) {
+						_nextExpiration = nextExpiration;
+					}
+					if (_nextExpiration == Long.MAX_VALUE) {
+						wait();
+					} else {
+						long delay = _nextExpiration - System.nanoTime();
+						if (delay > 0) {
+							TimeUnit.NANOSECONDS.timedWait(this, delay);
+						}
 					}
 				}
 			}
@@ -184,11 +762,31 @@ public class LRUCacheWithExpirationFactory<K, V> extends ResourceFactory<LRUCach
 	}
 
 	@Override
-	protected Cache createResource(String cacheName, Integer maxSize) {
-		if (maxSize == null) {
+	protected Cache createResource(String cacheName, CacheConfig cacheConfig) {
+		if (cacheConfig == null) {
 			throw new IllegalArgumentException("Cache cannot be created without parameter maxSize: " + cacheName);
 		}
-		return new Cache(cacheName, maxSize);
+		return cacheConfig._concurrent ? new ConcurrentCache(cacheConfig._maxSize, cacheConfig._maxOffHeapSize) : new SynchronizedCache(cacheConfig._maxSize, cacheConfig._maxOffHeapSize);
+	}
+
+	public CompositeDataSupport[] getStatistics() throws OpenDataException {
+		Map<String, Cache> caches = new TreeMap<>();
+		for (String cacheName : getResourceDescriptors()) {
+			Cache cache = peekResource(cacheName);
+			if (cache != null) {
+				caches.put(cacheName, cache);
+			}
+		}
+		String[] itemNames = { "name", "concurrent", "size", "maxSize", "hitCount", "missCount", "hitRate", "evictionCount", "loadCount", "averageLoadTime", "offHeapSize", "maxOffHeapSize" };
+		OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.BOOLEAN, SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE,
+				SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE, SimpleType.LONG, SimpleType.LONG };
+		CompositeType rowType = new CompositeType("CacheStatistics", "Statistics of a cache (averageLoadTime in ms)", itemNames, itemNames, itemTypes);
+		CompositeDataSupport[] result = new CompositeDataSupport[caches.size()];
+		int i = 0;
+		for (Map.Entry<String, Cache> entry : caches.entrySet()) {
+			result[i++] = new CompositeDataSupport(rowType, itemNames, entry.getValue().getStatistics(entry.getKey()));
+		}
+		return result;
 	}
 
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a (direct) ByteBuffer without copying its content into a heap array first.
+ */
+public final class ByteBufferInputStream extends InputStream implements IOUtils.PredictableInputStream {
+
+	private final ByteBuffer _byteBuffer;
+
+	public ByteBufferInputStream(ByteBuffer byteBuffer) {
+		_byteBuffer = byteBuffer;
+	}
+
+	@Override
+	public int lengthAsInt() {
+		return _byteBuffer.remaining();
+	}
+
+	@Override
+	public int available() {
+		return _byteBuffer.remaining();
+	}
+
+	@Override
+	public int read() {
+		return _byteBuffer.hasRemaining() ? _byteBuffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!_byteBuffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, _byteBuffer.remaining());
+		_byteBuffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		int k = (int) Math.max(0, Math.min(n, _byteBuffer.remaining()));
+		_byteBuffer.position(_byteBuffer.position() + k);
+		return k;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		_byteBuffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		_byteBuffer.reset();
+	}
+
+	@Override
+	public long transferTo(OutputStream out) throws IOException {
+		long count = _byteBuffer.remaining();
+		byte[] buffer = new byte[(int) Math.min(count, IOUtils.MTU)];
+		while (_byteBuffer.hasRemaining()) {
+			int len = Math.min(buffer.length, _byteBuffer.remaining());
+			_byteBuffer.get(buffer, 0, len);
+			out.write(buffer, 0, len);
+		}
+		return count;
+	}
+
+}
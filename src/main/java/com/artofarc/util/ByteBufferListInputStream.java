@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Reads a sequence of (possibly read-only) ByteBuffers as received from the network without joining them first.
+ */
+public final class ByteBufferListInputStream extends InputStream implements IOUtils.PredictableInputStream {
+
+	private final List<ByteBuffer> _byteBuffers;
+	private int _index;
+	private long _remaining;
+
+	public ByteBufferListInputStream(List<ByteBuffer> byteBuffers) {
+		_byteBuffers = byteBuffers;
+		for (ByteBuffer byteBuffer : byteBuffers) {
+			_remaining += byteBuffer.remaining();
+		}
+	}
+
+	private ByteBuffer current() {
+		for (; _index < _byteBuffers.size(); ++_index) {
+			ByteBuffer byteBuffer = _byteBuffers.get(_index);
+			if (byteBuffer.hasRemaining()) {
+				return byteBuffer;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long length() {
+		return _remaining;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(_remaining, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int read() {
+		ByteBuffer byteBuffer = current();
+		if (byteBuffer == null) {
+			return -1;
+		}
+		--_remaining;
+		return byteBuffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer byteBuffer = current();
+		if (byteBuffer == null) {
+			return -1;
+		}
+		int count = 0;
+		do {
+			int n = Math.min(len - count, byteBuffer.remaining());
+			byteBuffer.get(b, off + count, n);
+			count += n;
+		} while (count < len && (byteBuffer = current()) != null);
+		_remaining -= count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		long count = 0;
+		for (ByteBuffer byteBuffer; count < n && (byteBuffer = current()) != null;) {
+			int k = (int) Math.min(n - count, byteBuffer.remaining());
+			byteBuffer.position(byteBuffer.position() + k);
+			count += k;
+		}
+		_remaining -= count;
+		return count;
+	}
+
+	@Override
+	public long transferTo(OutputStream out) throws IOException {
+		long count = _remaining;
+		byte[] buffer = null;
+		for (ByteBuffer byteBuffer; (byteBuffer = current()) != null;) {
+			if (byteBuffer.hasArray()) {
+				out.write(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+				byteBuffer.position(byteBuffer.limit());
+			} else {
+				if (buffer == null) {
+					buffer = new byte[(int) Math.min(count, IOUtils.MTU)];
+				}
+				int len = Math.min(buffer.length, byteBuffer.remaining());
+				byteBuffer.get(buffer, 0, len);
+				out.write(buffer, 0, len);
+			}
+		}
+		_remaining = 0;
+		return count;
+	}
+
+	@Override
+	public ReadableByteChannel getChannel() {
+		return new ReadableByteChannel() {
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public int read(ByteBuffer dst) {
+				ByteBuffer byteBuffer = current();
+				if (byteBuffer == null) {
+					return -1;
+				}
+				int count = 0;
+				do {
+					int n = Math.min(dst.remaining(), byteBuffer.remaining());
+					int limit = byteBuffer.limit();
+					byteBuffer.limit(byteBuffer.position() + n);
+					dst.put(byteBuffer);
+					byteBuffer.limit(limit);
+					count += n;
+				} while (dst.hasRemaining() && (byteBuffer = current()) != null);
+				_remaining -= count;
+				return count;
+			}
+		};
+	}
+
+}
@@ -17,6 +17,7 @@ package com.artofarc.util;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -106,6 +107,26 @@ public final class ReflectionUtils {
 		return (T) root;
 	}
 
+	/**
+	 * Bind the method without arguments that {@link #eval(Object, String, int, ParamResolver)} would invoke for methodName on an instance of cls.
+	 */
+	public static MethodHandle findGetter(Class<?> cls, String methodName) throws ReflectiveOperationException {
+		final List<Object> args = Collections.emptyList();
+		Method method = findMethod(cls.getMethods(), methodName, args);
+		for (Class<?> c = cls; method == null && c != null; c = c.getSuperclass()) {
+			method = findMethod(c.getDeclaredMethods(), methodName, args);
+		}
+		if (method == null) {
+			throw new NoSuchMethodException(methodName + " for args " + args + " in " + cls.getName());
+		}
+		method.setAccessible(true);
+		MethodHandle methodHandle = MethodHandles.lookup().unreflect(method);
+		if ((method.getModifiers() & Modifier.STATIC) != 0) {
+			methodHandle = MethodHandles.dropArguments(methodHandle, 0, Object.class);
+		}
+		return methodHandle.asType(MethodType.methodType(Object.class, Object.class));
+	}
+
 	private static Method findMethod(Method[] methods, String methodName, List<Object> args) {
 		outer: for (Method method : methods) {
 			Class<?>[] parameterTypes = method.getParameterTypes();
@@ -15,7 +15,8 @@
  */
 package com.artofarc.util;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 import org.slf4j.Logger;
 
@@ -26,7 +27,9 @@ public final class TimeGauge {
 	private final Logger _logger; 
 	private final boolean _debug;
 	private final long _threshold;
-	private final ArrayDeque<Long> _measuredPoints = new ArrayDeque<>();
+	// stack of primitive time stamps, avoids boxing
+	private long[] _measuredPoints = new long[8];
+	private int _depth;
 
 	public TimeGauge(Logger logger, long threshold, boolean debug) {
 		_logger = logger;
@@ -45,35 +48,82 @@ public final class TimeGauge {
 	private void log(String msg) {
 		if (_debug) _logger.debug(msg); else _logger.info(msg);
 	}
-	
+
+	private void push(long timeStamp) {
+		if (_depth == _measuredPoints.length) {
+			_measuredPoints = Arrays.copyOf(_measuredPoints, _depth * 2);
+		}
+		_measuredPoints[_depth++] = timeStamp;
+	}
+
+	private long pop() {
+		if (_depth == 0) {
+			throw new NoSuchElementException();
+		}
+		return _measuredPoints[--_depth];
+	}
+
+	private long stop(boolean restart) {
+		final long endTS = System.nanoTime();
+		final long diff = (endTS - pop()) / 1000000L;
+		if (restart) {
+			push(endTS);
+		}
+		return diff;
+	}
+
 	public void startTimeMeasurement() {
-		_measuredPoints.push(System.nanoTime());
+		push(System.nanoTime());
 	}
 
 	public long stopTimeMeasurement() {
-		return (System.nanoTime() - _measuredPoints.pop()) / 1000000L;
+		return stop(false);
 	}
 
 	public long stopTimeMeasurement(String text, boolean restart) {
 		return stopTimeMeasurement(text, restart, EMPTY_OBJECT_ARRAY);
 	}
 
+	public long stopTimeMeasurement(String text, boolean restart, Object arg) {
+		final long diff = stop(restart);
+		if (diff >= _threshold && isLogEnabled()) {
+			log(String.format(text, arg) + " took " + diff / 1000. + "s");
+		}
+		return diff;
+	}
+
+	public long stopTimeMeasurement(String text, boolean restart, Object arg1, Object arg2) {
+		final long diff = stop(restart);
+		if (diff >= _threshold && isLogEnabled()) {
+			log(String.format(text, arg1, arg2) + " took " + diff / 1000. + "s");
+		}
+		return diff;
+	}
+
 	public long stopTimeMeasurement(String text, boolean restart, Object... args) {
-		final long endTS = System.nanoTime();
-		final long startTS = _measuredPoints.pop();
-		final long diff = (endTS - startTS) / 1000000L;
+		final long diff = stop(restart);
 		if (diff >= _threshold && isLogEnabled()) {
 			if (args.length > 0) text = String.format(text, args);
 			log(text + " took " + diff / 1000. + "s");
 		}
-		if (restart) {
-			_measuredPoints.push(endTS);
-		}
 		return diff;
 	}
 
+	public int getDepth() {
+		return _depth;
+	}
+
+	/**
+	 * Discard measurements started after the given depth, e.g. when left by an exception.
+	 */
+	public void unwind(int depth) {
+		if (depth < _depth) {
+			_depth = depth;
+		}
+	}
+
 	public void clear() {
-		_measuredPoints.clear();
+		_depth = 0;
 	}
 
 }
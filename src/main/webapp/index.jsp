@@ -302,14 +302,14 @@ input[type="submit"][value="false"] {
 		case "Caches":
 			%>
 <br>Caches:
-<table border="1"><tr bgcolor="#EEEEEE"><td><b>Name</b></td><td><b>Keys with expiration in seconds</b></td></tr>
+<table border="1"><tr bgcolor="#EEEEEE"><td><b>Name</b></td><td><b>Size</b></td><td><b>Concurrent</b></td><td><b>Off heap bytes</b></td><td><b>Keys with expiration in seconds</b></td></tr>
 <%
 			@SuppressWarnings("unchecked")
 			LRUCacheWithExpirationFactory<Object, Object[]> factory = globalContext.getResourceFactory(LRUCacheWithExpirationFactory.class);
 			for (String cacheName : factory.getResourceDescriptors()) {
 				LRUCacheWithExpirationFactory<Object, Object[]>.Cache cache = factory.getResource(cacheName, null);
 				%>
-				<tr><td><%=cacheName%></td><td><%=cache.getExpirations()%></td></tr>
+				<tr><td><%=cacheName%></td><td><%=cache.getSize() + "/" + cache.getMaxSize()%></td><td><%=cache.isConcurrent()%></td><td><%=cache.getOffHeapSize() + "/" + cache.getMaxOffHeapSize()%></td><td><%=cache.getExpirations()%></td></tr>
 				<%
 			}
 %>
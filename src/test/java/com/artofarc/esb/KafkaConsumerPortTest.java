@@ -0,0 +1,161 @@
+package com.artofarc.esb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.artofarc.esb.action.TerminalAction;
+import com.artofarc.esb.context.Context;
+import com.artofarc.esb.message.ESBMessage;
+
+public class KafkaConsumerPortTest extends AbstractESBTest {
+
+	private static final TopicPartition TOPIC_PARTITION = new TopicPartition("test", 0);
+
+	/**
+	 * Behaves like a log: records are polled again after a seek. The key of a value is its prefix up to '-'.
+	 */
+	static class LogConsumer extends MockConsumer<String, String> {
+		final List<ConsumerRecord<String, String>> log = new ArrayList<>();
+
+		LogConsumer(String... values) {
+			super(OffsetResetStrategy.EARLIEST);
+			for (int i = 0; i < values.length; ++i) {
+				int i2 = values[i].indexOf('-');
+				log.add(new ConsumerRecord<>(TOPIC_PARTITION.topic(), TOPIC_PARTITION.partition(), i, i2 > 0 ? values[i].substring(0, i2) : null, values[i]));
+			}
+		}
+
+		@Override
+		public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+			super.subscribe(topics, listener);
+			rebalance(Collections.singleton(TOPIC_PARTITION));
+			updateBeginningOffsets(Collections.singletonMap(TOPIC_PARTITION, 0L));
+			listener.onPartitionsAssigned(assignment());
+		}
+
+		@Override
+		public ConsumerRecords<String, String> poll(long timeout) {
+			try {
+				Thread.sleep(10L);
+			} catch (InterruptedException e) {
+				throw new WakeupException();
+			}
+			synchronized (this) {
+				for (ConsumerRecord<String, String> record : log) {
+					addRecord(record);
+				}
+				return super.poll(timeout);
+			}
+		}
+
+		synchronized long getCommittedOffset() {
+			OffsetAndMetadata offsetAndMetadata = committed(TOPIC_PARTITION);
+			return offsetAndMetadata != null ? offsetAndMetadata.offset() : -1L;
+		}
+	}
+
+	static class RecordAction extends TerminalAction {
+		final List<String> processed = new CopyOnWriteArrayList<>();
+		final AtomicInteger failures = new AtomicInteger();
+		volatile int failuresToSucceed = Integer.MAX_VALUE;
+
+		@Override
+		protected void execute(Context context, ESBMessage message) throws Exception {
+			String body = message.getBodyAsString(context);
+			if (body.contains("slow")) {
+				Thread.sleep(200L);
+			}
+			if (body.contains("poison") && failures.incrementAndGet() < failuresToSucceed) {
+				throw new IllegalStateException(body);
+			}
+			processed.add(body);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		_createContext();
+	}
+
+	private void consume(RecordAction action, LogConsumer consumer, long expectedOffset) throws Exception {
+		consume(action, consumer, expectedOffset, KafkaConsumerPort.Ordering.PARTITION);
+	}
+
+	private void consume(RecordAction action, LogConsumer consumer, long expectedOffset, KafkaConsumerPort.Ordering ordering) throws Exception {
+		KafkaConsumerPort consumerPort = new KafkaConsumerPort(null, null, 100L, new Properties(), Collections.singletonList(TOPIC_PARTITION.topic()), 1000L, ordering);
+		consumerPort.setStartAction(action);
+		consumerPort.setEnabled(false);
+		consumerPort.init(getGlobalContext());
+		Thread poller = new Thread(() -> {
+			try {
+				consumerPort.runOrdered(consumer);
+			} catch (WakeupException e) {
+				// stopped
+			}
+		});
+		poller.start();
+		for (int i = 0; i < 100 && consumer.getCommittedOffset() < expectedOffset; ++i) {
+			Thread.sleep(100L);
+		}
+		consumer.wakeup();
+		poller.join(5000L);
+		assertFalse(poller.isAlive());
+	}
+
+	@Test
+	public void testPoisonRecordSkipped() throws Exception {
+		RecordAction action = new RecordAction();
+		LogConsumer consumer = new LogConsumer("r0", "r1", "poison", "r3", "r4");
+		consume(action, consumer, 5L);
+		assertEquals(5L, consumer.getCommittedOffset());
+		// retried with backoff until the attempts are exhausted
+		assertEquals(5, action.failures.get());
+		// predecessors are not processed again, successors only after the poison record
+		assertEquals(Arrays.asList("r0", "r1", "r3", "r4"), action.processed);
+	}
+
+	@Test
+	public void testPoisonRecordSkippedOrderedByKey() throws Exception {
+		RecordAction action = new RecordAction();
+		// a-r1 waits in its lane while b-poison fails
+		LogConsumer consumer = new LogConsumer("a-slow", "a-r1", "b-poison", "b-r3");
+		consume(action, consumer, 4L, KafkaConsumerPort.Ordering.KEY);
+		assertEquals(4L, consumer.getCommittedOffset());
+		assertEquals(5, action.failures.get());
+		assertTrue(action.processed.containsAll(Arrays.asList("a-slow", "a-r1", "b-r3")));
+		assertFalse(action.processed.contains("b-poison"));
+		// order within a key is kept
+		assertTrue(action.processed.lastIndexOf("a-slow") < action.processed.lastIndexOf("a-r1"));
+	}
+
+	@Test
+	public void testTransientFailureRetried() throws Exception {
+		RecordAction action = new RecordAction();
+		action.failuresToSucceed = 3;
+		LogConsumer consumer = new LogConsumer("r0", "poison", "r2");
+		consume(action, consumer, 3L);
+		assertEquals(3L, consumer.getCommittedOffset());
+		assertEquals(3, action.failures.get());
+		assertEquals(Arrays.asList("r0", "poison", "r2"), action.processed);
+	}
+
+}
@@ -63,6 +63,20 @@ public class ActionTest extends AbstractESBTest {
       assertEquals("op1${op1}", action.eval("${operation}$${${operation}}", context, message));
    }
 
+   @Test
+   public void testEvalChangingTypes() throws Exception {
+      ESBMessage message = new ESBMessage(BodyType.INVALID, null);
+      Action action = new DumpAction();
+      message.getVariables().put("value", "abc");
+      assertEquals("length=3", action.eval("length=${value.length}", context, message));
+      message.getVariables().put("value", new StringBuilder("abcd"));
+      assertEquals("length=4", action.eval("length=${value.length}", context, message));
+      message.getVariables().put("value", new Exception("outer", new Exception("inner")));
+      assertEquals("inner", action.eval("${value.getCause.getMessage}", context, message));
+      assertEquals("${value}", action.eval("$${value}", context, message));
+      assertEquals(Integer.valueOf(5), action.eval("${value.getMessage.length}", context, message));
+   }
+
    @Test
    public void testResolveTemplate() throws Exception {
       ESBMessage message = new ESBMessage(BodyType.INVALID, null);
@@ -444,4 +458,82 @@ public class ActionTest extends AbstractESBTest {
 		//assertTrue(message.getVariable("nodes") instanceof Iterable);
 	}
    
+	@Test
+	public void testProcessDoesNotAllocate() throws Exception {
+		java.lang.management.ThreadMXBean threadMXBean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return;
+		com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		Action action = new Action() {};
+		action._pipelineStop = true;
+		Action nextAction = action.setNextAction(new Action() {});
+		nextAction.setNextAction(new Action() {});
+		ESBMessage message = new ESBMessage(BodyType.INVALID, null);
+		for (int i = 0; i < 20000; ++i) {
+			action.process(context, message);
+		}
+		long threadId = Thread.currentThread().getId();
+		// JIT compilation or logging may allocate in a single round, so take the best of several rounds
+		long allocated = Long.MAX_VALUE;
+		for (int round = 0; round < 5 && allocated >= 10000; ++round) {
+			long start = mxBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 10000; ++i) {
+				action.process(context, message);
+			}
+			allocated = Math.min(allocated, mxBean.getThreadAllocatedBytes(threadId) - start);
+		}
+		// less than one byte per call
+		assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+		assertTrue(context.getPipeline().isEmpty());
+	}
+
+	@Test
+	public void testSingleFlightLoaderFails() throws Exception {
+		final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1), fail = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.atomic.AtomicInteger loads = new java.util.concurrent.atomic.AtomicInteger();
+		Action loader = new TerminalAction() {
+
+			@Override
+			protected void execute(com.artofarc.esb.context.Context context, ESBMessage message) throws Exception {
+				if (loads.incrementAndGet() == 1) {
+					started.countDown();
+					fail.await();
+					throw new IllegalStateException("load failed");
+				}
+				message.putVariable("result", "loaded");
+			}
+		};
+		CacheAction cacheAction = new CacheAction(getGlobalContext(), "${key}", false, Collections.singletonList("result"), loader, false, "singleFlight", 10, false, 0L, "60", true, 0);
+		java.util.concurrent.Future<?> first = getGlobalContext().getDefaultWorkerPool().getExecutorService().submit(() -> {
+			com.artofarc.esb.context.Context workerContext = new com.artofarc.esb.context.Context(getGlobalContext().getDefaultWorkerPool().getPoolContext());
+			ESBMessage message = new ESBMessage(BodyType.INVALID, null);
+			message.putVariable("key", "k");
+			cacheAction.process(workerContext, message);
+			return null;
+		});
+		assertTrue(started.await(10, java.util.concurrent.TimeUnit.SECONDS));
+		Thread thread = new Thread(() -> {
+			try {
+				Thread.sleep(200L);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			fail.countDown();
+		});
+		thread.start();
+		long start = System.nanoTime();
+		ESBMessage message = new ESBMessage(BodyType.INVALID, null);
+		message.putVariable("key", "k");
+		// waits for the pending load of the first caller
+		cacheAction.process(context, message);
+		assertTrue(System.nanoTime() - start < java.util.concurrent.TimeUnit.SECONDS.toNanos(10));
+		assertEquals("loaded", message.getVariable("result"));
+		assertEquals(2, loads.get());
+		try {
+			first.get();
+			fail();
+		} catch (java.util.concurrent.ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
 }
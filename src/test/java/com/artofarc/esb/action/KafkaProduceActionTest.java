@@ -0,0 +1,114 @@
+package com.artofarc.esb.action;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.artofarc.esb.context.Context;
+import com.artofarc.esb.message.BodyType;
+import com.artofarc.esb.message.ESBMessage;
+
+public class KafkaProduceActionTest extends AbstractESBTest {
+
+	@Before
+	public void setUp() {
+		_createContext();
+	}
+
+	@Test
+	public void testEncodeKafkaHeaderValue() {
+		for (long value : new long[] { 0L, 7L, -7L, 10L, 1234567890123L, -98765L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+			assertEquals(Long.toString(value), new String(KafkaProduceAction.encodeHeaderValue(value), ESBMessage.CHARSET_DEFAULT));
+		}
+		assertEquals("-42", new String(KafkaProduceAction.encodeHeaderValue(-42), ESBMessage.CHARSET_DEFAULT));
+		assertEquals("\u00e4bc", new String(KafkaProduceAction.encodeHeaderValue("\u00e4bc"), ESBMessage.CHARSET_DEFAULT));
+		assertEquals("true", new String(KafkaProduceAction.encodeHeaderValue(Boolean.TRUE), ESBMessage.CHARSET_DEFAULT));
+		byte[] bytes = { 1, 2 };
+		assertSame(bytes, KafkaProduceAction.encodeHeaderValue(bytes));
+	}
+
+	private KafkaProduceAction createAction(String workerPool, long timeout, boolean fireAndForget, int maxInFlight, MockProducer<String, String> mockProducer) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("bootstrap.servers", "localhost:1");
+		properties.setProperty("key.serializer", StringSerializer.class.getName());
+		properties.setProperty("value.serializer", StringSerializer.class.getName());
+		KafkaProduceAction action = new KafkaProduceAction(getGlobalContext(), properties, "test", null, false, workerPool, timeout, fireAndForget, maxInFlight);
+		Field producer = KafkaProduceAction.class.getDeclaredField("_producer");
+		producer.setAccessible(true);
+		producer.set(action, mockProducer);
+		return action;
+	}
+
+	@Test
+	public void testSendAsyncFailsSynchronously() throws Exception {
+		KafkaProduceAction action = createAction("default", 1000L, false, 0, new MockProducer<String, String>(true, new StringSerializer(), new StringSerializer()) {
+
+			@Override
+			public synchronized Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+				throw new KafkaException("Buffer exhausted");
+			}
+		});
+		Action next = new MarkAction();
+		context.getExecutionStack().push(next);
+		try {
+			action.execute(context, new ESBMessage(BodyType.STRING, "record"));
+			fail();
+		} catch (KafkaException e) {
+			// expected
+		}
+		// the caller's stack is intact for error handling and nothing is left waiting for a completion
+		assertEquals(1, context.getExecutionStack().size());
+		assertSame(next, context.getExecutionStack().peek());
+		assertEquals(0, getGlobalContext().getWorkerPool("default").getAsyncProcessingPool().getPoolSize());
+	}
+
+	@Test
+	public void testSendAsyncContinuesWithMessage() throws Exception {
+		KafkaProduceAction action = createAction("default", 1000L, false, 0, new MockProducer<>(true, new StringSerializer(), new StringSerializer()));
+		CountDownLatch continued = new CountDownLatch(1);
+		String[] result = new String[2];
+		action.setNextAction(new TerminalAction() {
+
+			@Override
+			protected void execute(Context context, ESBMessage message) throws Exception {
+				result[0] = message.getBodyAsString(context);
+				result[1] = message.getHeader("h");
+				continued.countDown();
+			}
+		});
+		ESBMessage message = new ESBMessage(BodyType.STRING, "record");
+		message.putHeader("h", "v");
+		action.execute(context, message);
+		assertTrue(continued.await(5L, TimeUnit.SECONDS));
+		assertEquals("record", result[0]);
+		assertEquals("v", result[1]);
+	}
+
+	@Test
+	public void testFireAndForgetTimeout() throws Exception {
+		// records are never acknowledged
+		KafkaProduceAction action = createAction(null, 100L, true, 1, new MockProducer<>(false, new StringSerializer(), new StringSerializer()));
+		action.execute(context, new ESBMessage(BodyType.STRING, "record1"));
+		try {
+			action.execute(context, new ESBMessage(BodyType.STRING, "record2"));
+			fail();
+		} catch (ExecutionException e) {
+			// expected
+		}
+	}
+
+}
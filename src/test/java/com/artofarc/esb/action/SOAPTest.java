@@ -32,6 +32,7 @@ import com.artofarc.esb.context.GlobalContext;
 import com.artofarc.esb.http.HttpConstants;
 import com.artofarc.esb.jms.JMSConnectionData;
 import com.artofarc.esb.jms.JMSConsumer;
+import com.artofarc.esb.jms.JMSWorkerScaler;
 import com.artofarc.esb.message.BodyType;
 import com.artofarc.esb.message.ESBConstants;
 import com.artofarc.esb.message.ESBMessage;
@@ -465,14 +466,14 @@ public class SOAPTest extends AbstractESBTest {
 	   
 	   // java:/ConnectionFactory
 	   List<JMSConnectionData> jmsConnectionData = JMSConnectionData.create(getGlobalContext(), "ConnectionFactory", null, null, null);
-      JMSConsumer jmsConsumer = new JMSConsumer(getGlobalContext(), null, null, jmsConnectionData.get(0), "dynamicQueues/test1", null, null, null, null, null, false, false, null, 1, 1, 2, 1000, 0L, "milliseconds", null);
+      JMSConsumer jmsConsumer = new JMSConsumer(getGlobalContext(), null, null, jmsConnectionData.get(0), "dynamicQueues/test1", null, null, null, null, null, false, false, null, 1, 1, 2, 1000, 0L, "milliseconds", null, null, false, 0, new JMSWorkerScaler());
       MarkAction markAction = new MarkAction();
       jmsConsumer.setStartAction(markAction);
       jmsConsumer.init(getGlobalContext());
       
       ESBMessage message = new ESBMessage(BodyType.BYTES, readFile("src/test/resources/SOAPRequest.xml"));
       
-      JMSAction jmsAction = new JMSAction(getGlobalContext(), jmsConnectionData, false, false, "dynamicQueues/test1", null, null, null, false, Message.DEFAULT_DELIVERY_MODE, "" + Message.DEFAULT_PRIORITY, 10000L, null, null, false, null, null, null, null, null);
+      JMSAction jmsAction = new JMSAction(getGlobalContext(), jmsConnectionData, false, false, "dynamicQueues/test1", null, null, null, false, Message.DEFAULT_DELIVERY_MODE, "" + Message.DEFAULT_PRIORITY, 10000L, null, null, false, null, null, false, null, null, null);
       ConsumerPort consumerPort = new ConsumerPort(null);
       consumerPort.setStartAction(jmsAction);
       assertFalse(markAction.isExecuted());
@@ -0,0 +1,71 @@
+package com.artofarc.esb.http;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.artofarc.esb.message.ESBMessage;
+import com.artofarc.util.ByteArrayOutputStream;
+import com.artofarc.util.ByteBufferListInputStream;
+import com.artofarc.util.IOUtils;
+
+public class ByteBufferListSubscriberTest extends AbstractESBTest {
+
+	private static InputStream receive(String... chunks) throws Exception {
+		Http2UrlSelector.ByteBufferListSubscriber subscriber = new Http2UrlSelector.ByteBufferListSubscriber();
+		subscriber.onSubscribe(new Flow.Subscription() {
+
+			@Override
+			public void request(long n) {
+			}
+
+			@Override
+			public void cancel() {
+			}
+		});
+		for (String chunk : chunks) {
+			// HttpClient delivers read-only buffers
+			subscriber.onNext(Arrays.asList(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer(), ByteBuffer.allocate(0)));
+		}
+		subscriber.onComplete();
+		return subscriber.getBody().toCompletableFuture().get();
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		InputStream is = receive("<a>", "hello", "</a>");
+		assertTrue(is instanceof ByteBufferListInputStream);
+		assertEquals(Long.valueOf(12), IOUtils.getLength(is));
+		assertEquals('<', is.read());
+		byte[] buf = new byte[6];
+		assertEquals(6, is.read(buf));
+		assertEquals("a>hell", new String(buf, StandardCharsets.UTF_8));
+		assertEquals(1, is.skip(1));
+		assertEquals(4, is.available());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		assertEquals(4, is.transferTo(bos));
+		assertEquals("</a>", bos.toString());
+		assertEquals(-1, is.read());
+	}
+
+	@Test
+	public void testToByteBuffer() throws Exception {
+		ByteBuffer byteBuffer = IOUtils.toByteBuffer(receive("<a>", "hello", "</a>"));
+		assertEquals("<a>hello</a>", StandardCharsets.UTF_8.decode(byteBuffer).toString());
+	}
+
+	@Test
+	public void testESBMessage() throws Exception {
+		ESBMessage message = new ESBMessage(null, receive("<a>", "hello", "</a>"));
+		assertEquals(Long.valueOf(12), message.getLengthExact());
+		assertEquals("<a>hello</a>", new String(message.getBodyAsByteArray(context), StandardCharsets.UTF_8));
+	}
+
+}
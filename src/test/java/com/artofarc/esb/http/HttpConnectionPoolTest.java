@@ -0,0 +1,247 @@
+package com.artofarc.esb.http;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.artofarc.util.DataStructures;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpConnectionPoolTest extends AbstractESBTest {
+
+	interface ConnectionHandler {
+		void handle(BufferedReader reader, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A server that gives full control over the connection.
+	 */
+	private static ServerSocket startRawServer(ConnectionHandler handler) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		Thread acceptor = new Thread(() -> {
+			try {
+				for (;;) {
+					Socket socket = serverSocket.accept();
+					new Thread(() -> {
+						try (Socket s = socket) {
+							handler.handle(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1)), s.getOutputStream());
+						} catch (IOException e) {
+							// client went away
+						}
+					}).start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return serverSocket;
+	}
+
+	private static boolean readRequestHead(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			return false;
+		}
+		while (!line.isEmpty()) {
+			line = reader.readLine();
+		}
+		return true;
+	}
+
+	@Test
+	public void testRetryOnClosedKeepAlive() throws Exception {
+		// answers the first request of a connection and closes it on the second one, like a server with a short keep-alive timeout
+		try (ServerSocket serverSocket = startRawServer((reader, out) -> {
+			if (readRequestHead(reader)) {
+				out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+				readRequestHead(reader);
+			}
+		})) {
+			String url = "http://localhost:" + serverSocket.getLocalPort() + "/";
+			HttpEndpoint httpEndpoint = new HttpEndpoint(null, Collections.singletonList(new HttpUrl(url, 1, true)), true, null, null, 1000, 0, null, null, System.currentTimeMillis(),
+					Proxy.NO_PROXY, null, null, null, null, new HttpConnectionPool(2, 60), null, null);
+			Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+			try {
+				for (int i = 0; i < 2; ++i) {
+					Http1UrlSelector.HttpUrlConnection connection = httpUrlSelector.connectTo(httpEndpoint, 5000, "GET", null, Collections.emptyList(), null, null);
+					try {
+						assertEquals(200, connection.getResponseCode());
+						try (InputStream is = connection.getInputStream()) {
+							assertEquals("ok", new String(is.readAllBytes(), StandardCharsets.ISO_8859_1));
+						}
+					} finally {
+						connection.close();
+					}
+				}
+				CompositeData state = httpUrlSelector.getConnectionPoolStates()[0];
+				assertEquals(2L, state.get("created"));
+				assertEquals(1L, state.get("evicted"));
+			} finally {
+				httpUrlSelector.stop();
+			}
+		}
+	}
+
+	private void assertResponseFails(String response, Class<? extends IOException> expected) throws Exception {
+		try (ServerSocket serverSocket = startRawServer((reader, out) -> {
+			if (readRequestHead(reader)) {
+				out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+			}
+		})) {
+			String url = "http://localhost:" + serverSocket.getLocalPort() + "/";
+			HttpEndpoint httpEndpoint = new HttpEndpoint(null, Collections.singletonList(new HttpUrl(url, 1, true)), true, null, null, 1000, 0, null, null, System.currentTimeMillis(),
+					Proxy.NO_PROXY, null, null, null, null, new HttpConnectionPool(2, 60), null, null);
+			Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+			try {
+				Http1UrlSelector.HttpUrlConnection connection = httpUrlSelector.connectTo(httpEndpoint, 5000, "GET", null, Collections.emptyList(), null, null);
+				try {
+					connection.getResponseCode();
+					fail();
+				} catch (IOException e) {
+					assertEquals(expected, e.getClass());
+				} finally {
+					connection.close();
+				}
+				assertEquals(0, httpUrlSelector.getConnectionPoolStates()[0].get("idle"));
+			} finally {
+				httpUrlSelector.stop();
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidResponse() throws Exception {
+		assertResponseFails("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n", EOFException.class);
+		assertResponseFails("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n", ProtocolException.class);
+		assertResponseFails("HTTP/1.1 200 OK\r\nContent-Length: 1x\r\n\r\n", ProtocolException.class);
+	}
+
+	@Test
+	public void testExpectContinueFailover() throws Exception {
+		// rejects the request before the body is sent
+		try (ServerSocket serverSocket = startRawServer((reader, out) -> {
+			while (readRequestHead(reader)) {
+				out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+			}
+		})) {
+			HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/echo", exchange -> {
+				byte[] body = exchange.getRequestBody().readAllBytes();
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(body);
+				}
+			});
+			server.start();
+			try {
+				List<HttpUrl> httpUrls = Arrays.asList(new HttpUrl("http://localhost:" + serverSocket.getLocalPort() + "/echo", 1, true),
+						new HttpUrl("http://localhost:" + server.getAddress().getPort() + "/echo", 1, true));
+				HttpEndpoint httpEndpoint = new HttpEndpoint(null, httpUrls, true, null, null, 1000, 1, null, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null,
+						null, null, new HttpConnectionPool(2, 60), null, null);
+				Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+				try {
+					for (int i = 0; i < 4; ++i) {
+						String request = "request" + i;
+						byte[] body = request.getBytes(StandardCharsets.UTF_8);
+						Http1UrlSelector.HttpUrlConnection connection = httpUrlSelector.connectTo(httpEndpoint, 5000, "POST", null, Collections.emptyList(), null, i % 2 == 0 ? (long) body.length : null);
+						try {
+							try (OutputStream os = connection.getOutputStream()) {
+								os.write(body);
+							}
+							assertEquals(200, connection.getResponseCode());
+							try (InputStream is = connection.getInputStream()) {
+								assertEquals(request, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+							}
+						} finally {
+							connection.close();
+						}
+					}
+				} finally {
+					httpUrlSelector.stop();
+				}
+			} finally {
+				server.stop(0);
+			}
+		}
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/echo", exchange -> {
+			byte[] body = exchange.getRequestBody().readAllBytes();
+			exchange.getResponseHeaders().add("Content-Type", "text/plain");
+			// alternate between fixed length and chunked response
+			exchange.sendResponseHeaders(200, body.length % 2 == 0 ? body.length : 0);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		});
+		server.start();
+		try {
+			String url = "http://localhost:" + server.getAddress().getPort() + "/echo";
+			HttpEndpoint httpEndpoint = new HttpEndpoint(null, Collections.singletonList(new HttpUrl(url, 1, true)), true, null, null, 1000, 0, null, null, System.currentTimeMillis(),
+					Proxy.NO_PROXY, null, null, null, null, new HttpConnectionPool(2, 60), null, null);
+			Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+			try {
+				String[] requests = { "Hello", "World!", "", "x" };
+				for (String request : requests) {
+					byte[] body = request.getBytes(StandardCharsets.UTF_8);
+					List<Map.Entry<String, Object>> headers = new ArrayList<>();
+					headers.add(DataStructures.createEntry("X-Test", request));
+					Http1UrlSelector.HttpUrlConnection connection = httpUrlSelector.connectTo(httpEndpoint, 5000, "POST", "?q=1", headers, null, request.length() % 2 == 0 ? (long) body.length : null);
+					try {
+						if (body.length > 0) {
+							try (OutputStream os = connection.getOutputStream()) {
+								os.write(body);
+							}
+						}
+						assertEquals(200, connection.getResponseCode());
+						assertEquals("text/plain", connection.getHeaders().get("content-type").get(0));
+						try (InputStream is = connection.getInputStream()) {
+							assertEquals(request, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+						}
+					} finally {
+						connection.close();
+					}
+				}
+				CompositeData state = httpUrlSelector.getConnectionPoolStates()[0];
+				assertEquals(0, state.get("leased"));
+				assertEquals(1, state.get("idle"));
+				assertEquals(1L, state.get("created"));
+				assertEquals(3L, state.get("reused"));
+			} finally {
+				httpUrlSelector.stop();
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+}
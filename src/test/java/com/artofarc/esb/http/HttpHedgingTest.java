@@ -0,0 +1,136 @@
+package com.artofarc.esb.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpHedgingTest extends AbstractESBTest {
+
+	private static HttpServer createServer(String answer, long sleep) throws Exception {
+		return createServer(answer, sleep, 200, new AtomicInteger());
+	}
+
+	private static HttpServer createServer(String answer, long sleep, int statusCode, AtomicInteger requests) throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			byte[] body = answer.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(statusCode, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void testPercentile() {
+		HttpHedging.Tracker tracker = new HttpHedging(null, 95, 10).new Tracker();
+		for (int i = 1; i < 20; ++i) {
+			tracker.record(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+		assertEquals(-1L, tracker.getDelay());
+		for (int i = 20; i <= 128; ++i) {
+			tracker.record(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(122), tracker.getDelay());
+	}
+
+	@Test
+	public void testBudget() {
+		HttpHedging.Tracker tracker = new HttpHedging(50, 95, 10).new Tracker();
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(50), tracker.getDelay());
+		int hedges = 0;
+		for (int i = 0; i < 100; ++i) {
+			tracker.deposit();
+			if (tracker.tryAcquire()) ++hedges;
+		}
+		assertEquals(10, hedges);
+		assertEquals(10L, tracker.getHedges());
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		HttpServer slow = createServer("slow", 3000L);
+		HttpServer fast = createServer("fast", 0L);
+		try {
+			List<HttpUrl> list = new ArrayList<>();
+			list.add(new HttpUrl("http://localhost:" + slow.getAddress().getPort() + "/", 1, true));
+			list.add(new HttpUrl("http://localhost:" + fast.getAddress().getPort() + "/", 1, true));
+			HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 1, null, null, System.currentTimeMillis(), Proxy.NO_PROXY, null, HttpClient.Version.HTTP_1_1, null, null, null,
+					new HttpHedging(100, 95, 100), null);
+			Http2UrlSelector httpUrlSelector = new Http2UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+			try {
+				for (int i = 0; i < 4; ++i) {
+					long start = System.nanoTime();
+					HttpResponse<InputStream> httpResponse = httpUrlSelector.send(httpEndpoint, HttpRequest.newBuilder().GET(), "", false, null);
+					try (InputStream is = httpResponse.body()) {
+						assertEquals("fast", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+					}
+					assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000));
+				}
+				CompositeData state = httpUrlSelector.getHedgingState();
+				assertTrue((Long) state.get("hedges") > 0);
+				assertEquals(state.get("hedges"), state.get("wins"));
+			} finally {
+				httpUrlSelector.stop();
+			}
+		} finally {
+			slow.stop(0);
+			fast.stop(0);
+		}
+	}
+
+	@Test
+	public void testHedgeCountsAsRetry() throws Exception {
+		AtomicInteger requests = new AtomicInteger();
+		HttpServer server1 = createServer("unavailable", 500L, 503, requests);
+		HttpServer server2 = createServer("unavailable", 500L, 503, requests);
+		try {
+			List<HttpUrl> list = new ArrayList<>();
+			list.add(new HttpUrl("http://localhost:" + server1.getAddress().getPort() + "/", 1, true));
+			list.add(new HttpUrl("http://localhost:" + server2.getAddress().getPort() + "/", 1, true));
+			HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 1, null, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null,
+					HttpClient.Version.HTTP_1_1, null, null, null, new HttpHedging(100, 95, 100), null);
+			Http2UrlSelector httpUrlSelector = new Http2UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+			try {
+				httpUrlSelector.send(httpEndpoint, HttpRequest.newBuilder().GET(), "", false, null);
+				fail();
+			} catch (IOException e) {
+				// the hedge has used up the only retry
+				assertEquals(2, requests.get());
+			} finally {
+				httpUrlSelector.stop();
+			}
+		} finally {
+			server1.stop(0);
+			server2.stop(0);
+		}
+	}
+
+}
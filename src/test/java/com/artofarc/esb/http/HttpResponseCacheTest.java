@@ -0,0 +1,148 @@
+package com.artofarc.esb.http;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpResponseCacheTest extends AbstractESBTest {
+
+	private final AtomicInteger _requests = new AtomicInteger();
+	private HttpServer _server;
+	private Path _spillDirectory;
+
+	@Before
+	public void startServer() throws Exception {
+		_server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		_server.createContext("/", exchange -> {
+			int count = _requests.incrementAndGet();
+			String path = exchange.getRequestURI().getPath();
+			String body = path + ' ' + count;
+			if ("POST".equals(exchange.getRequestMethod())) {
+				exchange.getRequestBody().readAllBytes();
+			} else if (path.equals("/fresh")) {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+			} else if (path.equals("/etag")) {
+				exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+			} else if (path.equals("/vary")) {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				exchange.getResponseHeaders().add("Vary", "Accept");
+				body = exchange.getRequestHeaders().getFirst("Accept");
+			}
+			byte[] ba = body.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, ba.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(ba);
+			}
+		});
+		_server.start();
+		_spillDirectory = Files.createTempDirectory("esb0-http-cache");
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		_server.stop(0);
+		Files.delete(_spillDirectory);
+	}
+
+	private Http2UrlSelector createHttpUrlSelector(HttpEndpoint httpEndpoint) {
+		return new Http2UrlSelector(httpEndpoint, getGlobalContext().getDefaultWorkerPool());
+	}
+
+	private HttpEndpoint createHttpEndpoint(long maxSize) throws Exception {
+		return new HttpEndpoint(null, Collections.singletonList(new HttpUrl("http://localhost:" + _server.getAddress().getPort(), 1, true)), true, null, null, 1000, 0, null, null,
+				System.currentTimeMillis(), Proxy.NO_PROXY, null, HttpClient.Version.HTTP_1_1, null, null, null, null, new HttpResponseCache(maxSize, 1024, _spillDirectory.toString(), 1024));
+	}
+
+	private static String get(Http2UrlSelector httpUrlSelector, HttpEndpoint httpEndpoint, String path, String accept) throws Exception {
+		HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().GET();
+		if (accept != null) {
+			requestBuilder.header("Accept", accept);
+		}
+		HttpResponse<InputStream> httpResponse = httpUrlSelector.send(httpEndpoint, requestBuilder, path, false, null);
+		assertEquals(200, httpResponse.statusCode());
+		try (InputStream is = httpResponse.body()) {
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void testFreshAndInvalidate() throws Exception {
+		HttpEndpoint httpEndpoint = createHttpEndpoint(1024);
+		Http2UrlSelector httpUrlSelector = createHttpUrlSelector(httpEndpoint);
+		try {
+			assertEquals("/fresh 1", get(httpUrlSelector, httpEndpoint, "/fresh", null));
+			assertEquals("/fresh 1", get(httpUrlSelector, httpEndpoint, "/fresh", null));
+			assertEquals(1, _requests.get());
+			HttpResponse<InputStream> httpResponse = httpUrlSelector.send(httpEndpoint, HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofString("x")), "/fresh", true, null);
+			httpResponse.body().close();
+			assertEquals("/fresh 3", get(httpUrlSelector, httpEndpoint, "/fresh", null));
+			CompositeData state = httpUrlSelector.getResponseCacheState();
+			assertEquals(1L, state.get("hits"));
+			assertEquals(1, state.get("entries"));
+		} finally {
+			httpUrlSelector.stop();
+		}
+	}
+
+	@Test
+	public void testRevalidate() throws Exception {
+		HttpEndpoint httpEndpoint = createHttpEndpoint(1024);
+		Http2UrlSelector httpUrlSelector = createHttpUrlSelector(httpEndpoint);
+		try {
+			assertEquals("/etag 1", get(httpUrlSelector, httpEndpoint, "/etag", null));
+			assertEquals("/etag 1", get(httpUrlSelector, httpEndpoint, "/etag", null));
+			assertEquals(2, _requests.get());
+			assertEquals(1L, httpUrlSelector.getResponseCacheState().get("revalidations"));
+		} finally {
+			httpUrlSelector.stop();
+		}
+	}
+
+	@Test
+	public void testVaryAndSpill() throws Exception {
+		// memory holds only one body
+		HttpEndpoint httpEndpoint = createHttpEndpoint(20);
+		Http2UrlSelector httpUrlSelector = createHttpUrlSelector(httpEndpoint);
+		try {
+			assertEquals("application/json", get(httpUrlSelector, httpEndpoint, "/vary", "application/json"));
+			assertEquals("application/xml", get(httpUrlSelector, httpEndpoint, "/vary", "application/xml"));
+			assertEquals("application/json", get(httpUrlSelector, httpEndpoint, "/vary", "application/json"));
+			assertEquals("application/xml", get(httpUrlSelector, httpEndpoint, "/vary", "application/xml"));
+			assertEquals(2, _requests.get());
+			CompositeData state = httpUrlSelector.getResponseCacheState();
+			assertEquals(2, state.get("entries"));
+			assertEquals(15L, state.get("size"));
+			assertEquals(16L, state.get("spillSize"));
+		} finally {
+			httpUrlSelector.stop();
+		}
+		assertEquals(0L, Files.list(_spillDirectory).count());
+	}
+
+}
@@ -19,7 +19,7 @@ public class HttpUrlSelectorTest extends AbstractESBTest {
 		for (int i = 0; i < 6; ++i) {
 			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
 		}
-		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null);
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, null, null, null, null);
 		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
 		int oldpos = 5;
 		for (int i = 0; i < 20; ++i) {
@@ -36,7 +36,7 @@ public class HttpUrlSelectorTest extends AbstractESBTest {
 		for (int i = 0; i < 6; ++i) {
 			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
 		}
-		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, false, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null);
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, false, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, null, null, null, null);
 		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
 		for (int i = 0; i < 6; i += 2) {
 			// every even position is in use
@@ -55,7 +55,7 @@ public class HttpUrlSelectorTest extends AbstractESBTest {
 		for (int i = 0; i < 6; ++i) {
 			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
 		}
-		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, false, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null);
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, false, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, null, null, null, null);
 		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
 		for (int i = 0; i < 6; ++i) {
 			httpUrlSelector.new HttpUrlConnection(httpEndpoint, i, null, null);
@@ -69,6 +69,136 @@ public class HttpUrlSelectorTest extends AbstractESBTest {
 		}
 	}
 
+	@Test
+	public void testSmoothWeightedRoundRobin() throws Exception {
+		List<HttpUrl> list = new ArrayList<>();
+		for (int i = 0; i < 3; ++i) {
+			list.add(new HttpUrl("http://localhost:" + (9001 + i), i + 1, true));
+		}
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, HttpEndpoint.LoadBalancing.WEIGHTED_ROUND_ROBIN, null, null, null, null);
+		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
+		int[] count = new int[3];
+		for (int i = 0; i < 60; ++i) {
+			++count[httpUrlSelector.computeNextPos(httpEndpoint)];
+		}
+		assertArrayEquals(new int[] { 10, 20, 30 }, count);
+		httpUrlSelector.setActive(httpEndpoint, 2, false);
+		for (int i = 0; i < 30; ++i) {
+			assertNotEquals(2, httpUrlSelector.computeNextPos(httpEndpoint));
+		}
+		assertFalse(httpUrlSelector.isActive(2));
+		httpUrlSelector.stop();
+	}
+
+	@Test
+	public void testRoundRobinInverseWeight() throws Exception {
+		List<HttpUrl> list = new ArrayList<>();
+		for (int i = 0; i < 3; ++i) {
+			list.add(new HttpUrl("http://localhost:" + (9001 + i), i + 1, true));
+		}
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, null, null, null, null);
+		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
+		int[] count = new int[3];
+		for (int i = 0; i < 55; ++i) {
+			++count[httpUrlSelector.computeNextPos(httpEndpoint)];
+		}
+		// url with weight w is taken every w-th time
+		assertArrayEquals(new int[] { 30, 15, 10 }, count);
+		httpUrlSelector.stop();
+	}
+
+	@Test
+	public void testLeastOutstandingRequests() throws Exception {
+		List<HttpUrl> list = new ArrayList<>();
+		for (int i = 0; i < 3; ++i) {
+			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
+		}
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 2, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, HttpEndpoint.LoadBalancing.LEAST_OUTSTANDING_REQUESTS, null, null, null, null);
+		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
+		httpUrlSelector.new HttpUrlConnection(httpEndpoint, 0, null, null);
+		httpUrlSelector.new HttpUrlConnection(httpEndpoint, 0, null, null);
+		httpUrlSelector.new HttpUrlConnection(httpEndpoint, 2, null, null);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(1, httpUrlSelector.computeNextPos(httpEndpoint));
+		}
+	}
+
+	@Test
+	public void testPowerOfTwoChoices() throws Exception {
+		List<HttpUrl> list = new ArrayList<>();
+		for (int i = 0; i < 2; ++i) {
+			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
+		}
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 1, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, HttpEndpoint.LoadBalancing.PEAK_EWMA, null, null, null, null);
+		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
+		httpUrlSelector.recordLatency(httpEndpoint, 0, 50000000L);
+		httpUrlSelector.recordLatency(httpEndpoint, 1, 5000000L);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(1, httpUrlSelector.computeNextPos(httpEndpoint));
+		}
+		// a peak is taken over at once
+		httpUrlSelector.recordLatency(httpEndpoint, 1, 500000000L);
+		assertEquals(0, httpUrlSelector.computeNextPos(httpEndpoint));
+		assertEquals(500., (Double) httpUrlSelector.getHttpEndpointStates()[1].get("latencyEwma"), 1.);
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		List<HttpUrl> list = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, true));
+		}
+		HttpCircuitBreaker circuitBreaker = new HttpCircuitBreaker(50, 100, 10000, 4, 60, 3600, 2, 25);
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, 5, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, circuitBreaker, null, null, null);
+		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
+		for (int i = 0; i < 4; ++i) {
+			httpUrlSelector.recordFailure(0);
+		}
+		assertEquals("OPEN", httpUrlSelector.getHttpEndpointStates()[0].get("circuitBreaker"));
+		for (int i = 0; i < 30; ++i) {
+			assertNotEquals(0, httpUrlSelector.computeNextPos(httpEndpoint));
+		}
+		// ejection limit reached
+		for (int i = 0; i < 4; ++i) {
+			httpUrlSelector.recordFailure(1);
+		}
+		assertEquals("CLOSED", httpUrlSelector.getHttpEndpointStates()[1].get("circuitBreaker"));
+		httpUrlSelector.changeCircuitBreakerState(0, HttpCircuitBreaker.State.HALF_OPEN);
+		// does not use up probe admissions
+		for (int i = 0; i < 4; ++i) {
+			assertNotEquals(0, httpUrlSelector.computeScheduledPos(httpEndpoint));
+		}
+		// only the probe calls go to the half open url
+		assertEquals(0, httpUrlSelector.computeNextPos(httpEndpoint));
+		assertEquals(0, httpUrlSelector.computeNextPos(httpEndpoint));
+		for (int i = 0; i < 30; ++i) {
+			assertNotEquals(0, httpUrlSelector.computeNextPos(httpEndpoint));
+		}
+		httpUrlSelector.recordLatency(httpEndpoint, 0, 1000000L);
+		httpUrlSelector.recordLatency(httpEndpoint, 0, 1000000L);
+		assertEquals("CLOSED", httpUrlSelector.getHttpEndpointStates()[0].get("circuitBreaker"));
+		boolean selected = false;
+		for (int i = 0; i < 4; ++i) {
+			selected |= httpUrlSelector.computeNextPos(httpEndpoint) == 0;
+		}
+		assertTrue(selected);
+	}
+
+	@Test
+	public void testCircuitBreakerLostProbes() throws Exception {
+		HttpCircuitBreaker.Window window = new HttpCircuitBreaker(50, 100, 10000, 4, 60, 1, 2, 100).new Window();
+		window.setState(HttpCircuitBreaker.State.HALF_OPEN);
+		assertTrue(window.tryAdmit());
+		assertTrue(window.tryAdmit());
+		assertFalse(window.tryAdmit());
+		assertNull(window.record(false, 0L));
+		// the other probe never records an outcome
+		Thread.sleep(1100L);
+		assertTrue(window.tryAdmit());
+		assertFalse(window.tryAdmit());
+		assertEquals(HttpCircuitBreaker.State.CLOSED, window.record(false, 0L));
+	}
+
 	@Test
 	public void testHttpUrlChanged() throws Exception {
 		HttpUrl httpUrl1 = new HttpUrl("http://localhost:443", 1, true);
@@ -96,7 +226,7 @@ public class HttpUrlSelectorTest extends AbstractESBTest {
 		for (int i = 0; i < 2; ++i) {
 			list.add(new HttpUrl("http://localhost:" + (9001 + i), 1, (i & 1) == 0));
 		}
-		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, list.size() - 1, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null);
+		HttpEndpoint httpEndpoint = new HttpEndpoint(null, list, true, null, null, 1000, list.size() - 1, 120, new HttpCheckAlive(), System.currentTimeMillis(), Proxy.NO_PROXY, null, null, null, null, null, null, null);
 		Http1UrlSelector httpUrlSelector = new Http1UrlSelector(httpEndpoint , getGlobalContext().getDefaultWorkerPool());
 		httpUrlSelector.setActive(httpEndpoint, 0, false);
 		for (int i = 0; i < 30; ++i) {
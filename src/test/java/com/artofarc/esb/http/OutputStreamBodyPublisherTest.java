@@ -0,0 +1,116 @@
+package com.artofarc.esb.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+import com.artofarc.util.IOUtils;
+
+public class OutputStreamBodyPublisherTest {
+
+	private static class CollectingSubscriber implements Flow.Subscriber<ByteBuffer> {
+		final ByteArrayOutputStream _bos = new ByteArrayOutputStream();
+		final boolean _requestOnNext;
+		Flow.Subscription _subscription;
+		int _chunks, _completions;
+		Throwable _error;
+
+		CollectingSubscriber(boolean requestOnNext) {
+			_requestOnNext = requestOnNext;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			_subscription = subscription;
+			if (_requestOnNext) {
+				subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onNext(ByteBuffer item) {
+			++_chunks;
+			_bos.write(item.array(), item.position(), item.remaining());
+			if (_requestOnNext) {
+				_subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			_error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			++_completions;
+		}
+	}
+
+	@Test
+	public void testStreamInChunks() throws Exception {
+		CountDownLatch streamConsumed = new CountDownLatch(1);
+		OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(streamConsumed, 1000);
+		CollectingSubscriber subscriber = new CollectingSubscriber(true);
+		bodyPublisher.subscribe(subscriber);
+		assertEquals(0, streamConsumed.getCount());
+		byte[] data = new byte[3 * IOUtils.MTU + 5];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) i;
+		}
+		bodyPublisher.write(data[0]);
+		bodyPublisher.write(data, 1, data.length - 1);
+		assertEquals(3, subscriber._chunks);
+		bodyPublisher.close();
+		bodyPublisher.close();
+		assertEquals(4, subscriber._chunks);
+		assertEquals(1, subscriber._completions);
+		assertArrayEquals(data, subscriber._bos.toByteArray());
+		// a retry cannot stream the body again
+		CollectingSubscriber second = new CollectingSubscriber(true);
+		bodyPublisher.subscribe(second);
+		assertNotNull(second._error);
+	}
+
+	@Test
+	public void testNoDemand() throws Exception {
+		OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(new CountDownLatch(1), 50);
+		bodyPublisher.subscribe(new CollectingSubscriber(false));
+		try {
+			bodyPublisher.write(new byte[IOUtils.MTU]);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Timeout"));
+		}
+	}
+
+	@Test
+	public void testAbortReleasesWriter() throws Exception {
+		OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(new CountDownLatch(1), 60000);
+		bodyPublisher.subscribe(new CollectingSubscriber(false));
+		bodyPublisher.abort(new IOException("Connection reset"));
+		try {
+			bodyPublisher.write(new byte[IOUtils.MTU]);
+			fail();
+		} catch (IOException e) {
+			assertEquals("Connection reset", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testCloseBeforeSubscribe() throws Exception {
+		OutputStreamBodyPublisher bodyPublisher = new OutputStreamBodyPublisher(new CountDownLatch(1), 1000);
+		bodyPublisher.close();
+		CollectingSubscriber subscriber = new CollectingSubscriber(false);
+		bodyPublisher.subscribe(subscriber);
+		assertEquals(0, subscriber._chunks);
+		assertEquals(1, subscriber._completions);
+	}
+
+}
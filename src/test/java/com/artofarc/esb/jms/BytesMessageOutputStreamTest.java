@@ -0,0 +1,103 @@
+package com.artofarc.esb.jms;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.BytesMessage;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.junit.Test;
+
+import com.artofarc.util.ByteArrayOutputStream;
+
+public class BytesMessageOutputStreamTest {
+
+	@Test
+	public void testChunking() throws Exception {
+		ActiveMQBytesMessage bytesMessage = new ActiveMQBytesMessage();
+		AtomicInteger writes = new AtomicInteger();
+		BytesMessage countingMessage = (BytesMessage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { BytesMessage.class }, (proxy, method, args) -> {
+			if (method.getName().startsWith("write")) {
+				writes.incrementAndGet();
+			}
+			try {
+				return method.invoke(bytesMessage, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+		byte[] expected = new byte[10 * BytesMessageOutputStream.CHUNK_SIZE + 100];
+		for (int i = 0; i < expected.length; ++i) {
+			expected[i] = (byte) i;
+		}
+		int singleBytes = 3 * BytesMessageOutputStream.CHUNK_SIZE;
+		BytesMessageOutputStream os = new BytesMessageOutputStream(countingMessage, null);
+		for (int i = 0; i < singleBytes; ++i) {
+			os.write(expected[i]);
+		}
+		// last chunk is kept until more bytes arrive
+		assertEquals(2, writes.get());
+		os.write(expected, singleBytes, 10);
+		// large write is handed over after the pending bytes
+		os.write(expected, singleBytes + 10, 5 * BytesMessageOutputStream.CHUNK_SIZE);
+		assertEquals(5, writes.get());
+		int pos = singleBytes + 10 + 5 * BytesMessageOutputStream.CHUNK_SIZE;
+		os.write(expected, pos, expected.length - pos);
+		os.close();
+		os.close();
+		assertEquals(6, writes.get());
+		try {
+			os.write(0);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		bytesMessage.reset();
+		assertEquals(expected.length, bytesMessage.getBodyLength());
+		byte[] actual = new byte[expected.length];
+		assertEquals(expected.length, bytesMessage.readBytes(actual));
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testDirectHandOff() throws Exception {
+		ActiveMQBytesMessage bytesMessage = new ActiveMQBytesMessage();
+		List<byte[]> arrays = new ArrayList<>();
+		BytesMessage recordingMessage = (BytesMessage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { BytesMessage.class }, (proxy, method, args) -> {
+			if (method.getName().equals("writeBytes")) {
+				arrays.add((byte[]) args[0]);
+			}
+			try {
+				return method.invoke(bytesMessage, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int i = 0; i < 3 * BytesMessageOutputStream.CHUNK_SIZE; ++i) {
+			bos.write(i);
+		}
+		try (BytesMessageOutputStream os = new BytesMessageOutputStream(recordingMessage, null, true)) {
+			bos.getByteArrayInputStream().transferTo(os);
+		}
+		// the buffer of the ByteArrayOutputStream itself is passed
+		assertEquals(1, arrays.size());
+		assertSame(bos.getByteArrayInputStream().toByteBuffer().array(), arrays.get(0));
+		arrays.clear();
+		try (BytesMessageOutputStream os = new BytesMessageOutputStream(recordingMessage, null, false)) {
+			bos.getByteArrayInputStream().transferTo(os);
+		}
+		// copied chunk by chunk
+		assertEquals(3, arrays.size());
+		assertNotSame(bos.getByteArrayInputStream().toByteBuffer().array(), arrays.get(0));
+		bytesMessage.reset();
+		assertEquals(6 * BytesMessageOutputStream.CHUNK_SIZE, bytesMessage.getBodyLength());
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.artofarc.esb.jms;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.artofarc.esb.AbstractESBTest;
+import com.artofarc.esb.action.TerminalAction;
+import com.artofarc.esb.context.Context;
+import com.artofarc.esb.context.WorkerPool;
+import com.artofarc.esb.message.ESBConstants;
+import com.artofarc.esb.message.ESBMessage;
+
+public class JMSConsumerTest extends AbstractESBTest {
+
+	private static final String BROKER_URL = "vm://jmsConsumerTest?broker.persistent=false&jms.redeliveryPolicy.initialRedeliveryDelay=0";
+
+	private Connection connection;
+	private Session session;
+
+	static class RecordAction extends TerminalAction {
+		final Set<String> processed = ConcurrentHashMap.newKeySet();
+
+		@Override
+		protected void execute(Context context, ESBMessage message) throws Exception {
+			String body = message.getBodyAsString(context);
+			if (body.contains("poison")) {
+				throw new IllegalStateException(body);
+			}
+			processed.add(body);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		System.setProperty("java.naming.factory.initial", "org.apache.activemq.jndi.ActiveMQInitialContextFactory");
+		System.setProperty("java.naming.provider.url", BROKER_URL);
+		// keeps the embedded broker alive
+		connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+		connection.start();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		_createContext();
+	}
+
+	@After
+	public void closeConnection() throws Exception {
+		connection.close();
+		System.clearProperty("java.naming.factory.initial");
+		System.clearProperty("java.naming.provider.url");
+	}
+
+	private void send(String queue, String... bodies) throws Exception {
+		MessageProducer producer = session.createProducer(session.createQueue(queue));
+		for (String body : bodies) {
+			producer.send(session.createTextMessage(body));
+		}
+		producer.close();
+	}
+
+	private static void awaitSize(Collection<?> collection, int size) throws InterruptedException {
+		for (int i = 0; i < 100 && collection.size() < size; ++i) {
+			Thread.sleep(100L);
+		}
+	}
+
+	private JMSConsumer createPollingConsumer(String queue, int batchSize, String errorQueue, boolean aggregate, int prefetch) throws Exception {
+		return createPollingConsumer(null, queue, batchSize, errorQueue, aggregate, prefetch);
+	}
+
+	private JMSConsumer createPollingConsumer(String workerPool, String queue, int batchSize, String errorQueue, boolean aggregate, int prefetch) throws Exception {
+		JMSConnectionData jmsConnectionData = JMSConnectionData.create(getGlobalContext(), "ConnectionFactory", null, null, null).get(0);
+		return new JMSConsumer(getGlobalContext(), null, workerPool, jmsConnectionData, "dynamicQueues/" + queue, null, null, null, null, null, false, false, null, 1, 1, batchSize, 1000, 50L,
+				"milliseconds", null, errorQueue, aggregate, prefetch, new JMSWorkerScaler());
+	}
+
+	@Test
+	public void testPoisonMessageMovedAfterFailingAlone() throws Exception {
+		send("poisonTest", "m0", "m1", "poison", "m3", "m4");
+		RecordAction action = new RecordAction();
+		JMSConsumer jmsConsumer = createPollingConsumer("poisonTest", 4, "poisonTest.DLQ", false, 0);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		try {
+			awaitSize(action.processed, 4);
+			MessageConsumer consumer = session.createConsumer(session.createQueue("poisonTest.DLQ"));
+			TextMessage poison = (TextMessage) consumer.receive(5000L);
+			assertNotNull(poison);
+			assertEquals("poison", poison.getText());
+			assertNull(consumer.receive(100L));
+			// none of the good messages are moved
+			assertEquals(4, action.processed.size());
+			assertTrue(action.processed.containsAll(Arrays.asList("m0", "m1", "m3", "m4")));
+			assertEquals(1, jmsConsumer.getPoisonMessageCount());
+			assertTrue(jmsConsumer.getBisectionCount() > 0);
+		} finally {
+			jmsConsumer.close();
+		}
+	}
+
+	/**
+	 * Records the values of m elements, fails for an aggregate containing poison.
+	 */
+	static class AggregateAction extends RecordAction {
+		final Set<String> documents = ConcurrentHashMap.newKeySet();
+
+		@Override
+		protected void execute(Context context, ESBMessage message) throws Exception {
+			String body = message.getBodyAsString(context);
+			if (body.contains("poison")) {
+				throw new IllegalStateException(body);
+			}
+			documents.add(body);
+			for (Matcher matcher = Pattern.compile("<m>(\\w+)</m>").matcher(body); matcher.find();) {
+				processed.add(matcher.group(1));
+			}
+		}
+	}
+
+	@Test
+	public void testAggregate() throws Exception {
+		MessageProducer producer = session.createProducer(session.createQueue("aggregateTest"));
+		for (int i = 0; i < 3; ++i) {
+			TextMessage message = session.createTextMessage("<m>" + i + "</m>");
+			message.setJMSCorrelationID("c" + i);
+			message.setStringProperty("prop", "v" + i);
+			producer.send(message);
+		}
+		AggregateAction action = new AggregateAction();
+		JMSConsumer jmsConsumer = createPollingConsumer("aggregateTest", 3, null, true, 0);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		try {
+			awaitSize(action.processed, 3);
+			assertEquals(1, action.documents.size());
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(action.documents.iterator().next())));
+			Element messages = document.getDocumentElement();
+			assertEquals("messages", messages.getTagName());
+			NodeList list = messages.getElementsByTagName("message");
+			assertEquals(3, list.getLength());
+			for (int i = 0; i < 3; ++i) {
+				Element message = (Element) list.item(i);
+				assertEquals("c" + i, message.getAttribute(ESBConstants.JMSCorrelationID));
+				assertTrue(message.getAttribute(ESBConstants.JMSMessageID).startsWith("ID:"));
+				assertTrue(Long.parseLong(message.getAttribute(ESBConstants.JMSTimestamp)) > 0L);
+				Element property = (Element) message.getElementsByTagName("property").item(0);
+				assertEquals("prop", property.getAttribute("name"));
+				assertEquals("v" + i, property.getTextContent());
+				Element body = (Element) message.getElementsByTagName("body").item(0);
+				assertEquals(String.valueOf(i), body.getElementsByTagName("m").item(0).getTextContent());
+			}
+		} finally {
+			jmsConsumer.close();
+		}
+	}
+
+	@Test
+	public void testAggregateAppendFails() throws Exception {
+		// the first message of an aggregate cannot be parsed
+		send("aggregateAppendTest", "garbage<", "<m>1</m>", "<m>2</m>", "<m>3</m>");
+		AggregateAction action = new AggregateAction();
+		JMSConsumer jmsConsumer = createPollingConsumer("aggregateAppendTest", 4, "aggregateAppendTest.DLQ", true, 0);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		try {
+			awaitSize(action.processed, 3);
+			assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), action.processed);
+			MessageConsumer consumer = session.createConsumer(session.createQueue("aggregateAppendTest.DLQ"));
+			TextMessage poison = (TextMessage) consumer.receive(5000L);
+			assertNotNull(poison);
+			assertEquals("garbage<", poison.getText());
+			assertEquals(1, jmsConsumer.getPoisonMessageCount());
+		} finally {
+			jmsConsumer.close();
+		}
+	}
+
+	@Test
+	public void testAggregateProcessingFails() throws Exception {
+		send("aggregateProcessingTest", "<m>0</m>", "<m>poison</m>", "<m>2</m>");
+		AggregateAction action = new AggregateAction();
+		JMSConsumer jmsConsumer = createPollingConsumer("aggregateProcessingTest", 3, "aggregateProcessingTest.DLQ", true, 0);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		try {
+			awaitSize(action.processed, 2);
+			assertEquals(new HashSet<>(Arrays.asList("0", "2")), action.processed);
+			MessageConsumer consumer = session.createConsumer(session.createQueue("aggregateProcessingTest.DLQ"));
+			TextMessage poison = (TextMessage) consumer.receive(5000L);
+			assertNotNull(poison);
+			assertEquals("<m>poison</m>", poison.getText());
+			assertEquals(1, jmsConsumer.getPoisonMessageCount());
+		} finally {
+			jmsConsumer.close();
+		}
+	}
+
+	@Test
+	public void testPrefetchWithBusyWorkerPool() throws Exception {
+		WorkerPool workerPool = new WorkerPool(getGlobalContext(), "prefetchTest", 1, 1, Thread.NORM_PRIORITY, 10, 1, false, false);
+		getGlobalContext().putWorkerPool("prefetchTest", workerPool);
+		RecordAction action = new RecordAction();
+		JMSConsumer jmsConsumer = createPollingConsumer("prefetchTest", "prefetchTest", 5, null, false, 2);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		// occupies the only thread of the WorkerPool after the consumer has started
+		CountDownLatch release = new CountDownLatch(1);
+		workerPool.getExecutorService().execute(() -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		});
+		try {
+			send("prefetchTest", "m0", "m1", "m2", "m3", "m4");
+			awaitSize(action.processed, 5);
+			assertEquals(5, action.processed.size());
+		} finally {
+			release.countDown();
+			jmsConsumer.close();
+		}
+	}
+
+	@Test
+	public void testFailingBatchWithoutPoisonMessage() throws Exception {
+		send("transientTest", "m0", "m1", "m2");
+		final boolean[] failed = new boolean[1];
+		RecordAction action = new RecordAction() {
+
+			@Override
+			protected void execute(Context context, ESBMessage message) throws Exception {
+				// first message of the first batch fails once
+				if (!failed[0]) {
+					failed[0] = true;
+					throw new IllegalStateException("transient");
+				}
+				super.execute(context, message);
+			}
+		};
+		JMSConsumer jmsConsumer = createPollingConsumer("transientTest", 3, "transientTest.DLQ", false, 0);
+		jmsConsumer.setStartAction(action);
+		jmsConsumer.init(getGlobalContext());
+		try {
+			awaitSize(action.processed, 3);
+			assertEquals(3, action.processed.size());
+			MessageConsumer consumer = session.createConsumer(session.createQueue("transientTest.DLQ"));
+			assertNull(consumer.receive(500L));
+			assertEquals(0, jmsConsumer.getPoisonMessageCount());
+		} finally {
+			jmsConsumer.close();
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.artofarc.esb.jms;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.Test;
+
+public class JMSReplyDemultiplexerTest {
+
+	@Test
+	public void testDispatchByCorrelationID() throws Exception {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://demux?broker.persistent=false");
+		Connection connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			JMSReplyDemultiplexer replyDemultiplexer = new JMSReplyDemultiplexer(connection, "replies", null);
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("replies"));
+			Message request1 = session.createTextMessage("request1");
+			replyDemultiplexer.prepareRequest(request1);
+			Message request2 = session.createTextMessage("request2");
+			request2.setJMSCorrelationID("id2");
+			replyDemultiplexer.prepareRequest(request2);
+			assertTrue(request2.getJMSCorrelationID().endsWith("-id2"));
+			// reply arrives before the request is waiting
+			Message reply1 = session.createTextMessage("reply1");
+			reply1.setJMSCorrelationID(request1.getJMSCorrelationID());
+			producer.send(reply1);
+			Thread.sleep(100L);
+			Message reply2 = session.createTextMessage("reply2");
+			reply2.setJMSCorrelationID(request2.getJMSCorrelationID());
+			new Thread(() -> {
+				try {
+					Thread.sleep(100L);
+					producer.send(reply2);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}).start();
+			assertEquals("reply2", replyDemultiplexer.receive(request2.getJMSCorrelationID(), 5000L).getBody(String.class));
+			assertEquals("reply1", replyDemultiplexer.receive(request1.getJMSCorrelationID(), 5000L).getBody(String.class));
+			assertNull(replyDemultiplexer.receive("id3", 100L));
+			assertEquals(0, replyDemultiplexer.getPendingCount());
+			replyDemultiplexer.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testSharedReplyQueue() throws Exception {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://demuxShared?broker.persistent=false");
+		Connection connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			// e.g. two WorkerPools or nodes consuming the same reply queue
+			JMSReplyDemultiplexer replyDemultiplexer1 = new JMSReplyDemultiplexer(connection, "replies", null);
+			JMSReplyDemultiplexer replyDemultiplexer2 = new JMSReplyDemultiplexer(connection, "replies", null);
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("replies"));
+			Message[] requests = new Message[10];
+			for (int i = 0; i < requests.length; ++i) {
+				requests[i] = session.createTextMessage("request" + i);
+				(i % 2 == 0 ? replyDemultiplexer1 : replyDemultiplexer2).prepareRequest(requests[i]);
+				Message reply = session.createTextMessage("reply" + i);
+				reply.setJMSCorrelationID(requests[i].getJMSCorrelationID());
+				producer.send(reply);
+			}
+			for (int i = 0; i < requests.length; ++i) {
+				Message reply = (i % 2 == 0 ? replyDemultiplexer1 : replyDemultiplexer2).receive(requests[i].getJMSCorrelationID(), 5000L);
+				assertNotNull(reply);
+				assertEquals("reply" + i, reply.getBody(String.class));
+			}
+			assertEquals(0, replyDemultiplexer1.getPendingCount());
+			assertEquals(0, replyDemultiplexer2.getPendingCount());
+			replyDemultiplexer1.close();
+			replyDemultiplexer2.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testReceiveAsyncFromTemporaryQueue() throws Exception {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://demuxAsync?broker.persistent=false");
+		Connection connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			JMSReplyDemultiplexer replyDemultiplexer = new JMSReplyDemultiplexer(connection, null, null);
+			assertNotNull(replyDemultiplexer.getQueue());
+			CompletableFuture<String> result = new CompletableFuture<>();
+			replyDemultiplexer.receiveAsync("id1", 5000L, (message, exception) -> {
+				try {
+					result.complete(message.getBody(String.class));
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Message reply = session.createTextMessage("reply1");
+			reply.setJMSCorrelationID("id1");
+			session.createProducer(replyDemultiplexer.getQueue()).send(reply);
+			assertEquals("reply1", result.get(5L, TimeUnit.SECONDS));
+			assertEquals(0, replyDemultiplexer.getPendingCount());
+			// registration is dropped on timeout even if no other reply arrives
+			CompletableFuture<Throwable> timeout = new CompletableFuture<>();
+			replyDemultiplexer.receiveAsync("id2", 100L, (message, exception) -> timeout.complete(exception));
+			assertTrue(timeout.get(5L, TimeUnit.SECONDS) instanceof TimeoutException);
+			assertEquals(0, replyDemultiplexer.getPendingCount());
+			replyDemultiplexer.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+}
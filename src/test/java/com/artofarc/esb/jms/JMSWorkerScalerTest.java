@@ -0,0 +1,51 @@
+package com.artofarc.esb.jms;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.artofarc.esb.jms.JMSWorkerScaler.Decision;
+
+public class JMSWorkerScalerTest {
+
+	@Test
+	public void testHysteresis() {
+		JMSWorkerScaler workerScaler = new JMSWorkerScaler();
+		workerScaler.init(1000, 100, 2000, 10000, 3, false);
+		long now = 100000L;
+		// delay is high but workers are not saturated, e.g. because of clock skew
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 2, 1, 4, 1, 500, 5000, -1));
+		}
+		// a single spike does not scale
+		assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 2, 1, 4, 2, 500, 5000, -1));
+		assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 2, 1, 4, 2, 500, 50, -1));
+		assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 2, 1, 4, 2, 500, 5000, -1));
+		assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 2, 1, 4, 2, 500, 5000, -1));
+		assertEquals(Decision.ADD, workerScaler.decide(now += 100, 2, 1, 4, 2, 500, 5000, -1));
+		assertNotNull(workerScaler.getLastDecision());
+		// ramp up delay
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(Decision.KEEP, workerScaler.decide(now += 100, 3, 1, 4, 3, 500, 5000, -1));
+		}
+		assertEquals(Decision.ADD, workerScaler.decide(now += 2000, 3, 1, 4, 3, 500, 5000, -1));
+		// maximum reached
+		assertEquals(Decision.KEEP, workerScaler.decide(now += 5000, 4, 1, 4, 4, 500, 5000, -1));
+		// idle workers
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(Decision.KEEP, workerScaler.decide(now += 1000, 4, 1, 4, 1, 500, 5000, -1));
+		}
+		assertEquals(Decision.REMOVE, workerScaler.decide(now += 10000, 4, 1, 4, 1, 500, 5000, -1));
+	}
+
+	@Test
+	public void testQueueDepth() {
+		JMSWorkerScaler workerScaler = new JMSWorkerScaler();
+		workerScaler.init(1000, 100, 0, 0, 1, true);
+		// 1500 messages of 2ms for 2 workers
+		assertEquals(Decision.ADD, workerScaler.decide(1000L, 2, 1, 4, 2, 2000, 0, 1500));
+		assertEquals(1500L, workerScaler.getPressure());
+		assertEquals(Decision.REMOVE, workerScaler.decide(2000L, 3, 1, 4, 2, 2000, 5000, 10));
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.artofarc.esb.resource;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.artofarc.esb.AbstractESBTest;
+
+public class LRUCacheWithExpirationFactoryTest extends AbstractESBTest {
+
+	private LRUCacheWithExpirationFactory<Integer, String> factory;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void createFactory() {
+		_createContext();
+		factory = getGlobalContext().getResourceFactory(LRUCacheWithExpirationFactory.class);
+	}
+
+	private void testEvictionAndExpiration(boolean concurrent) throws Exception {
+		LRUCacheWithExpirationFactory<Integer, String>.Cache cache = factory.getResource("test" + concurrent, new LRUCacheWithExpirationFactory.CacheConfig(3, concurrent, 0L));
+		for (int i = 0; i < 5; ++i) {
+			cache.put(i, "v" + i, i < 4 ? 1 : 60);
+		}
+		assertEquals(3, cache.getSize());
+		assertNull(cache.get(0));
+		assertEquals("v4", cache.get(4));
+		assertEquals("v3", cache.remove(3));
+		assertEquals(2, cache.keySet().size());
+		Thread.sleep(1500);
+		assertEquals(1, cache.getSize());
+		assertEquals("v4", cache.get(4));
+		assertTrue(cache.containsKey(4));
+		// expired but not yet removed by the cleaner
+		cache.put(5, "v5", 0);
+		assertFalse(cache.containsKey(5));
+		assertNull(cache.get(5));
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertTrue(factory.getStatistics().length > 0);
+	}
+
+	@Test
+	public void testSynchronizedCache() throws Exception {
+		testEvictionAndExpiration(false);
+	}
+
+	@Test
+	public void testConcurrentCache() throws Exception {
+		testEvictionAndExpiration(true);
+	}
+
+	@Test
+	public void testConcurrentCacheSecondChance() {
+		LRUCacheWithExpirationFactory<Integer, String>.Cache cache = factory.getResource("clock", new LRUCacheWithExpirationFactory.CacheConfig(4, true, 0L));
+		for (int i = 0; i < 4; ++i) {
+			cache.put(i, "v" + i, 60);
+		}
+		// referenced entries survive eviction
+		cache.get(0);
+		cache.get(1);
+		cache.put(4, "v4", 60);
+		cache.put(5, "v5", 60);
+		assertTrue(cache.containsKey(0));
+		assertTrue(cache.containsKey(1));
+		assertFalse(cache.containsKey(2));
+		assertFalse(cache.containsKey(3));
+	}
+
+	@Test
+	public void testConcurrentCacheUnderLoad() throws Exception {
+		LRUCacheWithExpirationFactory<Integer, String>.Cache cache = factory.getResource("load", new LRUCacheWithExpirationFactory.CacheConfig(1000, true, 0L));
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; ++t) {
+			executorService.execute(() -> {
+				for (int i = 0; i < 100000; ++i) {
+					int key = (i * 31) % 5000;
+					if (cache.get(key) == null) {
+						cache.put(key, "v" + key, 60);
+					}
+				}
+			});
+		}
+		executorService.shutdown();
+		assertTrue(executorService.awaitTermination(60, TimeUnit.SECONDS));
+		assertTrue(cache.getSize() <= 1000);
+		assertEquals(cache.getSize(), cache.getExpirations().size());
+	}
+
+	@Test
+	public void testOffHeapBudget() throws Exception {
+		@SuppressWarnings("unchecked")
+		LRUCacheWithExpirationFactory<Integer, Object[]> factory = getGlobalContext().getResourceFactory(LRUCacheWithExpirationFactory.class);
+		LRUCacheWithExpirationFactory<Integer, Object[]>.Cache cache = factory.getResource("offHeap", new LRUCacheWithExpirationFactory.CacheConfig(2, false, 10L));
+		LRUCacheWithExpirationFactory.OffHeapBody body = cache.storeOffHeap("Hello".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+		assertNotNull(body);
+		cache.put(0, new Object[] { body }, 60);
+		cache.put(1, new Object[] { cache.storeOffHeap("World".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8) }, 60);
+		assertEquals(10L, cache.getOffHeapSize());
+		assertNull(cache.storeOffHeap("!".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+		// eviction gives back the budget, but readers still can stream the body
+		cache.put(2, new Object[] { "onHeap" }, 60);
+		assertEquals(5L, cache.getOffHeapSize());
+		assertEquals("Hello", new String(body.getInputStream().readAllBytes(), body.getCharsetName()));
+		assertEquals(5, body.getInputStream().lengthAsInt());
+		cache.clear();
+		assertEquals(0L, cache.getOffHeapSize());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		LRUCacheWithExpirationFactory<Integer, String>.Cache cache = factory.getResource("singleFlight", new LRUCacheWithExpirationFactory.CacheConfig(10, true, 0L));
+		LRUCacheWithExpirationFactory.Load<String> load = new LRUCacheWithExpirationFactory.Load<>(60000L);
+		assertNull(cache.joinLoad(1, load));
+		LRUCacheWithExpirationFactory.Load<String> pending = cache.joinLoad(1, new LRUCacheWithExpirationFactory.Load<>(60000L));
+		assertSame(load, pending);
+		cache.completeLoad(1, load, "v1");
+		assertEquals("v1", pending.get(1, TimeUnit.SECONDS));
+		// a lost loader is taken over after its deadline
+		LRUCacheWithExpirationFactory.Load<String> lost = new LRUCacheWithExpirationFactory.Load<>(0L);
+		assertNull(cache.joinLoad(2, lost));
+		Thread.sleep(1);
+		assertNull(cache.joinLoad(2, new LRUCacheWithExpirationFactory.Load<>(60000L)));
+		assertNull(lost.get());
+	}
+
+}